@@ -41,6 +41,15 @@ class Antigen {
 		case "recovery": 
 			Parameters.nu = 1.0 / Double.parseDouble(value);
 			break;
+		case "infectiousPeriod":
+			Parameters.infectiousPeriod = value;
+			break;
+		case "infectiousPeriodShape":
+			Parameters.infectiousPeriodShape = Double.parseDouble(value);
+			break;
+		case "shedToEnvironment":
+			Parameters.shedToEnvironment = Boolean.parseBoolean(value);
+			break;
 		case "contact": 
 			Parameters.beta = Double.parseDouble(value);
 			break;
@@ -62,6 +71,42 @@ class Antigen {
 		case "burnin":
 			Parameters.burnin = Integer.parseInt(value);
 			break;
+		case "seed":
+			Parameters.seed = Long.parseLong(value);
+			break;
+		case "hostStore":
+			Parameters.hostStore = value;
+			break;
+		case "internHistories":
+			Parameters.internHistories = Boolean.parseBoolean(value);
+			break;
+		case "countNaiveHosts":
+			Parameters.countNaiveHosts = Boolean.parseBoolean(value);
+			break;
+		case "contactThinning":
+			Parameters.contactThinning = Boolean.parseBoolean(value);
+			break;
+		case "riskCacheSize":
+			Parameters.riskCacheSize = Integer.parseInt(value);
+			break;
+		case "stepper":
+			Parameters.stepper = value;
+			break;
+		case "tauEpsilon":
+			Parameters.tauEpsilon = Double.parseDouble(value);
+			break;
+		case "genealogyCompaction":
+			Parameters.genealogyCompaction = Integer.parseInt(value);
+			break;
+		case "genealogyStore":
+			Parameters.genealogyStore = value;
+			break;
+		case "genealogyLazyNodes":
+			Parameters.genealogyLazyNodes = Boolean.parseBoolean(value);
+			break;
+		case "genealogySpillYears":
+			Parameters.genealogySpillYears = Double.parseDouble(value);
+			break;
 		case "outputDir":
 			Parameters.outputDir = value;
 			break;
@@ -117,6 +162,9 @@ class Antigen {
 		for (int i = 0; (i < args.length); i += 2) {
 			processParam(args[i], args[i + 1]);
 		}
+		// Derive all random streams from the master seed
+		Random.initialize(Parameters.seed);
+		System.out.println("Random seed: " + Random.getSeed());
 		// Skew species proportions for sensitivity tests
 		if (speciesSkew != 0) {
 			Parameters.skewSpecies(speciesSkew);
@@ -127,6 +175,10 @@ class Antigen {
 		final long   endTime = System.currentTimeMillis();
 		final double elapsedTime = (endTime - startTime) / 1000.0;
 		System.out.println("Elapsed time: " + elapsedTime + " seconds.");
+		if (RiskCache.isEnabled()) {
+			sim.printRiskCache();
+		}
+		sim.printLeapSummary();
 	}
 }
 
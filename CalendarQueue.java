@@ -0,0 +1,109 @@
+import java.util.Arrays;
+
+/**
+ * <p>A calendar queue of items (small integers) due at given slots, such
+ * as the steps of the simulation (see Brown, "Calendar queues: a fast
+ * O(1) priority queue implementation for the simulation event set
+ * problem", 1988).  Each slot maps to one of a fixed number of buckets,
+ * wrapping around, so that adding an item and draining the items due at
+ * a slot take time proportional to the number of items in the bucket.
+ * Items due more than one round of the buckets ahead stay in their
+ * bucket until their slot comes.</p>
+ *
+ * <p>Items cannot be removed: users must ignore the drained items that
+ * are no longer valid.</p>
+ */
+public class CalendarQueue {
+	/** The items and their slots in each bucket. */
+	private final int[][]  items;
+	private final long[][] slots;
+	private final int[]    sizes;
+
+	/** The number of buckets minus one (a power of two minus one). */
+	private final int mask;
+
+	/** The items returned by the last call to drain. */
+	private int[] due = new int[16];
+
+	/**
+	 * Create an empty queue.
+	 *
+	 * @param buckets The minimum number of buckets. This is rounded up to
+	 * a power of two, and should cover the slots at which most items are
+	 * due.
+	 */
+	public CalendarQueue(int buckets) {
+		final int n = Integer.highestOneBit(Math.max(buckets - 1, 1)) << 1;
+		items = new int[n][4];
+		slots = new long[n][4];
+		sizes = new int[n];
+		mask  = n - 1;
+	}
+
+	/**
+	 * Add an item.
+	 *
+	 * @param item The item to be added.
+	 *
+	 * @param slot The slot at which the item is due.
+	 */
+	public void add(int item, long slot) {
+		final int b = (int) (slot & mask);
+		if (sizes[b] == items[b].length) {
+			items[b] = Arrays.copyOf(items[b], sizes[b] * 2);
+			slots[b] = Arrays.copyOf(slots[b], sizes[b] * 2);
+		}
+		items[b][sizes[b]] = item;
+		slots[b][sizes[b]] = slot;
+		sizes[b]++;
+	}
+
+	/**
+	 * Remove the items due at a slot (or earlier, in the same bucket) from
+	 * the queue.  The items are then obtained via getDue.
+	 *
+	 * @param slot The slot whose items are to be removed.
+	 *
+	 * @return The number of items removed.
+	 */
+	public int drain(long slot) {
+		final int b         = (int) (slot & mask);
+		final int[]  bItems = items[b];
+		final long[] bSlots = slots[b];
+		int count = 0;
+		int kept  = 0;
+		for (int i = 0; (i < sizes[b]); i++) {
+			if (bSlots[i] <= slot) {
+				if (count == due.length) {
+					due = Arrays.copyOf(due, count * 2);
+				}
+				due[count++] = bItems[i];
+			} else {
+				bItems[kept] = bItems[i];
+				bSlots[kept] = bSlots[i];
+				kept++;
+			}
+		}
+		sizes[b] = kept;
+		return count;
+	}
+
+	/**
+	 * Obtain an item removed by the last call to drain.
+	 *
+	 * @param i The number of the item. This value must be in the range
+	 * 0 <= i < the value returned by drain.
+	 *
+	 * @return The item.
+	 */
+	public int getDue(int i) {
+		return due[i];
+	}
+
+	/**
+	 * Remove all items.
+	 */
+	public void clear() {
+		Arrays.fill(sizes, 0);
+	}
+}
@@ -0,0 +1,469 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <p>A host store in which only infected hosts are held individually.
+ * Susceptible and recovered hosts are grouped into cohorts of hosts with
+ * the same immune history, each of which is a history handle and a
+ * count. The memory used by this store therefore depends on the number
+ * of infected hosts and of distinct histories rather than on the size of
+ * the population.</p>
+ *
+ * <p>Cohorts are keyed by history handle, so histories must be interned
+ * (Parameters.internHistories) for hosts with identical histories to
+ * share a cohort. Each cohort holds one reference to its history.</p>
+ *
+ * <p>The hosts of a susceptible or recovered compartment are numbered
+ * cohort by cohort, and a host is found from its index via a Fenwick
+ * tree over the cohort counts. As the hosts of a cohort are alike, the
+ * positions of hosts in these compartments are not preserved: removing a
+ * host may change which host is at other indexes, unlike the swap-remove
+ * semantics of other stores. Swapping two such hosts is only supported
+ * within a cohort. The infected compartment behaves as in other
+ * stores.</p>
+ */
+public class CohortHostStore implements HostStore {
+	/** Initial number of infected hosts and of cohorts. */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** The virus and history of each infected host. */
+	private Virus[] infections = new Virus[INITIAL_CAPACITY];
+	private int[]   histories  = new int[INITIAL_CAPACITY];
+	private int     infected   = 0;
+
+	/** The cohorts of the susceptible and recovered compartments. */
+	private final Cohorts[] cohorts = new Cohorts[] {
+		new Cohorts(), null, new Cohorts()
+	};
+
+	/** The history (urImmunity) of hosts that start with immunity. */
+	private int primedHistory = HistoryArena.EMPTY;
+
+	/** The arena holding the immune histories of the hosts. */
+	private final HistoryArena arena;
+
+	/**
+	 * Create an empty store.
+	 *
+	 * @param arena The arena to hold the immune histories of the hosts.
+	 */
+	public CohortHostStore(HistoryArena arena) {
+		this.arena = arena;
+		if (!Parameters.internHistories) {
+			throw new RuntimeException("hostStore cohort requires internHistories");
+		}
+	}
+
+	@Override
+	public int size(int compartment) {
+		return (compartment == Species.INFECTED) ? infected : cohorts[compartment].total;
+	}
+
+	@Override
+	public void add(int compartment, Virus infection, boolean immune) {
+		int handle = HistoryArena.EMPTY;
+		if (immune) {
+			if (primedHistory == HistoryArena.EMPTY) {
+				primedHistory = arena.append(HistoryArena.EMPTY, Parameters.urImmunity);
+			}
+			handle = primedHistory;
+			arena.retain(handle);
+		}
+		if (compartment == Species.INFECTED) {
+			addInfected(infection, handle);
+		} else {
+			cohorts[compartment].put(handle);
+		}
+	}
+
+	@Override
+	public Host getHost(int compartment, int index) {
+		return new Host(arena, getInfection(compartment, index), getHistory(compartment, index));
+	}
+
+	@Override
+	public Virus getInfection(int compartment, int index) {
+		return (compartment == Species.INFECTED) ? infections[index] : null;
+	}
+
+	@Override
+	public int getHistoryLength(int compartment, int index) {
+		return arena.length(getHistory(compartment, index));
+	}
+
+	@Override
+	public int getHistory(int compartment, int index) {
+		if (compartment == Species.INFECTED) {
+			return histories[index];
+		}
+		final Cohorts list = cohorts[compartment];
+		return list.history[list.find(index)];
+	}
+
+	@Override
+	public double riskOfInfection(Phenotype p, int compartment, int index) {
+		return arena.riskOfInfection(p, getHistory(compartment, index));
+	}
+
+	@Override
+	public void infect(int susIdx, Virus parent, int deme, Environment env) {
+		final Cohorts susceptibles = cohorts[Species.SUSCEPTIBLE];
+		final int handle = susceptibles.take(susceptibles.find(susIdx));
+		final Virus v = new Virus(parent, deme);
+		// Update environmental parameters
+		v.hostInfected();
+		if (v.getNumShedding() == 1) {
+			env.add(v);
+		}
+		addInfected(v, handle);
+	}
+
+	@Override
+	public void recover(int infIdx, int compartment, Environment env) {
+		final Virus v = infections[infIdx];
+		final int handle = arena.append(histories[infIdx], v.getPhenotype());
+		// Update environmental parameters
+		v.hostRecovered();
+		removeInfected(infIdx);
+		cohorts[compartment].put(handle);
+	}
+
+	@Override
+	public void move(int from, int index, int to) {
+		if (from == Species.INFECTED) {
+			if (infections[index] != null) {
+				throw new RuntimeException("Cannot move an infected host out of a cohort store");
+			}
+			final int handle = histories[index];
+			removeInfected(index);
+			cohorts[to].put(handle);
+		} else {
+			final Cohorts list = cohorts[from];
+			final int handle = list.take(list.find(index));
+			if (to == Species.INFECTED) {
+				addInfected(null, handle);
+			} else {
+				cohorts[to].put(handle);
+			}
+		}
+	}
+
+	@Override
+	public void reset(int compartment, int index) {
+		if (compartment == Species.INFECTED) {
+			infections[index] = null;
+			arena.release(histories[index]);
+			histories[index] = HistoryArena.EMPTY;
+		} else {
+			final Cohorts list = cohorts[compartment];
+			arena.release(list.take(list.find(index)));
+			list.put(HistoryArena.EMPTY);
+		}
+	}
+
+	@Override
+	public void makeNaive(int compartment, int index) {
+		if (compartment == Species.INFECTED) {
+			arena.release(histories[index]);
+			removeInfected(index);
+		} else {
+			final Cohorts list = cohorts[compartment];
+			arena.release(list.take(list.find(index)));
+		}
+		cohorts[Species.SUSCEPTIBLE].put(HistoryArena.EMPTY);
+	}
+
+	@Override
+	public void mutate(int infIdx, Environment env) {
+		final Virus v   = infections[infIdx];
+		final Virus mut = v.mutate();
+		// Update number of hosts shedding virus
+		v.hostRecovered();
+		infections[infIdx] = mut;
+		mut.hostInfected();
+	}
+
+	@Override
+	public void swap(int compartment, int i, int j) {
+		if (compartment == Species.INFECTED) {
+			final Virus v = infections[i];
+			infections[i] = infections[j];
+			infections[j] = v;
+			final int handle = histories[i];
+			histories[i] = histories[j];
+			histories[j] = handle;
+		} else if (cohorts[compartment].find(i) != cohorts[compartment].find(j)) {
+			throw new RuntimeException("Cannot swap hosts of different cohorts");
+		}
+	}
+
+	@Override
+	public void removeRandom(int compartment, int count) {
+		if (compartment == Species.INFECTED) {
+			HostStore.super.removeRandom(compartment, count);
+			return;
+		}
+		final Cohorts list = cohorts[compartment];
+		if (count < list.used) {
+			// Few hosts: draw them one at a time
+			for (int i = 0; (i < count); i++) {
+				list.drop(list.find(Random.nextInt(0, list.total - 1)), 1);
+			}
+			return;
+		}
+		final int[] drawn  = list.drawRandom(count);
+		for (int slot = list.used - 1; (slot >= 0); slot--) {
+			list.drop(slot, drawn[slot]);
+		}
+	}
+
+	@Override
+	public void moveRandom(int from, int count, int to) {
+		if (from == Species.INFECTED) {
+			HostStore.super.moveRandom(from, count, to);
+			return;
+		}
+		final Cohorts list = cohorts[from];
+		if (count < list.used) {
+			// Few hosts: draw them one at a time
+			for (int i = 0; (i < count); i++) {
+				move(from, Random.nextInt(0, list.total - 1), to);
+			}
+			return;
+		}
+		final int[] drawn  = list.drawRandom(count);
+		for (int slot = list.used - 1; (slot >= 0); slot--) {
+			if (drawn[slot] == 0) {
+				continue;
+			}
+			if (to == Species.INFECTED) {
+				for (int k = drawn[slot]; (k > 0); k--) {
+					addInfected(null, list.take(slot));
+				}
+			} else {
+				// Move the hosts of the cohort in one step
+				arena.retain(list.history[slot]);
+				cohorts[to].put(list.history[slot], drawn[slot]);
+				list.drop(slot, drawn[slot]);
+			}
+		}
+	}
+
+	@Override
+	public void remove(int compartment, int index) {
+		if (compartment == Species.INFECTED) {
+			arena.release(histories[index]);
+			removeInfected(index);
+		} else {
+			final Cohorts list = cohorts[compartment];
+			arena.release(list.take(list.find(index)));
+		}
+	}
+
+	@Override
+	public void truncate(int compartment, int size) {
+		if (compartment == Species.INFECTED) {
+			for (int i = size; (i < infected); i++) {
+				infections[i] = null;
+				arena.release(histories[i]);
+			}
+			infected = size;
+			return;
+		}
+		// Remove hosts of the last cohorts first
+		final Cohorts list = cohorts[compartment];
+		for (int slot = list.used - 1; (list.total > size); slot--) {
+			list.drop(slot, Math.min(list.count[slot], list.total - size));
+		}
+	}
+
+	@Override
+	public void clear() {
+		truncate(Species.SUSCEPTIBLE, 0);
+		truncate(Species.INFECTED, 0);
+		truncate(Species.RECOVERED, 0);
+		arena.release(primedHistory);
+		primedHistory = HistoryArena.EMPTY;
+	}
+
+	@Override
+	public void printHost(PrintStream stream, int compartment, int index) {
+		final Virus v = getInfection(compartment, index);
+		stream.print((v != null) ? v.getPhenotype() : "n");
+		stream.print(":");
+		getHost(compartment, index).printHistory(stream);
+	}
+
+	//-------------------- Infected hosts -----------------------------//
+
+	private void addInfected(Virus v, int handle) {
+		if (infected == infections.length) {
+			infections = Arrays.copyOf(infections, infected * 2);
+			histories  = Arrays.copyOf(histories, infected * 2);
+		}
+		infections[infected] = v;
+		histories[infected]  = handle;
+		infected++;
+	}
+
+	// Swap-remove, matching Species.remove. The history is not released.
+	private void removeInfected(int index) {
+		final int last = --infected;
+		infections[index] = infections[last];
+		histories[index]  = histories[last];
+		infections[last]  = null;
+	}
+
+	//-------------------- Cohorts ------------------------------------//
+
+	/**
+	 * The cohorts of one compartment. Each cohort occupies a slot; slots
+	 * of cohorts that have become empty are reused.
+	 */
+	private class Cohorts {
+		/** The history and number of hosts of each slot. */
+		int[] history = new int[INITIAL_CAPACITY];
+		int[] count   = new int[INITIAL_CAPACITY];
+
+		/** Fenwick tree over count (whose length is a power of 2). Entries are 1-based. */
+		int[] tree = new int[INITIAL_CAPACITY + 1];
+
+		/** The number of slots that have been used so far. */
+		int used = 0;
+
+		/** The total number of hosts. */
+		int total = 0;
+
+		/** The slot of the cohort with each history. */
+		final HashMap<Integer, Integer> slotOf = new HashMap<Integer, Integer>();
+
+		/** Slots of empty cohorts available for reuse. */
+		int[] freeSlots = new int[INITIAL_CAPACITY];
+		int   freeSlotCount = 0;
+
+		/** The number of hosts drawn from each slot by drawRandom. */
+		int[] drawn = new int[INITIAL_CAPACITY];
+
+		/**
+		 * Add a host with a given history, taking over one reference
+		 * to the history.
+		 */
+		void put(int handle) {
+			put(handle, 1);
+		}
+
+		/**
+		 * Add a number of hosts with a given history, taking over one
+		 * reference to the history.
+		 */
+		void put(int handle, int hosts) {
+			final Integer slot = slotOf.get(handle);
+			if (slot != null) {
+				// The cohort already refers to the history
+				arena.release(handle);
+				add(slot, hosts);
+				return;
+			}
+			final int newSlot = newSlot();
+			history[newSlot] = handle;
+			slotOf.put(handle, newSlot);
+			add(newSlot, hosts);
+		}
+
+		/**
+		 * Remove a number of hosts from a cohort, as on their death.
+		 */
+		void drop(int slot, int hosts) {
+			if (hosts > 0) {
+				arena.release(take(slot, hosts));
+			}
+		}
+
+		/**
+		 * Remove a host from a cohort.
+		 *
+		 * @return The history of the host, with one reference that is
+		 * passed on to the caller.
+		 */
+		int take(int slot) {
+			return take(slot, 1);
+		}
+
+		private int take(int slot, int hosts) {
+			final int handle = history[slot];
+			add(slot, -hosts);
+			if (count[slot] == 0) {
+				// Pass on the reference of the cohort
+				slotOf.remove(handle);
+				history[slot] = HistoryArena.EMPTY;
+				if (freeSlotCount == freeSlots.length) {
+					freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+				}
+				freeSlots[freeSlotCount++] = slot;
+			} else {
+				arena.retain(handle);
+			}
+			return handle;
+		}
+
+		/**
+		 * Find the cohort holding the host with a given index, in the
+		 * range 0 <= index < total.
+		 */
+		int find(int index) {
+			int pos = 0;
+			for (int bit = count.length; (bit > 0); bit >>= 1) {
+				final int next = pos + bit;
+				if ((next < tree.length) && (tree[next] <= index)) {
+					pos    = next;
+					index -= tree[next];
+				}
+			}
+			return pos;
+		}
+
+		/**
+		 * Draw the number of hosts of each cohort in a sample of hosts
+		 * drawn without replacement. This takes time in proportion to
+		 * the number of cohorts.
+		 *
+		 * @return The number of hosts drawn from each slot, in the
+		 * first used entries. The array is reused by the next call.
+		 */
+		int[] drawRandom(int sample) {
+			Sampling.multivariateHypergeometric(Random.getStream(), count, used, sample, drawn);
+			return drawn;
+		}
+
+		private void add(int slot, int delta) {
+			count[slot] += delta;
+			total       += delta;
+			for (int i = slot + 1; (i < tree.length); i += (i & -i)) {
+				tree[i] += delta;
+			}
+		}
+
+		private int newSlot() {
+			if (freeSlotCount > 0) {
+				return freeSlots[--freeSlotCount];
+			}
+			if (used == count.length) {
+				final int cap = used * 2;
+				history = Arrays.copyOf(history, cap);
+				count   = Arrays.copyOf(count, cap);
+				drawn   = new int[cap];
+				// Rebuild the tree for the new range of slots
+				tree = new int[cap + 1];
+				for (int i = 1; (i <= cap); i++) {
+					tree[i] += (i <= used) ? count[i - 1] : 0;
+					final int parent = i + (i & -i);
+					if (parent <= cap) {
+						tree[parent] += tree[i];
+					}
+				}
+			}
+			return used++;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * A block of pre-generated uniform draws for use in hot loops.
+ *
+ * <p>The contact, recovery, and environmental infection loops consume
+ * millions of uniform draws per simulated day.  Rather than obtaining
+ * each one through the Colt distribution wrappers, this class fills a
+ * primitive block in bulk (see RandomStream.nextDoubles) and hands out
+ * entries from it.  Draws are taken in order, so the sequence of values
+ * consumed is fully determined by the stream this buffer draws from.</p>
+ */
+public final class DrawBuffer {
+	/** The number of uniform draws generated each time the block is refilled. */
+	private static final int BLOCK_SIZE = 4096;
+
+	/** The stream from which the block is refilled. */
+	private final RandomStream rng;
+
+	/** The block of pre-generated draws in the range [0, 1). */
+	private final double[] block = new double[BLOCK_SIZE];
+
+	/** Index of the next unused entry in block. */
+	private int pos = BLOCK_SIZE;
+
+	/**
+	 * Create a buffer that draws from the given stream.
+	 *
+	 * @param stream The stream from which blocks of draws are generated.
+	 */
+	public DrawBuffer(RandomStream stream) {
+		rng = stream;
+	}
+
+	/**
+	 * Obtain the next uniform draw.
+	 *
+	 * @return A value in the range [0, 1).
+	 */
+	public double nextDouble() {
+		if (pos == BLOCK_SIZE) {
+			rng.nextDoubles(block, BLOCK_SIZE);
+			pos = 0;
+		}
+		return block[pos++];
+	}
+
+	/**
+	 * Obtain a uniformly distributed index.
+	 *
+	 * @param count The number of entries to choose from. This value must
+	 * be greater than zero.
+	 *
+	 * @return A value in the range 0 &lt;= index &lt; count.
+	 */
+	public int nextIndex(int count) {
+		return (int) (nextDouble() * count);
+	}
+
+	/**
+	 * Obtain a Bernoulli draw.
+	 *
+	 * @param p The probability of returning true.
+	 *
+	 * @return True with probability p.
+	 */
+	public boolean nextBoolean(double p) {
+		return (nextDouble() < p);
+	}
+}
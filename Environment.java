@@ -1,4 +1,6 @@
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -56,14 +58,67 @@ public class Environment {
 	 * are added as the birds get infected by it. Viruses are removed once
 	 * their durability drops below a specified threshold.  
 	 * 
-	 * <p> Note that the reference to the viruses in this list may also exist
-	 * as references in the Host that is shedding the virus.  The host that is
-	 * shedding the virus updates Virus.envVolume indicating the volume of this
-	 * virus in the environment.  This approach (where environmental parameter is
-	 * actually updated by the Host rather than the Environment) is done as 
-	 * a performance optimization</p>  
+	 * <p>Viruses with the same phenotype (strain) share one entry, with 
+	 * the total volume of the strain and the total number of hosts 
+	 * shedding it. The entry keeps the most recently shed virus of the 
+	 * strain as its representative, which is the virus returned when an
+	 * exposure takes up the strain.  The entries are held as a table of
+	 * parallel arrays, and slots freed by removed strains are reused
+	 * (see free), so that the slots held by viruses stay valid.</p>
+	 * 
+	 * <p>Volumes are not updated every day: each day multiplies every 
+	 * volume by the same decay factor and adds the same amount per 
+	 * shedding host, so the volume of entry i is 
+	 * scale * (base[i] + shedding[i] * accrual), where scale and accrual
+	 * are the same for all entries and change daily (see clearViruses).
+	 * An entry only changes when the number of hosts shedding its strain
+	 * changes (see sheddingChanged), so the daily work is proportional to
+	 * the number of such changes and of strains removed, rather than to
+	 * the number of strains.</p>  
 	 */
-	private final ArrayList<Virus> virusList = new ArrayList<Virus>();
+	private Phenotype[] strains  = new Phenotype[16];
+	private Virus[]     viruses  = new Virus[16];
+	private double[]    base     = new double[16];
+	private int[]       shedding = new int[16];
+	private int         slots    = 0;
+	private int         count    = 0;
+
+	/** The slot of the entry of each strain in the environment. */
+	private final IdentityHashMap<Phenotype, Integer> slotOf = 
+			new IdentityHashMap<Phenotype, Integer>();
+
+	/** A stack of the slots below slots that hold no strain. */
+	private int[] free     = new int[16];
+	private int   freeSize = 0;
+
+	/** The factors common to the volumes of all viruses. */
+	private double scale   = 1;
+	private double accrual = 0;
+
+	/** Fenwick trees over base and shedding, so that viruses can be
+	 * drawn in proportion to their volumes (see find). The nodes of both
+	 * are interleaved: node k is at tree[2 * k] and tree[2 * k + 1], for
+	 * 1 <= k <= treeSize, which is a power of two. */
+	private double[] tree     = new double[34];
+	private int      treeSize = 16;
+
+	/** The totals of base and shedding over all viruses. */
+	private double baseTotal     = 0;
+	private double sheddingTotal = 0;
+
+	/** A min-heap of the slots of strains no host sheds, by their base 
+	 * when they stopped being shed. A strain is removed once its volume
+	 * drops below id50, that is once its base drops below id50 / scale. */
+	private double[] heapBase  = new double[16];
+	private int[]    heapSlot  = new int[16];
+	private int      heapSize  = 0;
+
+	/** The doses, relative to id50, that infect with certainty. */
+	private static final double CERTAIN_DOSE = 60;
+
+	/** The scale below which the factors are folded into the bases, 
+	 * before they underflow. */
+	private static final double MIN_SCALE = 1e-100;
 	
 	/**
 	 * A constant to refer to PI * 2
@@ -71,6 +126,9 @@ public class Environment {
 	private final double pi2 = Math.PI * 2;
 	
 	private int maxSize = 0;
+
+	/** The random stream used for drawing viruses from this environment. */
+	private RandomStream rng = Random.getStream();
 	
 	/**
 	 * Constructor to create an object from YAML parameters.
@@ -89,6 +147,15 @@ public class Environment {
 		sheddingRate        = Double.parseDouble(shedRateParam);
 	}
 
+	/**
+	 * Set the random stream to be used by this environment.
+	 *
+	 * @param stream The stream from which this environment draws.
+	 */
+	public void setRandomStream(RandomStream stream) {
+		rng = stream;
+	}
+
 	/**
 	 * Clear the viruses in the environment for the current day. 
 	 *
@@ -103,59 +170,356 @@ public class Environment {
 		double clearRate  = (1.0 + (seasonalAmp * Math.sin(sesnFactor))) / envDurability;
 		clearRate *= step;
 		double shedRate = sheddingRate * step;
-		// Update virus volumes in the environment.
-		int idx = 0;
-		while (idx < virusList.size()) {
-			final Virus v = virusList.get(idx);
-			final double currVol = v.getVolume();
-			final double numShed = v.getNumShedding();
-			// Compute volume of virus for next time step based on current volume,
-			// number of hosts shedding and environment. See Page S-15 in 
-			// http://bedford.io/pdfs/papers/roche-aiv-persistence-supp.pdf
-			double nextVol = shedRate  * numShed / clearRate;
-			nextVol += (Math.exp(-clearRate * 30) * currVol);
-			// Set the new volume of viruses
-			v.setVolume(nextVol);
-			// Remove the virus if needed
-			if ((nextVol < id50) && (numShed == 0)) {
-				// The volume is too low. Remove this virus.
-				final int size  = virusList.size() - 1;
-				Virus lastVirus = virusList.get(size);
-				virusList.set(idx,  lastVirus);
-				virusList.remove(size);
-			} else {
-				idx++;
+		// The volume of virus for next time step based on current volume,
+		// number of hosts shedding and environment is (see Page S-15 in 
+		// http://bedford.io/pdfs/papers/roche-aiv-persistence-supp.pdf)
+		// shedRate * numShed / clearRate + exp(-clearRate * 30) * currVol
+		// for every virus, which is applied to the common factors.
+		scale   *= Math.exp(-clearRate * 30);
+		accrual += shedRate / clearRate / scale;
+		// Remove the strains no host sheds whose volume is too low
+		while ((heapSize > 0) && (heapBase[0] * scale < id50)) {
+			final int slot  = heapSlot[0];
+			final double b  = heapBase[0];
+			popHeap();
+			// Skip strains that were shed again since
+			if ((strains[slot] != null) && (shedding[slot] == 0) && (base[slot] == b)) {
+				remove(slot);
 			}
 		}
-		maxSize = Math.max(maxSize, virusList.size());
+		if (scale < MIN_SCALE) {
+			rescale();
+		}
+		maxSize = Math.max(maxSize, count);
+	}
+
+	/**
+	 * Fold the common factors into the bases of all strains, so that
+	 * scale is 1 again.  This takes time proportional to the number of
+	 * strains, but happens only every few hundred days.
+	 */
+	private void rescale() {
+		for (int i = 0; (i < slots); i++) {
+			base[i] = (base[i] + shedding[i] * accrual) * scale;
+		}
+		// The order of the heap is kept, and its bases still match
+		for (int i = 0; (i < heapSize); i++) {
+			heapBase[i] *= scale;
+		}
+		scale   = 1;
+		accrual = 0;
+		rebuildTrees(treeSize);
 	}
 	
 	/**
 	 * Add a virus to the environment.
 	 * 
 	 * Viruses should be added to the environment only once, the first time a
-	 * host starts shedding it.
+	 * host starts shedding it.  The hosts shedding the virus are added to
+	 * the entry of its strain, which is created with no volume if the
+	 * strain is not in the environment, and the virus becomes the 
+	 * representative of the strain.  Viruses are only recorded if 
+	 * Parameters.shedToEnvironment is set; otherwise the environment stays
+	 * empty, as in earlier versions of the simulation.
 	 * 
 	 * @param v The virus to be added to the environment.
 	 */
 	public void add(Virus v) {
 		assert( v.getNumShedding() == 1);
+		if (!Parameters.shedToEnvironment) {
+			return;
+		}
+		final Integer known = slotOf.get(v.getPhenotype());
+		final int slot      = (known != null) ? known : newSlot(v.getPhenotype());
+		viruses[slot] = v;
+		v.setEnvironmentSlot(slot);
+		sheddingChanged(slot, v.getNumShedding());
+	}
+
+	// make an entry, with no volume or shedding, for a strain
+	private int newSlot(Phenotype strain) {
+		final int slot;
+		if (freeSize > 0) {
+			slot = free[--freeSize];
+		} else {
+			if (slots == strains.length) {
+				strains  = Arrays.copyOf(strains, 2 * slots);
+				viruses  = Arrays.copyOf(viruses, 2 * slots);
+				base     = Arrays.copyOf(base, 2 * slots);
+				shedding = Arrays.copyOf(shedding, 2 * slots);
+			}
+			if (slots == treeSize) {
+				rebuildTrees(2 * slots);
+			}
+			slot = slots++;
+		}
+		strains[slot] = strain;
+		slotOf.put(strain, slot);
+		count++;
+		return slot;
+	}
+
+	/**
+	 * Record a change in the number of hosts shedding a strain in the
+	 * environment. The volume of the strain is unchanged, but from now on
+	 * grows with the new number of hosts.
+	 * 
+	 * @param slot The index of the strain in the environment, as held by
+	 * the viruses added to it.
+	 * 
+	 * @param change The change in the number of hosts shedding the strain.
+	 */
+	public void sheddingChanged(int slot, int change) {
+		final double baseChange = -change * accrual;
+		addToTrees(slot, baseChange, change);
+		base[slot]     += baseChange;
+		shedding[slot] += change;
+		if (shedding[slot] == 0) {
+			pushHeap(base[slot], slot);
+		}
+	}
+
+	// remove the strain in a slot, freeing the slot for reuse
+	private void remove(int slot) {
+		addToTrees(slot, -base[slot], -shedding[slot]);
+		slotOf.remove(strains[slot]);
+		strains[slot]  = null;
+		viruses[slot]  = null;
+		base[slot]     = 0;
+		if (freeSize == free.length) {
+			free = Arrays.copyOf(free, 2 * freeSize);
+		}
+		free[freeSize++] = slot;
+		count--;
 	}
 	
 	/**
-	 * Get a random virus from the environment. 
+	 * Get a random virus from the environment, chosen with probability
+	 * proportional to the volume of its strain.  Strains added since the
+	 * last call to clearViruses have no volume yet, and so are not chosen.
 	 * 
-	 * @return Virus from the environment. If a virus does not exist,
-	 * then this method returns null.
+	 * @return Virus from the environment. If the environment holds no
+	 * volume of any virus, then this method returns null.
 	 */
 	public Virus getVirus() {
-		final int index = Random.nextInt(0, virusList.size());
-		if (index < virusList.size()) {
-			return virusList.get(index);
+		final double total = baseTotal + sheddingTotal * accrual;
+		if (total <= 0) {
+			return null;
+		}
+		return viruses[find(rng.nextDouble() * total)];
+	}
+
+	/**
+	 * Add the viruses representing the strains in the environment to a
+	 * list.
+	 * 
+	 * @param list The list to which the viruses are added.
+	 */
+	public void addViruses(List<Virus> list) {
+		for (int i = 0; (i < slots); i++) {
+			if (strains[i] != null) {
+				list.add(viruses[i]);
+			}
 		}
-		return null;
+	}
+
+	/**
+	 * Obtain the number of strains in the environment.
+	 * 
+	 * @return The number of strains.
+	 */
+	public int getVirusCount() {
+		return count;
+	}
+
+	/**
+	 * Obtain the volume of a strain in the environment, which is typically
+	 * very large (in the range of 1e12).
+	 * 
+	 * @param index The index of the strain, as held by the viruses added
+	 * to it.  Unused indexes have no volume.
+	 * 
+	 * @return The volume of the strain.
+	 */
+	public double getVolume(int index) {
+		return scale * (base[index] + shedding[index] * accrual);
 	}
 	
+	/**
+	 * Obtain the probability that an exposure to a virus in the environment
+	 * infects a (naive) host, given the volume of the virus.  With the
+	 * exponential dose-response model the probability is 1/2 for a dose
+	 * of id50, that is 1 - 0.5^(volume / id50).
+	 * 
+	 * @param volume The volume of the virus.
+	 * 
+	 * @return The probability of infection, in the range 0...1.
+	 */
+	public double getDoseProbability(double volume) {
+		if (volume > CERTAIN_DOSE * id50) {
+			return 1.0;  // 0.5^(volume / id50) is below the precision of 1.0
+		}
+		return 1.0 - Math.pow(0.5, volume / id50);
+	}
+
+	/**
+	 * Obtain a bound on the dose-response probability of the strains in
+	 * the environment, which is that of the total volume.
+	 * 
+	 * @return The bound, in the range 0...1.
+	 */
+	public double getMaxDoseProbability() {
+		return getDoseProbability(scale * (baseTotal + sheddingTotal * accrual));
+	}
+
+	/**
+	 * Get a random virus from the environment that an exposure takes up in
+	 * an infective dose.  This is getVirus() thinned by the dose-response
+	 * probability of the virus.
+	 * 
+	 * @return The virus, or null if the exposure takes up no virus or too
+	 * small a dose.
+	 */
+	public Virus getInfectiveVirus() {
+		return getInfectiveVirus(1.0);
+	}
+
+	/**
+	 * Get a random virus from the environment that an exposure, already
+	 * known to take up a dose with probability maxDose, takes up in an
+	 * infective dose.  This is getVirus() thinned by the dose-response
+	 * probability of the virus divided by maxDose.
+	 * 
+	 * @param maxDose A bound on the dose-response probabilities of the 
+	 * viruses, such as getMaxDoseProbability(). This value must be 
+	 * positive.
+	 * 
+	 * @return The virus, or null if the exposure takes up no virus or too
+	 * small a dose.
+	 */
+	public Virus getInfectiveVirus(double maxDose) {
+		final double total = baseTotal + sheddingTotal * accrual;
+		if (total <= 0) {
+			return null;
+		}
+		final int index = find(rng.nextDouble() * total);
+		final double dose = getDoseProbability(getVolume(index)) / maxDose;
+		if ((dose < 1.0) && !rng.nextBoolean(dose)) {
+			return null;
+		}
+		return viruses[index];
+	}
+
+	/**
+	 * Find the strain at which the running total of base + shedding *
+	 * accrual (the volumes divided by scale) first exceeds a value, in
+	 * time logarithmic in the number of strains.
+	 * 
+	 * @param x The value, in the range 0 <= x < the total.
+	 * 
+	 * @return The index of the strain.
+	 */
+	private int find(double x) {
+		int pos = 0;
+		for (int step = treeSize; (step > 0); step >>= 1) {
+			final int next = pos + step;
+			if (next <= treeSize) {
+				final double weight = tree[2 * next] + tree[2 * next + 1] * accrual;
+				if (weight <= x) {
+					pos = next;
+					x  -= weight;
+				}
+			}
+		}
+		// Guard against rounding past the last strain with some volume
+		while ((pos > 0) && ((pos >= slots) || (getVolume(pos) <= 0))) {
+			pos--;
+		}
+		return pos;
+	}
+
+	// add to the base and shedding of a slot in the Fenwick trees
+	private void addToTrees(int slot, double baseChange, double sheddingChange) {
+		baseTotal     += baseChange;
+		sheddingTotal += sheddingChange;
+		for (int i = slot + 1; (i <= treeSize); i += (i & -i)) {
+			tree[2 * i]     += baseChange;
+			tree[2 * i + 1] += sheddingChange;
+		}
+	}
+
+	// rebuild the Fenwick trees to cover a given number of entries, in linear time
+	private void rebuildTrees(int size) {
+		if (treeSize != size) {
+			tree     = new double[2 * size + 2];
+			treeSize = size;
+		} else {
+			Arrays.fill(tree, 0);
+		}
+		baseTotal     = 0;
+		sheddingTotal = 0;
+		for (int i = 0; (i < slots); i++) {
+			tree[2 * i + 2]     = base[i];
+			tree[2 * i + 3]     = shedding[i];
+			baseTotal          += base[i];
+			sheddingTotal      += shedding[i];
+		}
+		for (int i = 1; (i <= size); i++) {
+			final int parent = i + (i & -i);
+			if (parent <= size) {
+				tree[2 * parent]     += tree[2 * i];
+				tree[2 * parent + 1] += tree[2 * i + 1];
+			}
+		}
+	}
+
+	// add a strain to the heap of strains no host sheds
+	private void pushHeap(double b, int slot) {
+		if (heapSize == heapBase.length) {
+			heapBase  = Arrays.copyOf(heapBase, 2 * heapSize);
+			heapSlot  = Arrays.copyOf(heapSlot, 2 * heapSize);
+		}
+		int i = heapSize++;
+		while (i > 0) {
+			final int parent = (i - 1) / 2;
+			if (heapBase[parent] <= b) {
+				break;
+			}
+			heapBase[i]  = heapBase[parent];
+			heapSlot[i]  = heapSlot[parent];
+			i = parent;
+		}
+		heapBase[i]  = b;
+		heapSlot[i]  = slot;
+	}
+
+	// remove the strain with the smallest base from the heap
+	private void popHeap() {
+		final int last     = --heapSize;
+		final double b     = heapBase[last];
+		final int slot     = heapSlot[last];
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if ((child + 1 < heapSize) && (heapBase[child + 1] < heapBase[child])) {
+				child++;
+			}
+			if (b <= heapBase[child]) {
+				break;
+			}
+			heapBase[i]  = heapBase[child];
+			heapSlot[i]  = heapSlot[child];
+			i = child;
+		}
+		if (heapSize > 0) {
+			heapBase[i]  = b;
+			heapSlot[i]  = slot;
+		}
+	}
+
 	/** 
 	 * Convenience method to override environment parameter settings
 	 * in this object.  The overrides are typically passed-in as
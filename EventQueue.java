@@ -0,0 +1,112 @@
+import java.util.Arrays;
+
+/**
+ * <p>An indexed priority queue of the times of a fixed set of events,
+ * numbered 0...size-1, as used by the next-reaction method of Gibson and
+ * Bruck ("Efficient exact stochastic simulation of chemical systems with
+ * many species and many channels", 2000).</p>
+ *
+ * <p>The queue is a binary min-heap of event numbers together with the
+ * position of each event in the heap, so that the time of any event can
+ * be changed in O(log size). An event that cannot happen has an infinite
+ * time.</p>
+ */
+public class EventQueue {
+	/** The event numbers in heap order. */
+	private final int[] heap;
+
+	/** The position of each event in the heap. */
+	private final int[] position;
+
+	/** The time of each event. */
+	private final double[] times;
+
+	/**
+	 * Create a queue in which no event can happen.
+	 *
+	 * @param size The number of events.
+	 */
+	public EventQueue(int size) {
+		heap     = new int[size];
+		position = new int[size];
+		times    = new double[size];
+		Arrays.fill(times, Double.POSITIVE_INFINITY);
+		for (int i = 0; (i < size); i++) {
+			heap[i] = position[i] = i;
+		}
+	}
+
+	/**
+	 * Obtain the event with the earliest time.
+	 *
+	 * @return The number of the next event.
+	 */
+	public int peek() {
+		return heap[0];
+	}
+
+	/**
+	 * Obtain the time of an event.
+	 *
+	 * @param event The number of the event.
+	 *
+	 * @return The time of the event.
+	 */
+	public double getTime(int event) {
+		return times[event];
+	}
+
+	/**
+	 * Change the time of an event.
+	 *
+	 * @param event The number of the event.
+	 *
+	 * @param time The new time of the event. This value may be infinite.
+	 */
+	public void setTime(int event, double time) {
+		final double old = times[event];
+		times[event] = time;
+		if (time < old) {
+			siftUp(position[event]);
+		} else if (time > old) {
+			siftDown(position[event]);
+		}
+	}
+
+	private void siftUp(int pos) {
+		final int event = heap[pos];
+		while (pos > 0) {
+			final int parent = (pos - 1) >>> 1;
+			if (times[heap[parent]] <= times[event]) {
+				break;
+			}
+			move(heap[parent], pos);
+			pos = parent;
+		}
+		move(event, pos);
+	}
+
+	private void siftDown(int pos) {
+		final int event = heap[pos];
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= heap.length) {
+				break;
+			}
+			if ((child + 1 < heap.length) && (times[heap[child + 1]] < times[heap[child]])) {
+				child++;
+			}
+			if (times[heap[child]] >= times[event]) {
+				break;
+			}
+			move(heap[child], pos);
+			pos = child;
+		}
+		move(event, pos);
+	}
+
+	private void move(int event, int pos) {
+		heap[pos]       = event;
+		position[event] = pos;
+	}
+}
@@ -0,0 +1,23 @@
+/**
+ * A stepper in which every process happens once per step, with a Poisson
+ * number of events (see HostSpeciesPopulation.stepFixed). This is the
+ * original method of the simulation.
+ */
+public class FixedStepper implements Stepper {
+	/** The deme to be advanced. */
+	private final HostSpeciesPopulation deme;
+
+	/**
+	 * Create a stepper for a deme.
+	 *
+	 * @param deme The deme to be advanced.
+	 */
+	public FixedStepper(HostSpeciesPopulation deme) {
+		this.deme = deme;
+	}
+
+	@Override
+	public void stepForward() {
+		deme.stepFixed();
+	}
+}
@@ -0,0 +1,130 @@
+/* In-run compaction of the ancestry of the viruses */
+
+import java.util.List;
+
+/**
+ * <p>Periodic compaction of the genealogy formed by the parent pointers
+ * of viruses.  Every transmission creates a virus whose parent keeps its
+ * whole ancestry reachable, so that the genealogy grows with the total
+ * number of infections.  Most ancestors lie on chains without branches,
+ * which VirusTree.streamline collapses after the simulation anyway.</p>
+ *
+ * <p>The live viruses are the viruses that can still gain descendants
+ * (the infections of hosts and the representatives of strains in the
+ * environment) and the sampled tips of the VirusTree.  New viruses only
+ * descend from live viruses, so an ancestor that is not live and is
+ * reached from exactly one child now has at most one child in the final
+ * tree.  Such an ancestor is removed from the chain by making its child
+ * point to the ancestor's parent.  An ancestor is kept if it is live, if
+ * its phenotype or deme differs from that of its parent or its child, or
+ * if it has no parent, so that the birth times, phenotype changes and 
+ * deme changes printed by VirusTree are preserved.  The children lists
+ * filled by VirusTree.fillBackward then have the same branching nodes,
+ * and VirusTree.streamline removes every unbranched ancestor before the
+ * children are ordered, so that the printed trees do not depend on the
+ * removed ancestors.  Likewise Virus.commonAncestor steps the lineage
+ * born later, so that it finds the same ancestor on shorter chains.</p>
+ *
+ * <p>The parents of live viruses are never changed, so that their serial
+ * intervals are preserved.  Neither are the parents of viruses born
+ * after a given horizon, so that the walks of Virus.coalescence within
+ * Parameters.netauWindow of the current infections visit the same
+ * ancestors.  Compaction is enabled via Parameters.genealogyCompaction,
+ * and applies to viruses that refer to their parents, not to the nodes
+ * of the GenealogyArena.
+ * During compaction the coverage and marked fields of viruses, which are
+ * only used after the simulation, serve as scratch space and are dropped
+ * afterwards.  This is a completely static class.</p>
+ */
+public class Genealogy {
+	/** The total number of ancestors removed so far. */
+	private static long removed = 0;
+
+	/**
+	 * Remove the ancestors on chains without branches from the genealogy
+	 * of a set of live viruses, in time proportional to the number of
+	 * ancestors reachable from the live viruses.
+	 *
+	 * @param live The live viruses. Viruses may be listed more than once.
+	 *
+	 * @param horizon The birth (in years) after which viruses keep their
+	 * parent.
+	 *
+	 * @return The number of ancestors removed.
+	 */
+	public static int compact(List<Virus> live, double horizon) {
+		// Count the reached children of each ancestor as coverage - 1
+		for (Virus v : live) {
+			v.mark();
+			countChildren(v);
+		}
+		int count = 0;
+		for (Virus v : live) {
+			count += splice(v, horizon);
+		}
+		// Reset the scratch fields of the remaining ancestors
+		for (Virus v : live) {
+			while ((v != null) && (v.getCoverage() != 0)) {
+				v.clearReconstruction();
+				v = v.getParent();
+			}
+		}
+		removed += count;
+		return count;
+	}
+
+	/**
+	 * Obtain the total number of ancestors removed by compact().
+	 *
+	 * @return The number of ancestors removed so far.
+	 */
+	public static long getRemoved() {
+		return removed;
+	}
+
+	// walk up from a virus not seen before, counting the children reaching each ancestor
+	private static void countChildren(Virus v) {
+		if (v.getCoverage() > 0) {
+			return;    // Already reached from a descendant
+		}
+		v.setCoverage(1);
+		for (Virus p = v.getParent(); (p != null); p = p.getParent()) {
+			if (p.getCoverage() > 0) {
+				p.incrementCoverage();
+				return;
+			}
+			p.setCoverage(2);
+		}
+	}
+
+	// walk up from a virus, removing the ancestors that can be removed
+	private static int splice(Virus v, double horizon) {
+		int count = 0;
+		// Visited viruses have their coverage negated
+		while ((v != null) && (v.getCoverage() > 0)) {
+			if (!v.isMarked() && (v.getBirth() < horizon)) {
+				Virus p = v.getParent();
+				while ((p != null) && removable(p, v)) {
+					p = p.getParent();
+					count++;
+				}
+				v.setParent(p);
+			}
+			v.setCoverage(-v.getCoverage());
+			v = v.getParent();
+		}
+		return count;
+	}
+
+	// determine if an ancestor can be removed from the chain above a child
+	private static boolean removable(Virus p, Virus child) {
+		final Virus gp = p.getParent();
+		return (p.getCoverage() == 2) && !p.isMarked() && (gp != null) &&
+				sameLineage(gp, p) && sameLineage(p, child);
+	}
+
+	// determine if a virus has the phenotype and deme of its parent
+	private static boolean sameLineage(Virus parent, Virus v) {
+		return (parent.getPhenotype() == v.getPhenotype()) && (parent.getDeme() == v.getDeme());
+	}
+}
@@ -0,0 +1,624 @@
+/* Shared primitive storage for the ancestry of the viruses */
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>An arena holding the genealogy of all viruses as nodes in primitive
+ * columns: the parent, birth, deme and phenotype of each node.  A node
+ * is referred to by an int id, which is held by the Virus it was created
+ * for.  Columns are split in chunks, so that the arena grows without
+ * copying them.  A node costs 18 bytes (the phenotype column holds
+ * references, which are as small as ids with compressed oops), rather
+ * than a Virus object with its children list.</p>
+ *
+ * <p>The arena is used if Parameters.genealogyStore is "arena";
+ * otherwise each Virus refers to its parent directly, as in earlier
+ * versions of the simulation.  In the arena a Virus does not refer to
+ * its parent, so the Virus objects of past infections are reclaimed by
+ * the garbage collector.  The nodes of dead lineages are reclaimed by a
+ * mark-sweep collection (see collect) rooted at the live viruses,
+ * whose ids are then reused.  Virus.getParent materializes the parent
+ * node as a Virus, the same object for every call, which is only done
+ * when reconstructing the tree after the simulation (see register).
+ * The genealogy methods of Virus used during the simulation walk node
+ * ids instead (see commonAncestor, coalescence).</p>
+ *
+ * <p>If Parameters.genealogyLazyNodes is set, a virus created from a 
+ * parent does not get a node until it needs one: when it becomes the 
+ * parent of another virus (by transmission or mutation, within or 
+ * across demes), or when it is compared with other viruses or 
+ * registered, as the sampled tips are.  Until then it holds its parent
+ * Virus, which does have a node, and its own birth, so that the node 
+ * made later is the node that would have been made at its birth.  The
+ * infections that end without passing on their lineage never get a
+ * node.</p>
+ *
+ * <p>If Parameters.genealogySpillYears is positive, collections also 
+ * move the nodes that are older than that many years and are not 
+ * between the infections and their most recent common ancestor out of
+ * the heap, into the GenealogySpill, so that the heap does not grow 
+ * with the length of the simulation.  Such nodes have ids below 
+ * SPILLED and stay readable.  The spill is never collected, so a node
+ * on the heap that is the parent of a spilled node is pinned: it is 
+ * always marked, and is never moved.</p>
+ *
+ * <p>A simulation has one arena (see SimulationSpecies), which every 
+ * Virus descended from the urVirus refers to.  The arena is split into
+ * a partition for each deme, and a node is added to the partition of 
+ * the deme that creates it, so that demes stepping concurrently do not
+ * write to the same columns.  A node id holds its partition in its low
+ * bits.  Collections and the reconstruction of the tree work on all 
+ * partitions, and are done between steps.</p>
+ */
+public class GenealogyArena {
+	/** The parent of a node without parent, and of an unused node. */
+	public static final int NONE = -1;
+	private static final int FREE = -2;
+
+	/** The id of the first node in the GenealogySpill; later nodes count down. */
+	private static final int SPILLED = -3;
+
+	/** log2 of the number of nodes in a chunk. */
+	private static final int CHUNK_BITS = 14;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/** The nodes added by each deme. */
+	private final Partition[] partitions;
+
+	/** The bits of a node id holding its partition, and their mask. */
+	private final int partitionBits;
+	private final int partitionMask;
+
+	/** The nodes moved out of the heap, or null until nodes are moved. */
+	private GenealogySpill spill = null;
+
+	/** The Virus materialized for each node in the GenealogySpill. */
+	private final HashMap<Integer, Virus> spilledHandles = new HashMap<Integer, Virus>();
+
+	/** The nodes in use after the last collection. */
+	private int liveAfterCollect = 0;
+
+	/**
+	 * The nodes added by one deme, whose ids are local to the partition.
+	 */
+	private static class Partition {
+		/** The columns of the nodes, one array per chunk. */
+		int[][]       parents    = new int[0][];
+		double[][]    births     = new double[0][];
+		short[][]     demes      = new short[0][];
+		Phenotype[][] phenotypes = new Phenotype[0][];
+
+		/** The Virus materialized for each node, allocated per chunk on use. */
+		Virus[][] handles = new Virus[0][];
+
+		/** The nodes that are parents of nodes in the GenealogySpill. */
+		long[] pinned = new long[0];
+
+		/** The next node never used. */
+		int top = 0;
+
+		/** Nodes reclaimed by collect(). */
+		int[] freeNodes = new int[1024];
+		int   freeCount = 0;
+
+		/** The nodes added since the last collection. */
+		int addedSinceCollect = 0;
+
+		void addChunk() {
+			final int chunk = parents.length;
+			parents    = Arrays.copyOf(parents, chunk + 1);
+			births     = Arrays.copyOf(births, chunk + 1);
+			demes      = Arrays.copyOf(demes, chunk + 1);
+			phenotypes = Arrays.copyOf(phenotypes, chunk + 1);
+			handles    = Arrays.copyOf(handles, chunk + 1);
+			parents[chunk]    = new int[CHUNK_SIZE];
+			births[chunk]     = new double[CHUNK_SIZE];
+			demes[chunk]      = new short[CHUNK_SIZE];
+			phenotypes[chunk] = new Phenotype[CHUNK_SIZE];
+		}
+	}
+
+	/**
+	 * Create an empty arena.
+	 *
+	 * @param demeCount The number of demes, each of which gets a
+	 * partition.
+	 */
+	public GenealogyArena(int demeCount) {
+		partitions = new Partition[demeCount];
+		for (int i = 0; (i < demeCount); i++) {
+			partitions[i] = new Partition();
+		}
+		partitionBits = 32 - Integer.numberOfLeadingZeros(Math.max(demeCount - 1, 0));
+		partitionMask = (1 << partitionBits) - 1;
+	}
+
+	/**
+	 * Determine if the arena is in use.
+	 *
+	 * @return true if Parameters.genealogyStore is "arena".
+	 */
+	public static boolean isEnabled() {
+		return "arena".equals(Parameters.genealogyStore);
+	}
+
+	/**
+	 * Add a node to the genealogy.
+	 *
+	 * @param partition The partition to which the node is added, that of
+	 * the deme adding it.
+	 *
+	 * @param parent The id of the parent node, or NONE.
+	 *
+	 * @param birth The birth of the virus, in years.
+	 *
+	 * @param deme The deme of the virus.
+	 *
+	 * @param p The phenotype of the virus.
+	 *
+	 * @return The id of the new node.
+	 */
+	public int add(int partition, int parent, double birth, int deme, Phenotype p) {
+		final Partition part = partitions[partition];
+		final int local;
+		if (part.freeCount > 0) {
+			local = part.freeNodes[--part.freeCount];
+		} else {
+			if ((part.top >>> CHUNK_BITS) == part.parents.length) {
+				part.addChunk();
+			}
+			local = part.top++;
+		}
+		final int chunk = local >>> CHUNK_BITS;
+		final int index = local & CHUNK_MASK;
+		part.parents[chunk][index]    = parent;
+		part.births[chunk][index]     = birth;
+		part.demes[chunk][index]      = (short) deme;
+		part.phenotypes[chunk][index] = p;
+		part.addedSinceCollect++;
+		return (local << partitionBits) | partition;
+	}
+
+	/**
+	 * Obtain the node of a virus, adding a node for it (and its ancestors)
+	 * if it was created before the arena was used, as is the urVirus, or
+	 * if its node was deferred (see Parameters.genealogyLazyNodes).
+	 *
+	 * @param v The virus.
+	 *
+	 * @param partition The partition to which missing nodes are added,
+	 * that of the deme asking for the node.
+	 *
+	 * @return The id of the node of the virus.
+	 */
+	public int nodeOf(Virus v, int partition) {
+		if (v.getNode() == NONE) {
+			final Virus p = v.getParent();
+			v.setNode(add(partition, (p == null) ? NONE : nodeOf(p, partition), v.getBirth(), 
+					v.getDeme(), v.getPhenotype()));
+			if ((p != null) && Parameters.genealogyLazyNodes) {
+				v.setParent(null);    // Only the node holds the parent now
+			} else {
+				register(v);
+			}
+		}
+		return v.getNode();
+	}
+
+	/**
+	 * Obtain the node of a virus, adding missing nodes to the partition of
+	 * the deme of the virus.  This method is used between steps.
+	 *
+	 * @param v The virus.
+	 *
+	 * @return The id of the node of the virus.
+	 */
+	public int nodeOf(Virus v) {
+		return nodeOf(v, v.getDeme());
+	}
+
+	// the node of a virus, or that of its parent if its node is deferred
+	private static int lineageOf(Virus v) {
+		if (v.getNode() != NONE) {
+			return v.getNode();
+		}
+		final Virus p = v.getParent();
+		return (p == null) ? NONE : p.getNode();
+	}
+
+	public int getParent(int node) {
+		if (node < 0) {
+			return spill.getParent(SPILLED - node);
+		}
+		final int local = node >>> partitionBits;
+		return partitions[node & partitionMask].parents[local >>> CHUNK_BITS][local & CHUNK_MASK];
+	}
+
+	private void setParent(int node, int parent) {
+		final int local = node >>> partitionBits;
+		partitions[node & partitionMask].parents[local >>> CHUNK_BITS][local & CHUNK_MASK] = parent;
+	}
+
+	public double getBirth(int node) {
+		if (node < 0) {
+			return spill.getBirth(SPILLED - node);
+		}
+		final int local = node >>> partitionBits;
+		return partitions[node & partitionMask].births[local >>> CHUNK_BITS][local & CHUNK_MASK];
+	}
+
+	public int getDeme(int node) {
+		if (node < 0) {
+			return spill.getDeme(SPILLED - node);
+		}
+		final int local = node >>> partitionBits;
+		return partitions[node & partitionMask].demes[local >>> CHUNK_BITS][local & CHUNK_MASK];
+	}
+
+	public Phenotype getPhenotype(int node) {
+		// A spilled node that inherits its phenotype has that of its parent
+		while ((node < 0) && spill.inheritsPhenotype(SPILLED - node)) {
+			node = spill.getParent(SPILLED - node);
+		}
+		if (node < 0) {
+			return spill.getPhenotype(SPILLED - node);
+		}
+		final int local = node >>> partitionBits;
+		return partitions[node & partitionMask].phenotypes[local >>> CHUNK_BITS][local & CHUNK_MASK];
+	}
+
+	/**
+	 * Obtain the Virus of a node, materializing it if no Virus has been
+	 * obtained or registered for the node.
+	 *
+	 * @param node The id of the node.
+	 *
+	 * @return The Virus of the node, the same object for every call.
+	 */
+	public Virus getVirus(int node) {
+		Virus v = getHandle(node);
+		if (v == null) {
+			v = new Virus(this, node);
+			setHandle(node, v);
+		}
+		return v;
+	}
+
+	/**
+	 * Make a virus the Virus of its node, so that getVirus() and thus
+	 * Virus.getParent() return it.  The sampled tips and current
+	 * infections are registered before the tree is reconstructed.
+	 *
+	 * @param v The virus, whose node is added if it was deferred.
+	 */
+	public void register(Virus v) {
+		setHandle(nodeOf(v), v);
+	}
+
+	private Virus getHandle(int node) {
+		if (node < 0) {
+			return spilledHandles.get(node);
+		}
+		final int local = node >>> partitionBits;
+		final Virus[] chunk = partitions[node & partitionMask].handles[local >>> CHUNK_BITS];
+		return (chunk == null) ? null : chunk[local & CHUNK_MASK];
+	}
+
+	// set the handle of a node, allocating the chunk of handles on first use
+	private void setHandle(int node, Virus v) {
+		if (node < 0) {
+			spilledHandles.put(node, v);
+			return;
+		}
+		final Virus[][] handles = partitions[node & partitionMask].handles;
+		final int local = node >>> partitionBits;
+		final int chunk = local >>> CHUNK_BITS;
+		if (handles[chunk] == null) {
+			handles[chunk] = new Virus[CHUNK_SIZE];
+		}
+		handles[chunk][local & CHUNK_MASK] = v;
+	}
+
+	/**
+	 * Obtain the number of nodes in use.
+	 *
+	 * @return The number of nodes, including dead nodes not yet collected.
+	 */
+	public int size() {
+		int size = 0;
+		for (Partition part : partitions) {
+			size += part.top - part.freeCount;
+		}
+		return size;
+	}
+
+	/**
+	 * Determine if enough nodes were added since the last collection for
+	 * another one to be worthwhile, so that collections take amortized
+	 * constant time per node added.
+	 *
+	 * @return true if collect() should be called.
+	 */
+	public boolean needsCollection() {
+		int added = 0;
+		for (Partition part : partitions) {
+			added += part.addedSinceCollect;
+		}
+		return added > Math.max(liveAfterCollect, CHUNK_SIZE);
+	}
+
+	/**
+	 * Reclaim the nodes that are not ancestors of (or the nodes of) a set
+	 * of live viruses, and move old nodes to the GenealogySpill if it is
+	 * used.  Viruses without a node are ignored.
+	 *
+	 * @param live The viruses that can still gain descendants or are
+	 * sampled. Viruses may be listed more than once.
+	 *
+	 * @param infections The number of viruses at the start of live that
+	 * infect hosts.
+	 *
+	 * @return The number of nodes reclaimed or moved.
+	 */
+	public int collect(List<Virus> live, int infections) {
+		final long[][] marks = newBits();
+		for (Virus v : live) {
+			mark(marks, lineageOf(v));
+		}
+		for (int p = 0; (p < partitions.length); p++) {
+			for (int local = 0; (local < partitions[p].top); local++) {
+				final int node = (local << partitionBits) | p;
+				if (isPinned(node)) {
+					mark(marks, node);
+				}
+			}
+		}
+		if ((Parameters.genealogySpillYears > 0) && (infections > 0)) {
+			spill(live, infections, marks);
+		}
+		int count = 0;
+		for (int p = 0; (p < partitions.length); p++) {
+			final Partition part = partitions[p];
+			for (int local = 0; (local < part.top); local++) {
+				final int chunk = local >>> CHUNK_BITS;
+				final int index = local & CHUNK_MASK;
+				if ((part.parents[chunk][index] != FREE) && ((marks[p][local >>> 6] & (1L << local)) == 0)) {
+					part.parents[chunk][index]    = FREE;
+					part.phenotypes[chunk][index] = null;
+					if (part.handles[chunk] != null) {
+						part.handles[chunk][index] = null;
+					}
+					if (part.freeCount == part.freeNodes.length) {
+						part.freeNodes = Arrays.copyOf(part.freeNodes, 2 * part.freeCount);
+					}
+					part.freeNodes[part.freeCount++] = local;
+					count++;
+				}
+			}
+			part.addedSinceCollect = 0;
+		}
+		liveAfterCollect = size();
+		return count;
+	}
+
+	// mark a node and its ancestors on the heap
+	private void mark(long[][] marks, int node) {
+		for (; (node >= 0); node = getParent(node)) {
+			if (isSet(marks, node)) {
+				break;
+			}
+			set(marks, node);
+		}
+	}
+
+	/**
+	 * Move the marked nodes that are old, are not pinned and are not 
+	 * between the infections and their most recent common ancestor to
+	 * the GenealogySpill, and unmark them so that they are reclaimed.
+	 * Parents are moved before their children, and pinned if they stay.
+	 */
+	private void spill(List<Virus> live, int infections, long[][] marks) {
+		final double horizon = Parameters.getDate() - Parameters.genealogySpillYears;
+		if (spill == null) {
+			spill = new GenealogySpill(new File(Parameters.outputDir, "genealogy.spill"));
+		}
+		// Find where the lineages of the infections join that of the first
+		final HashMap<Integer, Integer> pathPos = new HashMap<Integer, Integer>();
+		int pathLength = 0;
+		for (int node = lineageOf(live.get(0)); (node >= 0); node = getParent(node)) {
+			pathPos.put(node, pathLength++);
+		}
+		final long[][] active = newBits();
+		int mrcaPos = 0;
+		for (int i = 1; (i < infections); i++) {
+			int node = lineageOf(live.get(i));
+			while ((node >= 0) && !isSet(active, node) && !pathPos.containsKey(node)) {
+				set(active, node);
+				node = getParent(node);
+			}
+			if (node < 0) {
+				mrcaPos = pathLength;    // They join in the spill
+			} else if (!isSet(active, node)) {
+				mrcaPos = Math.max(mrcaPos, pathPos.get(node));
+			}
+		}
+		int node = lineageOf(live.get(0));
+		for (int pos = 0; ((pos <= mrcaPos) && (node >= 0)); pos++) {
+			set(active, node);
+			node = getParent(node);
+		}
+		// Move nodes from the oldest down, so that parents move first
+		final HashMap<Integer, Integer> movedTo = new HashMap<Integer, Integer>();
+		final long[][] decided = newBits();
+		int[] stack = new int[64];
+		for (int p = 0; (p < partitions.length); p++) {
+			for (int local = 0; (local < partitions[p].top); local++) {
+				final int n = (local << partitionBits) | p;
+				if (!isSet(marks, n) || isSet(decided, n)) {
+					continue;
+				}
+				int size = 0;
+				for (node = n; ((node >= 0) && !isSet(decided, node)); node = getParent(node)) {
+					if (size == stack.length) {
+						stack = Arrays.copyOf(stack, 2 * size);
+					}
+					stack[size++] = node;
+				}
+				while (size > 0) {
+					final int m = stack[--size];
+					set(decided, m);
+					if (!isSet(active, m) && !isPinned(m) && (getBirth(m) < horizon)) {
+						int parent = getParent(m);
+						final boolean inherits = (parent != NONE) && (getPhenotype(parent) == getPhenotype(m));
+						if (movedTo.containsKey(parent)) {
+							parent = movedTo.get(parent);
+						} else if (parent >= 0) {
+							pin(parent);
+						}
+						final int index = spill.append(parent, getBirth(m), getDeme(m), getPhenotype(m),
+								inherits);
+						movedTo.put(m, SPILLED - index);
+						clear(marks, m);
+					}
+				}
+			}
+		}
+		if (movedTo.isEmpty()) {
+			return;
+		}
+		// Refer to the moved nodes by their new ids
+		for (int p = 0; (p < partitions.length); p++) {
+			for (int local = 0; (local < partitions[p].top); local++) {
+				final int n = (local << partitionBits) | p;
+				if (isSet(marks, n)) {
+					final Integer parent = movedTo.get(getParent(n));
+					if (parent != null) {
+						setParent(n, parent);
+					}
+				}
+			}
+		}
+		for (Virus v : live) {
+			if (v.getNode() != NONE) {
+				moveVirus(v, movedTo);
+			} else if (v.getParent() != null) {
+				moveVirus(v.getParent(), movedTo);    // The virus holds its parent
+			}
+		}
+	}
+
+	// give a virus the new id of its node if the node was moved
+	private void moveVirus(Virus v, HashMap<Integer, Integer> movedTo) {
+		final Integer moved = movedTo.get(v.getNode());
+		if (moved != null) {
+			final boolean registered = (getHandle(v.getNode()) == v);
+			v.setNode(moved);
+			if (registered) {
+				register(v);
+			}
+		}
+	}
+
+	private boolean isPinned(int node) {
+		final long[] pinned = partitions[node & partitionMask].pinned;
+		final int local = node >>> partitionBits;
+		return ((local >>> 6) < pinned.length) && ((pinned[local >>> 6] & (1L << local)) != 0);
+	}
+
+	private void pin(int node) {
+		final Partition part = partitions[node & partitionMask];
+		final int local = node >>> partitionBits;
+		if ((local >>> 6) >= part.pinned.length) {
+			part.pinned = Arrays.copyOf(part.pinned, (part.top >>> 6) + 1);
+		}
+		part.pinned[local >>> 6] |= (1L << local);
+	}
+
+	// a bit set over the nodes of each partition
+	private long[][] newBits() {
+		final long[][] bits = new long[partitions.length][];
+		for (int p = 0; (p < partitions.length); p++) {
+			bits[p] = new long[(partitions[p].top >>> 6) + 1];
+		}
+		return bits;
+	}
+
+	private boolean isSet(long[][] bits, int node) {
+		final int local = node >>> partitionBits;
+		return (bits[node & partitionMask][local >>> 6] & (1L << local)) != 0;
+	}
+
+	private void set(long[][] bits, int node) {
+		final int local = node >>> partitionBits;
+		bits[node & partitionMask][local >>> 6] |= (1L << local);
+	}
+
+	private void clear(long[][] bits, int node) {
+		final int local = node >>> partitionBits;
+		bits[node & partitionMask][local >>> 6] &= ~(1L << local);
+	}
+
+	/**
+	 * Find the common ancestor of two nodes, walking both lineages as
+	 * Virus.commonAncestor does.
+	 *
+	 * @return The id of the common ancestor, or NONE.
+	 */
+	public int commonAncestor(int lineageA, int lineageB) {
+		final Set<Integer> ancestry = new HashSet<Integer>();
+		ancestry.add(lineageA);
+		if (!ancestry.add(lineageB)) {
+			return lineageB;
+		}
+		while (true) {
+			if ((getParent(lineageB) == NONE) ||
+					((getParent(lineageA) != NONE) && (getBirth(lineageA) >= getBirth(lineageB)))) {
+				if (getParent(lineageA) == NONE) {
+					return NONE;
+				}
+				lineageA = getParent(lineageA);
+				if (!ancestry.add(lineageA)) {
+					return lineageA;
+				}
+			} else {
+				lineageB = getParent(lineageB);
+				if (!ancestry.add(lineageB)) {
+					return lineageB;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determine if the lineages of two nodes coalesce within a window of
+	 * time, walking both lineages as Virus.coalescence does.
+	 *
+	 * @return 1.0 if the lineages coalesce, otherwise 0.0.
+	 */
+	public double coalescence(int lineageA, int lineageB, double windowTime) {
+		final Set<Integer> ancestry = new HashSet<Integer>();
+		double startTime = getBirth(lineageA);
+		double time = startTime;
+		while ((time > startTime - windowTime) && (getParent(lineageA) != NONE)) {
+			lineageA = getParent(lineageA);
+			time = getBirth(lineageA);
+			ancestry.add(lineageA);
+		}
+		startTime = getBirth(lineageB);
+		time = startTime;
+		while ((time > startTime - windowTime) && (getParent(lineageB) != NONE)) {
+			lineageB = getParent(lineageB);
+			time = getBirth(lineageB);
+			if (!ancestry.add(lineageB)) {
+				return 1.0;
+			}
+		}
+		return 0.0;
+	}
+}
@@ -0,0 +1,198 @@
+/* Append-only file holding old nodes of the genealogy arena */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <p>The nodes of the GenealogyArena moved out of the heap (see
+ * GenealogyArena.collect), held in an append-only file that is memory
+ * mapped in segments.  A node is never changed once written, and is
+ * referred to by its index in the file.  Each record holds the parent
+ * (an id of the GenealogyArena), the deme, the birth, and the traits of
+ * the phenotype, so nothing of a spilled node needs to stay on the heap.
+ * Only geometric phenotypes can be spilled.</p>
+ *
+ * <p>Viruses share the phenotype object of their parent unless they are
+ * mutants, and VirusTree detects mutations by comparing phenotypes by
+ * identity, so phenotypes cannot simply be rebuilt from their traits
+ * (on a lattice of mutations, distinct phenotypes often have the same
+ * traits).  A record therefore also notes if the node inherits the 
+ * phenotype of its parent, in which case the phenotype is that of the
+ * parent (see GenealogyArena.getPhenotype).  The phenotype of a mutant
+ * is held through a weak reference, so that a mutant faulted back gets
+ * the phenotype still held on the heap by its descendants, if any, and
+ * is otherwise rebuilt from its traits.</p>
+ *
+ * <p>The file (Parameters.outputDir/genealogy.spill for the arena of a
+ * simulation) is deleted when the simulation exits.  Reads are served by
+ * the mapped segments, so records are only faulted back into memory when
+ * they are used, as when the tree is reconstructed after the simulation.
+ * Each GenealogyArena creates its spill when it first moves nodes.</p>
+ */
+public class GenealogySpill {
+	/** The bytes of a record: parent, deme, birth, traitA and traitB. */
+	private static final int RECORD = 4 + 4 + 8 + 8 + 8;
+
+	/** The bit of the deme field set for nodes that inherit the phenotype of their parent. */
+	private static final int INHERITS = 1 << 31;
+
+	/** The records in a mapped segment of the file. */
+	private static final int SEGMENT_RECORDS = 1 << 22;
+
+	/** The file holding the records, created on the first append. */
+	private final File file;
+
+	private FileChannel channel = null;
+	private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+	/** The number of records in the file. */
+	private int count = 0;
+
+	/** The phenotypes of mutant records still on the heap, by index. */
+	private final HashMap<Integer, Held> held = new HashMap<Integer, Held>();
+	private final ReferenceQueue<Phenotype> cleared = new ReferenceQueue<Phenotype>();
+
+	/** A weak reference to the phenotype of a record, removed once it is cleared. */
+	private static final class Held extends WeakReference<Phenotype> {
+		private final int index;
+
+		Held(Phenotype p, int index, ReferenceQueue<Phenotype> queue) {
+			super(p, queue);
+			this.index = index;
+		}
+	}
+
+	/**
+	 * Create an empty spill.
+	 *
+	 * @param file The file to hold the records, which is replaced.
+	 */
+	public GenealogySpill(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Append a node to the file.
+	 *
+	 * @param parent The id of the parent of the node in the GenealogyArena.
+	 *
+	 * @param birth The birth of the node, in years.
+	 *
+	 * @param deme The deme of the node.
+	 *
+	 * @param p The phenotype of the node, which must be a GeometricPhenotype.
+	 *
+	 * @param inherits Whether p is the phenotype object of the parent.
+	 *
+	 * @return The index of the node in the file.
+	 */
+	public int append(int parent, double birth, int deme, Phenotype p, boolean inherits) {
+		if (!(p instanceof GeometricPhenotype)) {
+			throw new RuntimeException("genealogySpillYears requires the geometric phenotypeSpace");
+		}
+		final GeometricPhenotype gp = (GeometricPhenotype) p;
+		final int index = count++;
+		final MappedByteBuffer segment = segment(index);
+		final int offset = (index % SEGMENT_RECORDS) * RECORD;
+		segment.putInt(offset, parent);
+		segment.putInt(offset + 4, inherits ? (deme | INHERITS) : deme);
+		segment.putDouble(offset + 8, birth);
+		segment.putDouble(offset + 16, gp.getTraitA());
+		segment.putDouble(offset + 24, gp.getTraitB());
+		if (!inherits) {
+			hold(index, p);
+		}
+		return index;
+	}
+
+	public int getParent(int index) {
+		return segments[index / SEGMENT_RECORDS].getInt((index % SEGMENT_RECORDS) * RECORD);
+	}
+
+	public int getDeme(int index) {
+		return segments[index / SEGMENT_RECORDS].getInt((index % SEGMENT_RECORDS) * RECORD + 4) & ~INHERITS;
+	}
+
+	public double getBirth(int index) {
+		return segments[index / SEGMENT_RECORDS].getDouble((index % SEGMENT_RECORDS) * RECORD + 8);
+	}
+
+	/**
+	 * Determine if a node has the phenotype object of its parent.
+	 *
+	 * @param index The index of the node in the file.
+	 *
+	 * @return true if the phenotype is that of the parent.
+	 */
+	public boolean inheritsPhenotype(int index) {
+		return (segments[index / SEGMENT_RECORDS].getInt((index % SEGMENT_RECORDS) * RECORD + 4) & INHERITS) != 0;
+	}
+
+	/**
+	 * Obtain the phenotype of a node that does not inherit the phenotype
+	 * of its parent, rebuilding it from its traits if it is no longer held.
+	 *
+	 * @param index The index of the node in the file.
+	 *
+	 * @return The phenotype, the same object while it is held.
+	 */
+	public Phenotype getPhenotype(int index) {
+		final Held ref = held.get(index);
+		Phenotype p = (ref == null) ? null : ref.get();
+		if (p == null) {
+			final MappedByteBuffer segment = segments[index / SEGMENT_RECORDS];
+			final int offset = (index % SEGMENT_RECORDS) * RECORD;
+			p = new GeometricPhenotype(segment.getDouble(offset + 16), segment.getDouble(offset + 24));
+			hold(index, p);
+		}
+		return p;
+	}
+
+	// refer weakly to the phenotype of a record, dropping cleared references
+	private void hold(int index, Phenotype p) {
+		for (Reference<? extends Phenotype> ref; ((ref = cleared.poll()) != null); ) {
+			final Held gone = (Held) ref;
+			if (held.get(gone.index) == gone) {
+				held.remove(gone.index);
+			}
+		}
+		held.put(index, new Held(p, index, cleared));
+	}
+
+	/**
+	 * Obtain the number of nodes in the file.
+	 *
+	 * @return The number of nodes.
+	 */
+	public int size() {
+		return count;
+	}
+
+	// the segment holding a record, mapping a new segment at the end of the file
+	private MappedByteBuffer segment(int index) {
+		final int seg = index / SEGMENT_RECORDS;
+		if (seg == segments.length) {
+			try {
+				if (channel == null) {
+					file.delete();
+					file.deleteOnExit();
+					channel = new RandomAccessFile(file, "rw").getChannel();
+				}
+				segments = Arrays.copyOf(segments, seg + 1);
+				segments[seg] = channel.map(FileChannel.MapMode.READ_WRITE,
+						(long) seg * SEGMENT_RECORDS * RECORD, (long) SEGMENT_RECORDS * RECORD);
+			} catch (IOException ex) {
+				throw new RuntimeException("Could not map the genealogy spill file", ex);
+			}
+		}
+		return segments[seg];
+	}
+}
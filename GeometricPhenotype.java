@@ -10,6 +10,10 @@ public class GeometricPhenotype implements Phenotype {
 	private double traitA;
 	private double traitB;	
 	
+	// incremented whenever any phenotype is changed in place, so that
+	// copies of traits (HistoryArena) and cached risks can be refreshed
+	private static int version = 0;
+	
 	// constructor
 	public GeometricPhenotype() {
 	
@@ -28,10 +32,16 @@ public class GeometricPhenotype implements Phenotype {
 	
 	public void setTraitA(double tA) {
 		traitA = tA;
+		version++;
 	}
 	public void setTraitB(double tB) {
 		traitB = tB;
+		version++;
 	}		
+	
+	public static int getVersion() {
+		return version;
+	}
 		
 	// raw antigenic distance between two phenotypes
 	public double distance(Phenotype p) {
@@ -68,6 +78,44 @@ public class GeometricPhenotype implements Phenotype {
 			}
 		} 
 		
+		return risk(closestDistance);
+		
+	}
+
+	/**
+	 * Risk of infection for an immune history stored as packed traits
+	 * (traitA, traitB pairs) in a block of doubles, as held by
+	 * HistoryArena.  The result is identical to riskOfInfection(Phenotype[])
+	 * for the same history.
+	 *
+	 * @param block The block of doubles containing the history.
+	 *
+	 * @param offset The index of traitA of the first entry in block.
+	 *
+	 * @param count The number of entries in the history.
+	 *
+	 * @return The risk of infection (from 0 to 1).
+	 */
+	public double riskOfInfection(double[] block, int offset, int count) {
+		// find closest phenotype in history, comparing squared distances
+		double closest2 = 100.0 * 100.0;
+		final int end = offset + 2 * count;
+		for (int i = offset; i < end; i += 2) {
+			final double distA = traitA - block[i];
+			final double distB = traitB - block[i + 1];
+			final double dist2 = (distA * distA) + (distB * distB);
+			if (dist2 < closest2) {
+				closest2 = dist2;
+				if (Math.sqrt(dist2) < 0.01) {
+					break;
+				}
+			}
+		}
+		return risk(Math.sqrt(closest2));
+	}
+
+	// map the distance to the closest phenotype in history to a risk
+	private double risk(double closestDistance) {
 		// double risk = closestDistance * Parameters.smithConversion;
 		double risk = 1 - Math.exp(-closestDistance / Parameters.antigenicShape) * 
 				Parameters.minCrossImmunity;
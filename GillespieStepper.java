@@ -0,0 +1,356 @@
+import java.util.Arrays;
+
+/**
+ * <p>A stepper that simulates the events of a deme one at a time in
+ * continuous time, using the next-reaction method of Gibson and Bruck.
+ * Each process of each species (birth, death or replacement in each
+ * compartment, recovery, mutation, and loss of immunity) and each process
+ * of the deme (contact and environmental uptake) is a reaction whose
+ * propensity (rate) follows from the current numbers of hosts, using the
+ * same per-day rates as the fixed stepper. The time of the next event of
+ * each reaction is kept in an EventQueue, and the events are applied via
+ * the operations of Species and HostSpeciesPopulation.</p>
+ *
+ * <p>After each event the propensities that depend on the numbers of
+ * hosts it changed are recomputed and the times of the other reactions
+ * are rescaled, which keeps the simulation exact.  An event of a species
+ * changes the numbers of that species and of the deme (and the volume in
+ * the environment), while contacts and environmental infections may
+ * change those of any species.  Environmental uptake only counts the
+ * exposures that may take up an infective dose, which are bounded by the
+ * dose-response probability of the total volume (see
+ * Environment.getMaxDoseProbability), so an empty environment causes no
+ * events.  Rates that
+ * depend on the date (seasonality and brooding) are taken at the start
+ * of each step of deltaT, and so are tip sampling and the daily clearing
+ * of the environment. Changes made to the deme between steps (such as
+ * contacts between demes) are picked up at the start of the next step.
+ * Unlike the fixed stepper, environmental infections happen throughout
+ * the day rather than in one batch when the environment is cleared.</p>
+ */
+public class GillespieStepper implements Stepper {
+	/** The reactions of each species. */
+	private static final int BIRTH         = 0;
+	private static final int DEATH         = 1;  // +compartment
+	private static final int RECOVERY      = 4;
+	private static final int MUTATION      = 5;
+	private static final int IMMUNITY_LOSS = 6;
+	private static final int RENEWAL       = 7;  // +compartment
+	private static final int PER_SPECIES   = 10;
+
+	/** The reactions of the deme, after those of the species. */
+	private static final int CONTACT       = 0;
+	private static final int ENVIRONMENT   = 1;
+
+	/** The deme to be advanced. */
+	private final HostSpeciesPopulation deme;
+
+	private final RandomStream rng;
+
+	/** The number of the first reaction of the deme. */
+	private final int demeBase;
+
+	/** The current propensity of each reaction. */
+	private final double[] propensity;
+
+	/** The time of the next event of each reaction. */
+	private final EventQueue queue;
+
+	/** The time up to which the deme has been simulated. */
+	private double time;
+
+	/** The mean and variance of the change in each compartment of each species per day. */
+	private double[] mean     = null;
+	private double[] variance = null;
+
+	/** The date dependent rates for the current step. */
+	private double seasonality;
+	private int    dayOfYear;
+
+	/**
+	 * Create a stepper for a deme.
+	 *
+	 * @param deme The deme to be advanced.
+	 */
+	public GillespieStepper(HostSpeciesPopulation deme) {
+		this.deme  = deme;
+		rng        = deme.getRandomStream();
+		demeBase   = deme.getSpeciesCount() * PER_SPECIES;
+		propensity = new double[demeBase + 2];
+		queue      = new EventQueue(propensity.length);
+		time       = Parameters.day;
+	}
+
+	@Override
+	public void stepForward() {
+		time = Math.max(time, Parameters.day);
+		startStep();
+		update(-1);
+		run(Parameters.day + Parameters.deltaT);
+		deme.advanceDayOffset();
+		deme.sample();
+	}
+
+	/**
+	 * Simulate the events of the deme exactly over part of a step, after
+	 * the deme has been changed by other means (see TauLeapStepper).
+	 *
+	 * @param from The time at which to start, within the current step.
+	 *
+	 * @param to The time at which to stop.
+	 *
+	 * @return The number of events simulated.
+	 */
+	public int simulate(double from, double to) {
+		time = from;
+		startStep();
+		// Times drawn before the deme was changed no longer apply, but
+		// as events are memoryless new ones can be drawn.
+		Arrays.fill(propensity, 0);
+		update(-1);
+		return run(to);
+	}
+
+	/**
+	 * Obtain the total propensity of all reactions, for the current
+	 * numbers of hosts.
+	 *
+	 * @return The expected number of events per day.
+	 */
+	public double getTotalPropensity() {
+		startStep();
+		double total = 0;
+		for (int r = 0; (r < propensity.length); r++) {
+			total += computePropensity(r);
+		}
+		return total;
+	}
+
+	/**
+	 * Select the length of a leap over which the propensities are not
+	 * expected to change much, following Cao, Gillespie, and Petzold
+	 * ("Efficient step size selection for the tau-leaping simulation
+	 * method", 2006).  The mean and variance of the change in the number
+	 * of hosts in each compartment of each species are bounded by a
+	 * fraction epsilon of that number (or by 1).  Contacts are counted as
+	 * if all of them caused infections, which gives shorter leaps.
+	 *
+	 * @param epsilon The bound on the relative change in propensities.
+	 *
+	 * @return The length of the leap in days. This value is infinite if
+	 * no events can happen.
+	 */
+	public double getLeapSize(double epsilon) {
+		startStep();
+		final int numSpecies = deme.getSpeciesCount();
+		if (mean == null) {
+			mean     = new double[numSpecies * 3];
+			variance = new double[numSpecies * 3];
+		}
+		Arrays.fill(mean, 0);
+		Arrays.fill(variance, 0);
+		for (int r = 0; (r < propensity.length); r++) {
+			final double a = computePropensity(r);
+			if (a <= 0) {
+				continue;
+			}
+			if (r >= demeBase) {
+				// Infections fall on the species in proportion to S
+				final double total = deme.getS();
+				for (int i = 0; (i < numSpecies); i++) {
+					final double share = a * deme.getSpecies(i).getS() / total;
+					addChange(i, Species.SUSCEPTIBLE, -1, share);
+					addChange(i, Species.INFECTED, 1, share);
+				}
+				continue;
+			}
+			final int i    = r / PER_SPECIES;
+			final int kind = r % PER_SPECIES;
+			switch (kind) {
+			case BIRTH:
+				addChange(i, Species.SUSCEPTIBLE, 1, a);
+				break;
+			case DEATH + Species.SUSCEPTIBLE:
+			case DEATH + Species.INFECTED:
+			case DEATH + Species.RECOVERED:
+				addChange(i, kind - DEATH, -1, a);
+				break;
+			case RECOVERY:
+				addChange(i, Species.INFECTED, -1, a);
+				addChange(i, Parameters.transcendental ? Species.RECOVERED : Species.SUSCEPTIBLE, 1, a);
+				break;
+			case MUTATION:
+				break;
+			case IMMUNITY_LOSS:
+				addChange(i, Species.RECOVERED, -1, a);
+				addChange(i, Species.SUSCEPTIBLE, 1, a);
+				break;
+			default:
+				if (kind - RENEWAL != Species.SUSCEPTIBLE) {
+					addChange(i, kind - RENEWAL, -1, a);
+					addChange(i, Species.SUSCEPTIBLE, 1, a);
+				}
+				break;
+			}
+		}
+		double tau = Double.POSITIVE_INFINITY;
+		for (int i = 0; (i < numSpecies); i++) {
+			for (int c = Species.SUSCEPTIBLE; (c <= Species.RECOVERED); c++) {
+				// S and I take part in contacts, which are of second order
+				final double order = (c == Species.RECOVERED) ? 1 : 2;
+				final double bound = Math.max(epsilon * deme.getSpecies(i).getCount(c) / order, 1);
+				final int k = i * 3 + c;
+				if (mean[k] != 0) {
+					tau = Math.min(tau, bound / Math.abs(mean[k]));
+				}
+				if (variance[k] > 0) {
+					tau = Math.min(tau, bound * bound / variance[k]);
+				}
+			}
+		}
+		return tau;
+	}
+
+	private void addChange(int species, int compartment, int change, double rate) {
+		mean[species * 3 + compartment]     += change * rate;
+		variance[species * 3 + compartment] += change * change * rate;
+	}
+
+	// take the date dependent rates at the start of the current step
+	private void startStep() {
+		seasonality = Parameters.getSeasonality(deme.getDeme());
+		dayOfYear   = ((int) Parameters.day) % 365;
+	}
+
+	// fire events until the given time, returning the number of events
+	private int run(double end) {
+		int events = 0;
+		while (true) {
+			final int reaction = queue.peek();
+			final double next  = queue.getTime(reaction);
+			if (next >= end) {
+				break;
+			}
+			time = next;
+			fire(reaction);
+			if (reaction >= demeBase) {
+				update(reaction);
+			} else {
+				// Only this species and the deme are changed
+				final int first = reaction - reaction % PER_SPECIES;
+				update(reaction, first, first + PER_SPECIES);
+				update(reaction, demeBase, propensity.length);
+			}
+			events++;
+		}
+		time = end;
+		return events;
+	}
+
+	/**
+	 * Recompute all propensities and the times of the next events.
+	 *
+	 * @param fired The reaction that has just fired, or -1 if none did.
+	 */
+	private void update(int fired) {
+		update(fired, 0, propensity.length);
+	}
+
+	/**
+	 * Recompute the propensities and the times of the next events of a
+	 * range of reactions.
+	 *
+	 * @param fired The reaction that has just fired, or -1 if none did.
+	 *
+	 * @param from The first reaction to be recomputed.
+	 *
+	 * @param to The reaction after the last one to be recomputed.
+	 */
+	private void update(int fired, int from, int to) {
+		for (int r = from; (r < to); r++) {
+			final double old = propensity[r];
+			final double now = computePropensity(r);
+			propensity[r] = now;
+			if (now <= 0) {
+				queue.setTime(r, Double.POSITIVE_INFINITY);
+			} else if ((r == fired) || (old <= 0)) {
+				queue.setTime(r, time + rng.nextExponential(1.0 / now));
+			} else if (now != old) {
+				// Rescale the time remaining until the next event
+				queue.setTime(r, time + (old / now) * (queue.getTime(r) - time));
+			}
+		}
+	}
+
+	private double computePropensity(int reaction) {
+		if (reaction >= demeBase) {
+			final int n = deme.getN();
+			if (reaction - demeBase == CONTACT) {
+				return (n == 0) ? 0 : (double) deme.getI() * deme.getS() / n *
+						Parameters.beta * seasonality;
+			}
+			final Environment env = deme.getEnvironment();
+			return deme.getS() * env.envUpTakeRate * env.getMaxDoseProbability();
+		}
+		final Species s = deme.getSpecies(reaction / PER_SPECIES);
+		final int kind  = reaction % PER_SPECIES;
+		switch (kind) {
+		case BIRTH:
+			return Parameters.swapDemography ? 0 : s.getN() * s.getBirthRate(dayOfYear);
+		case DEATH + Species.SUSCEPTIBLE:
+		case DEATH + Species.INFECTED:
+		case DEATH + Species.RECOVERED:
+			return Parameters.swapDemography ? 0 : s.getCount(kind - DEATH) * s.deathRate;
+		case RECOVERY:
+			return s.getI() * Parameters.nu;
+		case MUTATION:
+			return s.getI() * Parameters.muPhenotype;
+		case IMMUNITY_LOSS:
+			return Parameters.transcendental ? s.getR() * Parameters.immunityLoss : 0;
+		default:
+			// As in Species.makeSusceptible, conversions in every
+			// compartment occur at a rate proportional to R.
+			final boolean any = s.getCount(kind - RENEWAL) > 0;
+			return (Parameters.swapDemography && any) ? s.getR() * s.birthRate : 0;
+		}
+	}
+
+	private void fire(int reaction) {
+		if (reaction >= demeBase) {
+			if (reaction - demeBase == CONTACT) {
+				deme.contact();
+			} else {
+				deme.environmentalContact();
+			}
+			return;
+		}
+		final Species s = deme.getSpecies(reaction / PER_SPECIES);
+		final int kind  = reaction % PER_SPECIES;
+		switch (kind) {
+		case BIRTH:
+			s.birth();
+			break;
+		case DEATH + Species.SUSCEPTIBLE:
+		case DEATH + Species.INFECTED:
+		case DEATH + Species.RECOVERED:
+			s.die(kind - DEATH, randomHost(s, kind - DEATH));
+			break;
+		case RECOVERY:
+			s.recoverHost(randomHost(s, Species.INFECTED), deme.getEnvironment());
+			break;
+		case MUTATION:
+			s.mutate(randomHost(s, Species.INFECTED), deme.getEnvironment());
+			break;
+		case IMMUNITY_LOSS:
+			s.looseImmunity(randomHost(s, Species.RECOVERED));
+			break;
+		default:
+			s.makeSusceptible(kind - RENEWAL, randomHost(s, kind - RENEWAL));
+			break;
+		}
+	}
+
+	private int randomHost(Species s, int compartment) {
+		return rng.nextInt(0, s.getCount(compartment) - 1);
+	}
+}
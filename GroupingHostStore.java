@@ -0,0 +1,485 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * <p>A host store that keeps the susceptible hosts grouped by immunity
+ * class (immune history) and the infected hosts grouped by strain
+ * (phenotype), and delegates the hosts themselves to another store.</p>
+ *
+ * <p>The groups are updated as hosts are born, die, are infected,
+ * recover, mutate, and lose their immunity, so that contact thinning (see
+ * HostSpeciesPopulation) can summarize a deme in time proportional to the
+ * number of groups rather than of hosts.  Each group lists the indexes of
+ * its hosts, so a random member of a group is found in constant time.
+ * Like ScheduledRecoveryHostStore, this store mirrors the swap-remove
+ * semantics of the compartments (see HostStore) on these lists, so the
+ * hosts must keep their positions (see HostStoreFactory.keepsPositions).</p>
+ *
+ * <p>Classes are keyed by history handle: unless histories are interned
+ * (Parameters.internHistories) most experienced hosts are a class of
+ * their own.</p>
+ */
+public class GroupingHostStore implements HostStore {
+	/** The store holding the hosts. */
+	private final HostStore hosts;
+
+	/** The arena holding the immune histories of the hosts. */
+	private final HistoryArena arena;
+
+	/** The susceptible hosts by history, weighted by history length + 1. */
+	private final Groups classes = new Groups(new HashMap<Object, Integer>());
+
+	/** The infected hosts by phenotype. */
+	private final Groups strains = new Groups(new IdentityHashMap<Object, Integer>());
+
+	/**
+	 * Create a store that groups its hosts.
+	 *
+	 * @param hosts The store to hold the hosts.
+	 *
+	 * @param arena The arena holding the immune histories of the hosts.
+	 */
+	public GroupingHostStore(HostStore hosts, HistoryArena arena) {
+		this.hosts = hosts;
+		this.arena = arena;
+	}
+
+	/**
+	 * Obtain the number of ids of classes, some of which may not be in use.
+	 *
+	 * @return The bound on the ids of the classes.
+	 */
+	public int getClassIds() {
+		return classes.ids;
+	}
+
+	/**
+	 * Obtain the number of classes in use.
+	 *
+	 * @return The number of distinct histories of susceptible hosts.
+	 */
+	public int getClassCount() {
+		return classes.live;
+	}
+
+	/**
+	 * Obtain the number of susceptible hosts in a class.
+	 *
+	 * @param id The id of the class.
+	 *
+	 * @return The number of hosts, 0 if the id is not in use.
+	 */
+	public int getClassSize(int id) {
+		return classes.size[id];
+	}
+
+	/**
+	 * Obtain the history of the hosts in a class.
+	 *
+	 * @param id The id of the class, which must be in use.
+	 *
+	 * @return The handle of the history in the HistoryArena.
+	 */
+	public int getClassHistory(int id) {
+		return (Integer) classes.key[id];
+	}
+
+	/**
+	 * Obtain a susceptible host in a class.
+	 *
+	 * @param id The id of the class.
+	 *
+	 * @param k The number of the host, 0 <= k < getClassSize(id).
+	 *
+	 * @return The index of the host in the susceptible compartment.
+	 */
+	public int getClassMember(int id, int k) {
+		return classes.members[id][k];
+	}
+
+	/**
+	 * Obtain the sum over classes of the history length plus one, the
+	 * work of computing the risk of one strain for every class.
+	 *
+	 * @return The number of history entries of the classes.
+	 */
+	public long getClassEntries() {
+		return classes.groupWeight;
+	}
+
+	/**
+	 * Obtain the sum over susceptible hosts of the history length plus
+	 * one.
+	 *
+	 * @return The number of history entries of the susceptible hosts.
+	 */
+	public long getSusceptibleEntries() {
+		return classes.memberWeight;
+	}
+
+	/**
+	 * Obtain the number of ids of strains, some of which may not be in use.
+	 *
+	 * @return The bound on the ids of the strains.
+	 */
+	public int getStrainIds() {
+		return strains.ids;
+	}
+
+	/**
+	 * Obtain the number of strains in use.
+	 *
+	 * @return The number of distinct phenotypes of infected hosts.
+	 */
+	public int getStrainCount() {
+		return strains.live;
+	}
+
+	/**
+	 * Obtain the number of infected hosts with a strain.
+	 *
+	 * @param id The id of the strain.
+	 *
+	 * @return The number of hosts, 0 if the id is not in use.
+	 */
+	public int getStrainSize(int id) {
+		return strains.size[id];
+	}
+
+	/**
+	 * Obtain the phenotype of a strain.
+	 *
+	 * @param id The id of the strain, which must be in use.
+	 *
+	 * @return The phenotype, null for hosts whose infection was cleared
+	 * in place (see reset).
+	 */
+	public Phenotype getStrainPhenotype(int id) {
+		return (Phenotype) strains.key[id];
+	}
+
+	/**
+	 * Obtain an infected host with a strain.
+	 *
+	 * @param id The id of the strain.
+	 *
+	 * @param k The number of the host, 0 <= k < getStrainSize(id).
+	 *
+	 * @return The index of the host in the infected compartment.
+	 */
+	public int getStrainMember(int id, int k) {
+		return strains.members[id][k];
+	}
+
+	// the groups of a compartment, null if its hosts are not grouped
+	private Groups groupsOf(int compartment) {
+		if (compartment == Species.SUSCEPTIBLE) {
+			return classes;
+		}
+		return (compartment == Species.INFECTED) ? strains : null;
+	}
+
+	// add the host at index of compartment to its group
+	private void enter(int compartment, int index) {
+		if (compartment == Species.SUSCEPTIBLE) {
+			final int history = hosts.getHistory(compartment, index);
+			classes.attach(index, history, arena.length(history) + 1);
+		} else if (compartment == Species.INFECTED) {
+			final Virus v = hosts.getInfection(compartment, index);
+			strains.attach(index, (v == null) ? null : v.getPhenotype(), 1);
+		}
+	}
+
+	// remove the host that was at index of compartment from its group, after the last host took its place
+	private void leave(int compartment, int index) {
+		final Groups groups = groupsOf(compartment);
+		if (groups != null) {
+			groups.detach(index);
+			groups.relocate(hosts.size(compartment), index);
+		}
+	}
+
+	// move the host at index of compartment to the group of its current history or infection
+	private void regroup(int compartment, int index) {
+		final Groups groups = groupsOf(compartment);
+		if (groups != null) {
+			groups.detach(index);
+			enter(compartment, index);
+		}
+	}
+
+	@Override
+	public GroupingHostStore getGroups() {
+		return this;
+	}
+
+	@Override
+	public int size(int compartment) {
+		return hosts.size(compartment);
+	}
+
+	@Override
+	public void add(int compartment, Virus infection, boolean immune) {
+		hosts.add(compartment, infection, immune);
+		enter(compartment, hosts.size(compartment) - 1);
+	}
+
+	@Override
+	public Host getHost(int compartment, int index) {
+		return hosts.getHost(compartment, index);
+	}
+
+	@Override
+	public Virus getInfection(int compartment, int index) {
+		return hosts.getInfection(compartment, index);
+	}
+
+	@Override
+	public int getHistoryLength(int compartment, int index) {
+		return hosts.getHistoryLength(compartment, index);
+	}
+
+	@Override
+	public int getHistory(int compartment, int index) {
+		return hosts.getHistory(compartment, index);
+	}
+
+	@Override
+	public double riskOfInfection(Phenotype p, int compartment, int index) {
+		return hosts.riskOfInfection(p, compartment, index);
+	}
+
+	@Override
+	public void infect(int susIdx, Virus parent, int deme, Environment env) {
+		hosts.infect(susIdx, parent, deme, env);
+		leave(Species.SUSCEPTIBLE, susIdx);
+		enter(Species.INFECTED, hosts.size(Species.INFECTED) - 1);
+	}
+
+	@Override
+	public void recover(int infIdx, int compartment, Environment env) {
+		hosts.recover(infIdx, compartment, env);
+		leave(Species.INFECTED, infIdx);
+		enter(compartment, hosts.size(compartment) - 1);
+	}
+
+	@Override
+	public void move(int from, int index, int to) {
+		hosts.move(from, index, to);
+		leave(from, index);
+		enter(to, hosts.size(to) - 1);
+	}
+
+	@Override
+	public void reset(int compartment, int index) {
+		hosts.reset(compartment, index);
+		regroup(compartment, index);
+	}
+
+	@Override
+	public void mutate(int infIdx, Environment env) {
+		hosts.mutate(infIdx, env);
+		regroup(Species.INFECTED, infIdx);
+	}
+
+	@Override
+	public void swap(int compartment, int i, int j) {
+		hosts.swap(compartment, i, j);
+		final Groups groups = groupsOf(compartment);
+		if (groups != null) {
+			groups.swap(i, j);
+		}
+	}
+
+	@Override
+	public void removeRandom(int compartment, int count) {
+		if (groupsOf(compartment) != null) {
+			// Via swap and truncate, which follow the groups
+			HostStore.super.removeRandom(compartment, count);
+		} else {
+			hosts.removeRandom(compartment, count);
+		}
+	}
+
+	@Override
+	public void moveRandom(int from, int count, int to) {
+		if (groupsOf(from) != null) {
+			// Via swap and move, which follow the groups
+			HostStore.super.moveRandom(from, count, to);
+			return;
+		}
+		hosts.moveRandom(from, count, to);
+		final int size = hosts.size(to);
+		for (int i = size - count; (i < size); i++) {
+			enter(to, i);
+		}
+	}
+
+	@Override
+	public void makeNaive(int compartment, int index) {
+		hosts.makeNaive(compartment, index);
+		if (compartment == Species.SUSCEPTIBLE) {
+			regroup(compartment, index);
+		} else {
+			leave(compartment, index);
+			enter(Species.SUSCEPTIBLE, hosts.size(Species.SUSCEPTIBLE) - 1);
+		}
+	}
+
+	@Override
+	public void remove(int compartment, int index) {
+		hosts.remove(compartment, index);
+		leave(compartment, index);
+	}
+
+	@Override
+	public void truncate(int compartment, int size) {
+		final Groups groups = groupsOf(compartment);
+		if (groups != null) {
+			for (int i = hosts.size(compartment) - 1; (i >= size); i--) {
+				groups.detach(i);
+			}
+		}
+		hosts.truncate(compartment, size);
+	}
+
+	@Override
+	public void clear() {
+		hosts.clear();
+		classes.clear();
+		strains.clear();
+	}
+
+	@Override
+	public void printHost(PrintStream stream, int compartment, int index) {
+		hosts.printHost(stream, compartment, index);
+	}
+
+	/**
+	 * The hosts of one compartment grouped by key.  Group ids of empty
+	 * groups are reused, so they stay small.
+	 */
+	private static class Groups {
+		/** The id of each key in use. */
+		private final Map<Object, Integer> idOf;
+
+		/** The key, size, weight, and member indexes of each group. */
+		private Object[] key     = new Object[16];
+		private int[]    size    = new int[16];
+		private int[]    weight  = new int[16];
+		private int[][]  members = new int[16][];
+
+		/** Ids of empty groups, below ids. */
+		private int[] free      = new int[16];
+		private int   freeCount = 0;
+		private int   ids       = 0;
+		private int   live      = 0;
+
+		/** The group of the host at each index, and its place among the members. */
+		private int[] groupOf = new int[64];
+		private int[] place   = new int[64];
+
+		/** The sum of the weights of the groups, and of their members. */
+		private long groupWeight  = 0;
+		private long memberWeight = 0;
+
+		Groups(Map<Object, Integer> idOf) {
+			this.idOf = idOf;
+		}
+
+		// add the host at index to the group of key, creating it with the given weight if needed
+		void attach(int index, Object k, int w) {
+			Integer id = idOf.get(k);
+			if (id == null) {
+				id = newGroup(k, w);
+			}
+			final int g = id;
+			if (size[g] == members[g].length) {
+				members[g] = Arrays.copyOf(members[g], 2 * size[g]);
+			}
+			if (index >= groupOf.length) {
+				groupOf = Arrays.copyOf(groupOf, 2 * index + 1);
+				place   = Arrays.copyOf(place, 2 * index + 1);
+			}
+			groupOf[index] = g;
+			place[index]   = size[g];
+			members[g][size[g]++] = index;
+			memberWeight += weight[g];
+		}
+
+		// remove the host at index from its group, leaving its entry at index
+		void detach(int index) {
+			final int g = groupOf[index];
+			final int last = members[g][--size[g]];
+			members[g][place[index]] = last;
+			place[last] = place[index];
+			memberWeight -= weight[g];
+			if (size[g] == 0) {
+				idOf.remove(key[g]);
+				key[g] = null;
+				groupWeight -= weight[g];
+				live--;
+				if (freeCount == free.length) {
+					free = Arrays.copyOf(free, 2 * freeCount);
+				}
+				free[freeCount++] = g;
+			}
+		}
+
+		// record that the host at from is now at to, from having been detached
+		void relocate(int from, int to) {
+			if (from != to) {
+				groupOf[to] = groupOf[from];
+				place[to]   = place[from];
+				members[groupOf[to]][place[to]] = to;
+			}
+		}
+
+		// exchange the hosts at i and j
+		void swap(int i, int j) {
+			final int gi = groupOf[i], pi = place[i];
+			groupOf[i] = groupOf[j];
+			place[i]   = place[j];
+			groupOf[j] = gi;
+			place[j]   = pi;
+			members[groupOf[i]][place[i]] = i;
+			members[groupOf[j]][place[j]] = j;
+		}
+
+		private int newGroup(Object k, int w) {
+			final int g;
+			if (freeCount > 0) {
+				g = free[--freeCount];
+			} else {
+				g = ids++;
+				if (g == key.length) {
+					key     = Arrays.copyOf(key, 2 * g);
+					size    = Arrays.copyOf(size, 2 * g);
+					weight  = Arrays.copyOf(weight, 2 * g);
+					members = Arrays.copyOf(members, 2 * g);
+				}
+				members[g] = new int[4];
+			}
+			idOf.put(k, g);
+			key[g]    = k;
+			weight[g] = w;
+			groupWeight += w;
+			live++;
+			return g;
+		}
+
+		void clear() {
+			idOf.clear();
+			Arrays.fill(key, 0, ids, null);
+			Arrays.fill(size, 0, ids, 0);
+			freeCount    = 0;
+			ids          = 0;
+			live         = 0;
+			groupWeight  = 0;
+			memberWeight = 0;
+		}
+	}
+}
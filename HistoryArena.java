@@ -0,0 +1,561 @@
+/* Shared storage for the immune histories of all hosts */
+
+import java.util.Arrays;
+
+/**
+ * <p>An append-friendly arena holding the immune histories of the hosts
+ * of a deme.
+ * A history is referred to by an int handle (EMPTY for an empty history)
+ * that is held by a Host or a PackedHostStore slot.</p>
+ *
+ * <p>Each history entry is stored as its packed coordinates (traitA,
+ * traitB of a GeometricPhenotype) together with a reference to the
+ * phenotype, which is used for output.  Entries of a history occupy a
+ * contiguous slice of a fixed-size chunk so that riskOfInfection scans
+ * contiguous memory.  Slices have power-of-two capacities; when a slice
+ * is full the history moves to a slice of twice the size, giving
+ * amortized O(1) appends.  Released slices are kept in per-size free
+ * lists and reused, so histories do not generate garbage.</p>
+ *
+ * <p>If Parameters.internHistories is set, histories are hash-consed:
+ * each distinct history is stored once and shared by all hosts that
+ * have it.  Histories are kept in a table keyed by a hash of their
+ * phenotypes (compared by identity, as viruses of a strain share their
+ * phenotype object) that is updated incrementally on append, so moving
+ * a host to the canonical history extending its own is an O(1) lookup.
+ * A history held by a single host is extended in place if no canonical
+ * successor exists; a shared history is copied.  Histories are
+ * reference counted and reclaimed when no host refers to them.</p>
+ *
+ * <p>Each handle has a stamp that changes whenever the contents of the
+ * history change or the handle is reused, so that the pair (handle,
+ * stamp) identifies the contents of a history.</p>
+ *
+ * <p>Handles must be released (see release) when a host dies or its
+ * history is reset. Each deme owns its own arena (see
+ * HostSpeciesPopulation), which is shared by the host stores of its
+ * species; handles are only meaningful within the arena that issued
+ * them.</p>
+ */
+public class HistoryArena {
+	/** The handle of an empty history. */
+	public static final int EMPTY = -1;
+
+	/** The number of coordinates stored for each entry. */
+	private static final int TRAITS = 2;
+
+	/** log2 of the number of entries in a chunk. */
+	private static final int CHUNK_BITS = 14;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/** The packed coordinates of the entries, TRAITS values per entry. */
+	private double[][] coords = new double[0][];
+
+	/** The phenotype of each entry. */
+	private Phenotype[][] refs = new Phenotype[0][];
+
+	/** The GeometricPhenotype version for which coords are valid. */
+	private int coordsVersion = 0;
+
+	/** The next unused entry in the last chunk (a global entry index). */
+	private int top = 0;
+
+	/** Free slices for each capacity class (capacity 1 << class). */
+	private int[][] freeSlices = new int[CHUNK_BITS + 1][16];
+	private int[]   freeCounts = new int[CHUNK_BITS + 1];
+
+	/** The first entry (global index) and length of each history. */
+	private int[] start  = new int[1024];
+	private int[] length = new int[1024];
+	private int   handlesUsed = 0;
+
+	/** The number of hosts sharing each history. */
+	private int[] refCount = new int[1024];
+
+	/** The stamp of each handle (see getStamp). */
+	private int[] stamp = new int[1024];
+
+	/** The hash of the phenotypes of each history, and whether it is in the table. */
+	private int[]     hash     = new int[1024];
+	private boolean[] interned = new boolean[1024];
+
+	/**
+	 * Open-addressing (linear probing) table of the interned histories
+	 * and their hashes, keyed by hash. Empty entries are EMPTY.
+	 */
+	private int[] table      = newTable(1024);
+	private int[] tableHash  = new int[1024];
+	private int   tableSize  = 0;
+
+	/** Handles no longer in use. */
+	private int[] freeHandles = new int[1024];
+	private int   freeHandleCount = 0;
+
+	/** The cache of risks for the histories in this arena. */
+	private final RiskCache riskCache = new RiskCache();
+
+	/**
+	 * Append a phenotype to a history.
+	 *
+	 * @param handle The handle of the history. This value can be EMPTY.
+	 *
+	 * @param p The phenotype to be appended.
+	 *
+	 * @return The handle of the extended history.  Unless histories are
+	 * interned this is the given handle (if it was not EMPTY).
+	 */
+	public int append(int handle, Phenotype p) {
+		if (Parameters.internHistories) {
+			return appendInterned(handle, p);
+		}
+		if (handle == EMPTY) {
+			handle = newHandle();
+		}
+		appendInPlace(handle, p);
+		return handle;
+	}
+
+	/**
+	 * Move a host to the canonical history extending its history with a
+	 * given phenotype.
+	 */
+	private int appendInterned(int handle, Phenotype p) {
+		final int len = length(handle);
+		final int h   = 31 * ((handle == EMPTY) ? 1 : hash[handle]) + System.identityHashCode(p);
+		int next = find(h, handle, len, p);
+		if (next != EMPTY) {
+			refCount[next]++;
+			release(handle);
+			return next;
+		}
+		if (handle != EMPTY && refCount[handle] == 1) {
+			// Not shared, so extend it in place
+			remove(handle);
+			appendInPlace(handle, p);
+			next = handle;
+		} else {
+			// Copy on write
+			next = newHandle();
+			start[next] = allocate(sizeClass(len + 1));
+			if (len > 0) {
+				copy(start[handle], start[next], len, false);
+			}
+			set(start[next] + len, p);
+			length[next] = len + 1;
+			release(handle);
+		}
+		hash[next] = h;
+		insert(next);
+		return next;
+	}
+
+	private void appendInPlace(int handle, Phenotype p) {
+		final int len = length[handle];
+		if (len == capacity(len)) {
+			// Move history to a slice of twice the size
+			final int newStart = allocate(sizeClass(len + 1));
+			if (len > 0) {
+				final int oldStart = start[handle];
+				copy(oldStart, newStart, len, true);
+				free(oldStart, sizeClass(len));
+			}
+			start[handle] = newStart;
+		}
+		set(start[handle] + len, p);
+		length[handle] = len + 1;
+		stamp[handle]++;
+	}
+
+	/**
+	 * Obtain the stamp of a history.  The stamp changes whenever the
+	 * contents of the history change, so that a handle and its stamp
+	 * identify the contents of a history.
+	 *
+	 * @param handle The handle of the history. This value can be EMPTY.
+	 *
+	 * @return The stamp of the history.
+	 */
+	public int getStamp(int handle) {
+		return (handle == EMPTY) ? 0 : stamp[handle];
+	}
+
+	/**
+	 * Obtain the number of entries in a history.
+	 *
+	 * @param handle The handle of the history. This value can be EMPTY.
+	 *
+	 * @return The number of entries in the history.
+	 */
+	public int length(int handle) {
+		return (handle == EMPTY) ? 0 : length[handle];
+	}
+
+	/**
+	 * Obtain an entry of a history.
+	 *
+	 * @param handle The handle of the history.
+	 *
+	 * @param i The index of the entry, in the range 0 <= i < length(handle).
+	 *
+	 * @return The phenotype at the given index.
+	 */
+	public Phenotype get(int handle, int i) {
+		final int entry = start[handle] + i;
+		return refs[entry >>> CHUNK_BITS][entry & CHUNK_MASK];
+	}
+
+	/**
+	 * Obtain a copy of a history as an array.
+	 *
+	 * @param handle The handle of the history. This value can be EMPTY.
+	 *
+	 * @return A new array containing the phenotypes in the history.
+	 */
+	public Phenotype[] toArray(int handle) {
+		final int len = length(handle);
+		if (len == 0) {
+			return new Phenotype[0];
+		}
+		final int entry = start[handle];
+		return Arrays.copyOfRange(refs[entry >>> CHUNK_BITS], entry & CHUNK_MASK,
+				(entry & CHUNK_MASK) + len);
+	}
+
+	/**
+	 * Obtain the risk of infection by a virus with a given phenotype for
+	 * a host with the given history.
+	 *
+	 * @param p The phenotype of the virus.
+	 *
+	 * @param handle The handle of the history of the host.
+	 *
+	 * @return The risk of infection (from 0 to 1).
+	 */
+	public double riskOfInfection(Phenotype p, int handle) {
+		if (!RiskCache.isEnabled()) {
+			return computeRisk(p, handle);
+		}
+		final int handleStamp = getStamp(handle);
+		double risk = riskCache.get(p, handle, handleStamp);
+		if (Double.isNaN(risk)) {
+			risk = computeRisk(p, handle);
+			riskCache.put(p, handle, handleStamp, risk);
+		}
+		return risk;
+	}
+
+	private double computeRisk(Phenotype p, int handle) {
+		if (coordsVersion != GeometricPhenotype.getVersion()) {
+			refreshCoords();
+		}
+		final int len = length(handle);
+		final int entry = (len == 0) ? 0 : start[handle];
+		final int chunk = entry >>> CHUNK_BITS;
+		final int index = entry & CHUNK_MASK;
+		if (p instanceof GeometricPhenotype) {
+			final double[] block = (len == 0) ? null : coords[chunk];
+			return ((GeometricPhenotype) p).riskOfInfection(block, TRAITS * index, len);
+		}
+		return p.riskOfInfection(toArray(handle));
+	}
+
+	/**
+	 * Copy the traits of all entries again from their phenotypes, after
+	 * phenotypes have been changed in place (for example by
+	 * VirusTree.rotate).
+	 */
+	private void refreshCoords() {
+		for (int chunk = 0; (chunk < refs.length); chunk++) {
+			for (int index = 0; (index < CHUNK_SIZE); index++) {
+				if (refs[chunk][index] != null) {
+					set((chunk << CHUNK_BITS) + index, refs[chunk][index]);
+				}
+			}
+		}
+		coordsVersion = GeometricPhenotype.getVersion();
+	}
+
+	/**
+	 * Add a reference to an interned history, so that one more host
+	 * shares it. Each reference must be released separately.
+	 *
+	 * @param handle The handle of the history. This value can be EMPTY.
+	 */
+	public void retain(int handle) {
+		if (handle != EMPTY) {
+			refCount[handle]++;
+		}
+	}
+
+	/**
+	 * Release a history. The handle must not be used after this call.
+	 * The history is reclaimed once no host refers to it.
+	 *
+	 * @param handle The handle of the history. This value can be EMPTY.
+	 */
+	public void release(int handle) {
+		if (handle == EMPTY || --refCount[handle] > 0) {
+			return;
+		}
+		if (interned[handle]) {
+			remove(handle);
+		}
+		final int len = length[handle];
+		if (len > 0) {
+			final int entry = start[handle];
+			Arrays.fill(refs[entry >>> CHUNK_BITS], entry & CHUNK_MASK,
+					(entry & CHUNK_MASK) + len, null);
+			free(entry, sizeClass(len));
+		}
+		length[handle] = 0;
+		stamp[handle]++;
+		if (freeHandleCount == freeHandles.length) {
+			freeHandles = Arrays.copyOf(freeHandles, freeHandles.length * 2);
+		}
+		freeHandles[freeHandleCount++] = handle;
+	}
+
+	/**
+	 * Release all histories. All handles become invalid.
+	 */
+	public void clear() {
+		coords = new double[0][];
+		refs   = new Phenotype[0][];
+		top    = 0;
+		Arrays.fill(freeCounts, 0);
+		// Shrink the handle tables too, as after a large population
+		start       = new int[1024];
+		length      = new int[1024];
+		refCount    = new int[1024];
+		stamp       = new int[1024];
+		hash        = new int[1024];
+		interned    = new boolean[1024];
+		freeHandles = new int[1024];
+		handlesUsed = freeHandleCount = 0;
+		table       = newTable(1024);
+		tableHash   = new int[1024];
+		tableSize   = 0;
+		riskCache.clear();
+	}
+
+	/**
+	 * Obtain the number of histories in use. With interning this is the
+	 * number of distinct non-empty histories held by hosts.
+	 *
+	 * @return The number of histories in use.
+	 */
+	public int getHistoryCount() {
+		return handlesUsed - freeHandleCount;
+	}
+
+	/**
+	 * Obtain the cache of risks of infection for the histories in this
+	 * arena.
+	 *
+	 * @return The risk cache.
+	 */
+	public RiskCache getRiskCache() {
+		return riskCache;
+	}
+
+	/**
+	 * Obtain the number of bytes allocated for entries and handles. This
+	 * is used for memory profiling.
+	 *
+	 * @return The approximate number of bytes used by this arena.
+	 */
+	public long getAllocatedBytes() {
+		final long entries = (long) coords.length * CHUNK_SIZE;
+		return entries * (TRAITS * 8 + 4) + start.length * (5L * 4 + 1) +
+				freeHandles.length * 4L + table.length * 8L;
+	}
+
+	//-------------------- Slice management ---------------------------//
+
+	/**
+	 * The capacity of the slice holding a history of a given length:
+	 * 0, 1, 2, 4, 4, 8, 8, 8, 8, 16, ...
+	 */
+	private static int capacity(int len) {
+		return (len == 0) ? 0 : (1 << sizeClass(len));
+	}
+
+	/** The smallest class whose capacity (1 << class) is at least len. */
+	private static int sizeClass(int len) {
+		return 32 - Integer.numberOfLeadingZeros(len - 1);
+	}
+
+	private int allocate(int sizeClass) {
+		if (sizeClass > CHUNK_BITS) {
+			throw new RuntimeException("Immune history exceeds " + CHUNK_SIZE + " entries");
+		}
+		if (freeCounts[sizeClass] > 0) {
+			return freeSlices[sizeClass][--freeCounts[sizeClass]];
+		}
+		final int size = 1 << sizeClass;
+		if ((top & CHUNK_MASK) + size > CHUNK_SIZE || (top >>> CHUNK_BITS) == coords.length) {
+			// Hand out the rest of the current chunk as free slices
+			if ((top >>> CHUNK_BITS) < coords.length) {
+				int rest = CHUNK_SIZE - (top & CHUNK_MASK);
+				for (int c = CHUNK_BITS; (rest > 0); c--) {
+					if ((1 << c) <= rest) {
+						free(top, c);
+						top  += (1 << c);
+						rest -= (1 << c);
+					}
+				}
+			}
+			addChunk();
+		}
+		final int slice = top;
+		top += size;
+		return slice;
+	}
+
+	private void free(int slice, int sizeClass) {
+		if (freeCounts[sizeClass] == freeSlices[sizeClass].length) {
+			freeSlices[sizeClass] = Arrays.copyOf(freeSlices[sizeClass],
+					freeSlices[sizeClass].length * 2);
+		}
+		freeSlices[sizeClass][freeCounts[sizeClass]++] = slice;
+	}
+
+	private void addChunk() {
+		final int chunk = coords.length;
+		coords = Arrays.copyOf(coords, chunk + 1);
+		refs   = Arrays.copyOf(refs, chunk + 1);
+		coords[chunk] = new double[TRAITS * CHUNK_SIZE];
+		refs[chunk]   = new Phenotype[CHUNK_SIZE];
+		top = chunk << CHUNK_BITS;
+	}
+
+	/** Copy entries, clearing the source references if move is set. */
+	private void copy(int from, int to, int count, boolean move) {
+		final int fromChunk = from >>> CHUNK_BITS, fromIndex = from & CHUNK_MASK;
+		final int toChunk   = to >>> CHUNK_BITS,   toIndex   = to & CHUNK_MASK;
+		System.arraycopy(coords[fromChunk], TRAITS * fromIndex, coords[toChunk],
+				TRAITS * toIndex, TRAITS * count);
+		System.arraycopy(refs[fromChunk], fromIndex, refs[toChunk], toIndex, count);
+		if (move) {
+			Arrays.fill(refs[fromChunk], fromIndex, fromIndex + count, null);
+		}
+	}
+
+	private void set(int entry, Phenotype p) {
+		final int chunk = entry >>> CHUNK_BITS;
+		final int index = entry & CHUNK_MASK;
+		refs[chunk][index] = p;
+		if (p instanceof GeometricPhenotype) {
+			final GeometricPhenotype gp = (GeometricPhenotype) p;
+			coords[chunk][TRAITS * index]     = gp.getTraitA();
+			coords[chunk][TRAITS * index + 1] = gp.getTraitB();
+		}
+	}
+
+	private int newHandle() {
+		int handle;
+		if (freeHandleCount > 0) {
+			handle = freeHandles[--freeHandleCount];
+		} else {
+			if (handlesUsed == start.length) {
+				final int cap = start.length * 2;
+				start    = Arrays.copyOf(start, cap);
+				length   = Arrays.copyOf(length, cap);
+				refCount = Arrays.copyOf(refCount, cap);
+				stamp    = Arrays.copyOf(stamp, cap);
+				hash     = Arrays.copyOf(hash, cap);
+				interned = Arrays.copyOf(interned, cap);
+			}
+			handle = handlesUsed++;
+		}
+		length[handle]   = 0;
+		refCount[handle] = 1;
+		return handle;
+	}
+
+	//-------------------- Interning ----------------------------------//
+
+	private static int[] newTable(int capacity) {
+		final int[] newTable = new int[capacity];
+		Arrays.fill(newTable, EMPTY);
+		return newTable;
+	}
+
+	private int slot(int h) {
+		return (h ^ (h >>> 16)) & (table.length - 1);
+	}
+
+	/**
+	 * Find the interned history with the given hash consisting of the
+	 * first len entries of a history followed by a phenotype.
+	 *
+	 * @return The history, or EMPTY if there is none.
+	 */
+	private int find(int h, int handle, int len, Phenotype p) {
+		final int mask = table.length - 1;
+		for (int i = slot(h); (table[i] != EMPTY); i = (i + 1) & mask) {
+			final int candidate = table[i];
+			if (tableHash[i] == h && length[candidate] == len + 1 &&
+					get(candidate, len) == p && samePrefix(candidate, handle, len)) {
+				return candidate;
+			}
+		}
+		return EMPTY;
+	}
+
+	private boolean samePrefix(int a, int b, int len) {
+		for (int i = 0; (i < len); i++) {
+			if (get(a, i) != get(b, i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void insert(int handle) {
+		if (2 * (tableSize + 1) > table.length) {
+			final int[] oldTable = table, oldHash = tableHash;
+			table     = newTable(oldTable.length * 2);
+			tableHash = new int[oldTable.length * 2];
+			for (int i = 0; (i < oldTable.length); i++) {
+				if (oldTable[i] != EMPTY) {
+					put(oldTable[i], oldHash[i]);
+				}
+			}
+		}
+		put(handle, hash[handle]);
+		interned[handle] = true;
+		tableSize++;
+	}
+
+	private void put(int handle, int h) {
+		final int mask = table.length - 1;
+		int i = slot(h);
+		while (table[i] != EMPTY) {
+			i = (i + 1) & mask;
+		}
+		table[i]     = handle;
+		tableHash[i] = h;
+	}
+
+	/** Remove an interned history from the table (backward-shift deletion). */
+	private void remove(int handle) {
+		final int mask = table.length - 1;
+		int i = slot(hash[handle]);
+		while (table[i] != handle) {
+			i = (i + 1) & mask;
+		}
+		for (int j = (i + 1) & mask; (table[j] != EMPTY); j = (j + 1) & mask) {
+			// Move entry j into the hole at i unless its home slot lies in (i, j]
+			if (((j - slot(tableHash[j])) & mask) >= ((j - i) & mask)) {
+				table[i]     = table[j];
+				tableHash[i] = tableHash[j];
+				i = j;
+			}
+		}
+		table[i] = EMPTY;
+		interned[handle] = false;
+		tableSize--;
+	}
+}
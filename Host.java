@@ -7,21 +7,44 @@ public class Host {
 
 	// fields
 	private Virus infection;												
-	private Phenotype[] immuneHistory = new Phenotype[0];
+	// arena holding the immune histories of the hosts of this deme
+	private final HistoryArena arena;
+	// handle of the immune history in arena
+	private int immuneHistory = HistoryArena.EMPTY;
 	
 	// naive host
-	public Host() {
+	public Host(HistoryArena arena) {
+		this.arena = arena;
 		initializeHistory();		
 	}
 	
 	// initial infected host
-	public Host(Virus v) {
+	public Host(HistoryArena arena, Virus v) {
+		this.arena = arena;
 		infection = v;
 		initializeHistory();
 	}
 	
+	// host that starts with immunity if immune is set, as chosen by the caller
+	public Host(HistoryArena arena, Virus v, boolean immune) {
+		this.arena = arena;
+		infection = v;
+		if (immune) {
+			addToHistory(Parameters.urImmunity);
+		}
+	}
+	
+	// view of a host held by a HostStore, sharing its history handle.
+	// The history must not be changed or released via this object.
+	public Host(HistoryArena arena, Virus v, int history) {
+		this.arena = arena;
+		infection = v;
+		immuneHistory = history;
+	}
+	
 	// checkpointed host
-	public Host(int d, String sVirus, String sHist) {
+	public Host(HistoryArena arena, int d, String sVirus, String sHist) {
+		this.arena = arena;
 		if (!sVirus.equals("n")) {
 			Pattern rc = Pattern.compile(",");
     		String[] traitList = rc.split(sVirus);
@@ -54,18 +77,19 @@ public class Host {
 	}
 	
 	public void addToHistory(Phenotype p) {
-		Phenotype[] newHistory = new Phenotype[immuneHistory.length + 1];
-		for (int i = 0; i < immuneHistory.length; i++) {
-			newHistory[i] = immuneHistory[i];
-		}
-		newHistory[immuneHistory.length] = p;
-		immuneHistory = newHistory;
+		immuneHistory = arena.append(immuneHistory, p);
 	}
 	
 	// infection methods
 	public void reset() {
 		infection = null;
-		immuneHistory = new Phenotype[0];
+		release();
+	}
+
+	// return the immune history to the arena when the host dies or is reset
+	public void release() {
+		arena.release(immuneHistory);
+		immuneHistory = HistoryArena.EMPTY;
 	}
 	
 	public boolean isInfected() {
@@ -109,7 +133,16 @@ public class Host {
 	}
 
 	public int getHistoryLength() {
-		return immuneHistory.length;
+		return arena.length(immuneHistory);
+	}
+
+	// handle of the history in the arena of this host
+	public int getHistoryHandle() {
+		return immuneHistory;
+	}
+
+	public double riskOfInfection(Phenotype p) {
+		return arena.riskOfInfection(p, immuneHistory);
 	}
 	
 	// make a new virus with the mutated phenotype
@@ -130,13 +163,14 @@ public class Host {
 	}
 
 	// history methods
+	// returns a copy of the history
 	public Phenotype[] getHistory() {
-		return immuneHistory;
+		return arena.toArray(immuneHistory);
 	}	
 	
 	public void printHistory() {
-		for (int i = 0; i < immuneHistory.length; i++) {
-			System.out.println(immuneHistory[i]);
+		for (int i = 0; i < getHistoryLength(); i++) {
+			System.out.println(arena.get(immuneHistory, i));
 		}
 	}
 
@@ -150,10 +184,11 @@ public class Host {
 	}
 	
 	public void printHistory(PrintStream stream) {
-		if (immuneHistory.length > 0) {
-			stream.print(immuneHistory[0]);
-			for (int i = 1; i < immuneHistory.length; i++) {
-				stream.print(";" + immuneHistory[i]);
+		final int length = getHistoryLength();
+		if (length > 0) {
+			stream.print(arena.get(immuneHistory, 0));
+			for (int i = 1; i < length; i++) {
+				stream.print(";" + arena.get(immuneHistory, i));
 			}
 		}
 		else {
@@ -2,6 +2,9 @@
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
 
 public class HostSpeciesPopulation {
 	// fields
@@ -15,7 +18,50 @@ public class HostSpeciesPopulation {
 	 */
 	private ArrayList<Species> speciesList = null;
 
+	/**
+	 * Prefix sums of the number of S, I, and R hosts in each species. 
+	 * This index is kept up-to-date by the species and is used to obtain 
+	 * totals and to locate the species holding a given host.
+	 */
+	private SpeciesIndex speciesIndex = null;
+
 	private Environment environment = null;
+
+	/**
+	 * The immune histories of the hosts of all species in this deme. Each
+	 * deme owns its arena so that demes do not share mutable state.
+	 */
+	private final HistoryArena histories = new HistoryArena();
+
+	/** Advances this deme through time (see StepperFactory). */
+	private final Stepper stepper;
+
+	/**
+	 * The random stream used by this deme. This stream is bound to the
+	 * calling thread whenever this deme does its work so that draws made
+	 * by species, hosts, and viruses in this deme also use it.
+	 */
+	private final RandomStream rng;
+
+	/**
+	 * The random stream used to sample the statistics of this deme (see
+	 * updateDiversity), so that how often they are computed does not
+	 * change the draws of the epidemic.
+	 */
+	private final RandomStream statsRng;
+
+	/**
+	 * Block of uniform draws from rng consumed by the contact, recovery,
+	 * and environmental infection loops.
+	 */
+	private final DrawBuffer draws;
+
+	/** Block of infected host indexes used by mutate(). */
+	private int[] indexBlock = new int[0];
+
+	/** Per-species compartment sizes and event counts used to split events across species. */
+	private int[] speciesSizes;
+	private int[] speciesEvents;
 	
 	private double diversity;
 	private double tmrca;
@@ -26,6 +72,25 @@ public class HostSpeciesPopulation {
 	private int newContacts;
 	private int newRecoveries;
 
+	/**
+	 * Working storage for distributeThinnedContacts(): the strain
+	 * (phenotype) ids of the deme, the group of each strain in each species
+	 * (-1 if none) and its number of infecteds, the species and group of
+	 * each immunity class (also used by exposeByClass()), the risk of each
+	 * strain for each class, and the weight of each strain.
+	 */
+	private final IdentityHashMap<Phenotype, Integer> strainIds = new IdentityHashMap<Phenotype, Integer>();
+	private final ArrayList<Phenotype> strainPhenotypes = new ArrayList<Phenotype>();
+	private int[]    strainGroups  = new int[0];
+	private int[]    strainCounts  = new int[0];
+	private int[]    classSpecies  = new int[0];
+	private int[]    classGroups   = new int[0];
+	private double[] classRisks    = new double[0];
+	private double[] strainWeights = new double[0];
+
+	/** Working storage for exposeByClass(): the risks of each strain met. */
+	private final IdentityHashMap<Phenotype, double[]> strainRisks = new IdentityHashMap<Phenotype, double[]>();
+
 	/**
 	 * Variable to track the current offset within a day. This is used to
 	 * update viral population in the environment. See stepForward() method. 
@@ -33,7 +98,8 @@ public class HostSpeciesPopulation {
 	private double dayOffset = 0;
 	
 	// construct population, using Virus v as initial infection
-	public HostSpeciesPopulation(int d) {
+	// recording the leaps of its stepper in the given report
+	public HostSpeciesPopulation(int d, LeapReport report) {
 		// basic parameters
 		deme = d;
 		name = Parameters.demeNames[deme];
@@ -46,49 +112,84 @@ public class HostSpeciesPopulation {
 			throw new RuntimeException("Environment not specified.");
 		}
 		speciesList = Parameters.getSpeciesList(deme);
+		speciesSizes  = new int[speciesList.size()];
+		speciesEvents = new int[speciesList.size()];
+		speciesIndex  = new SpeciesIndex(speciesList.size());
+		for (int i = 0; (i < speciesList.size()); i++) {
+			speciesList.get(i).setHistories(histories);
+			speciesList.get(i).setIndex(speciesIndex, i);
+		}
+		// Each deme and its environment draw from their own streams
+		rng = Random.getStream(Random.DEME, deme);
+		draws = new DrawBuffer(rng);
+		statsRng = Random.getStream(Random.STATISTICS, deme);
+		environment.setRandomStream(Random.getStream(Random.ENVIRONMENT, deme));
 		// Create the individuals of different species in this deme
 		// via helper method.
 		reset();
+		stepper = StepperFactory.makeStepper(this, report);
 	}
 
 	// construct checkpointed host population and infecting viruses
-	public HostSpeciesPopulation(int d, boolean checkpoint) {
+	public HostSpeciesPopulation(int d, boolean checkpoint, LeapReport report) {
 		if (checkpoint == true) {
 			throw new RuntimeException("Not correctly implemented to support species.");
 		}
+		rng = Random.getStream(Random.DEME, d);
+		draws = new DrawBuffer(rng);
+		statsRng = Random.getStream(Random.STATISTICS, d);
+		stepper = StepperFactory.makeStepper(this, report);
 	}
 
 	// accessors
+	/**
+	 * Forward all changes in the number of hosts in this deme to a 
+	 * simulation-wide index.
+	 *
+	 * @param index The index over all the demes in the simulation.
+	 */
+	public void setParentIndex(SpeciesIndex index) {
+		speciesIndex.setParent(index, deme);
+	}
+
+	public int getDeme() {
+		return deme;
+	}
+
+	public Environment getEnvironment() {
+		return environment;
+	}
+
+	public RandomStream getRandomStream() {
+		return rng;
+	}
+
+	public HistoryArena getHistories() {
+		return histories;
+	}
+
+	public int getSpeciesCount() {
+		return speciesList.size();
+	}
+
+	public Species getSpecies(int index) {
+		return speciesList.get(index);
+	}
+
 	public int getN() {
-		int sum = 0;
-		for (Species s: speciesList) {
-			sum += s.getN();
-		}
-		return sum;
+		return (getS() + getI() + getR());
 	}
 
 	public int getS() {
-		int sum = 0;
-		for (Species s: speciesList) {
-			sum += s.getS();
-		}
-		return sum;
+		return speciesIndex.getTotal(Species.SUSCEPTIBLE);
 	}
 
 	public int getI() {
-		int sum = 0;
-		for (Species s: speciesList) {
-			sum += s.getI();
-		}
-		return sum;
+		return speciesIndex.getTotal(Species.INFECTED);
 	}
 
 	public int getR() {
-		int sum = 0;
-		for (Species s: speciesList) {
-			sum += s.getR();
-		}
-		return sum;
+		return speciesIndex.getTotal(Species.RECOVERED);
 	}
 
 	public double getPrS() {
@@ -104,34 +205,31 @@ public class HostSpeciesPopulation {
 	}	
 
 	public int getRandomN() {
-		return Random.nextInt(0, getN()-1);
+		return rng.nextInt(0, getN()-1);
 	}
 
 	public int getRandomS() {
-		return Random.nextInt(0, getS()-1);
+		return rng.nextInt(0, getS()-1);
 	}
 
 	public int getRandomI() {
-		return Random.nextInt(0, getI()-1);
+		return rng.nextInt(0, getI()-1);
 	}
 
 	public int getRandomR() {
-		return Random.nextInt(0, getR()-1);
+		return rng.nextInt(0, getR()-1);
 	}
 
 	public Host getRandomHost() {
 		// Generate a random species from 0 to speciesList.size
-		int spIdx = Random.nextInt(0, speciesList.size() - 1);
+		int spIdx = rng.nextInt(0, speciesList.size() - 1);
 		return speciesList.get(spIdx).getRandomHost();
 	}
 
 	public Host getRandomHostS() {
-		int index = Random.nextInt(0, getS() - 1);
-		for (Species s : speciesList) {
-			if (index < s.getS()) {
-				return s.getHostS(index);
-			}
-			index -= s.getS();
+		final int totalS = getS();
+		if (totalS > 0) {
+			return getHost(Species.SUSCEPTIBLE, rng.nextInt(0, totalS - 1));
 		}
 		return null;  // no susceptible host 
 	}
@@ -139,38 +237,90 @@ public class HostSpeciesPopulation {
 	public Host getRandomHostI() {
 		final int totalI = getI();
 		if (totalI > 0) {
-			int index = Random.nextInt(0, totalI - 1);
-			for (Species s : speciesList) {
-				if (index < s.getI()) {
-					return s.getHostI(index);
-				}
-				index -= s.getI();
-			}
+			return getHost(Species.INFECTED, rng.nextInt(0, totalI - 1));
 		}
 		return null;  // no infected hosts
 	}
 
+	/**
+	 * Get the host at a given index in a compartment, with hosts of the 
+	 * various species numbered consecutively in the order of speciesList.
+	 *
+	 * @param compartment The compartment, one of Species.SUSCEPTIBLE, 
+	 * Species.INFECTED, or Species.RECOVERED.
+	 *
+	 * @param index The index of the host. This value must be in the
+	 * range 0 <= index < number of hosts in the compartment.
+	 *
+	 * @return The host at the given index.
+	 */
+	private Host getHost(int compartment, int index) {
+		final int slot    = speciesIndex.find(compartment, index);
+		final Species s   = speciesList.get(slot);
+		final int species = index - speciesIndex.prefix(compartment, slot);
+		switch (compartment) {
+		case Species.SUSCEPTIBLE: return s.getHostS(species);
+		case Species.INFECTED:    return s.getHostI(species);
+		default:                  return s.getHostR(species);
+		}
+	}
+
+	/**
+	 * Try to infect the susceptible host at a given index, with hosts of 
+	 * the various species numbered consecutively in the order of 
+	 * speciesList.
+	 *
+	 * @param susIdx The index of the susceptible host. This value must be
+	 * in the range 0 <= susIdx < getS().
+	 *
+	 * @param virus The virus with which the host is to be infected.
+	 *
+	 * @param draw A uniform draw in the range [0, 1) used to decide whether
+	 * the infection succeeds.
+	 *
+	 * @return True if the infection was successful.
+	 */
+	private boolean infect(int susIdx, Virus virus, double draw) {
+		final int slot = speciesIndex.find(Species.SUSCEPTIBLE, susIdx);
+		susIdx -= speciesIndex.prefix(Species.SUSCEPTIBLE, slot);
+		return speciesList.get(slot).infect(susIdx, virus, deme, environment, draw);
+	}
+
 	public Host getRandomHostR() {
 		final int totalR = getR();
 		if (totalR > 0) {
-			int index = Random.nextInt(0, totalR - 1);
-			for (Species s : speciesList) {
-				if (index < s.getR()) {
-					return s.getHostR(index);
-				}
-				index -= s.getR();
-			}
+			return getHost(Species.RECOVERED, rng.nextInt(0, totalR - 1));
 		}
 		return null;  // no recovered hosts
 	}
 
 	public Virus getRandomInfection() {
-		Virus v = null;
-		Host h = getRandomHostI();
-		if (h != null) {
-			v = h.getInfection();
+		return getRandomInfection(rng);
+	}
+
+	// return a random infection drawing from the given stream
+	private Virus getRandomInfection(RandomStream stream) {
+		final int totalI = getI();
+		if (totalI > 0) {
+			return getInfection(stream.nextInt(0, totalI - 1));
 		}
-		return v;
+		return null;  // no infected hosts
+	}
+
+	/**
+	 * Get the virus infecting the infected host at a given index, with 
+	 * hosts of the various species numbered consecutively in the order of
+	 * speciesList.
+	 *
+	 * @param index The index of the infected host. This value must be in
+	 * the range 0 <= index < getI().
+	 *
+	 * @return The virus infecting the host at the given index.
+	 */
+	public Virus getInfection(int index) {
+		final int slot = speciesIndex.find(Species.INFECTED, index);
+		index -= speciesIndex.prefix(Species.INFECTED, slot);
+		return speciesList.get(slot).getInfection(index);
 	}	
 
 	public void resetCases() {
@@ -202,108 +352,494 @@ public class HostSpeciesPopulation {
 	}			
 
 	public void stepForward() {
+		Random.setStream(rng);
+		stepper.stepForward();
+	}
+
+	// advance by deltaT, with each process happening once with a Poisson number of events
+	public void stepFixed() {
+		leap(Parameters.deltaT);
+		
+		if (advanceDayOffset()) {
+			doEnviornmentalInfections(1.0);
+		}
+		
+		sample();
+	}
+
+	/**
+	 * Simulate births, deaths, contacts, recoveries, loss of immunity,
+	 * and mutation over a given time, with each process happening once
+	 * with a Poisson number of events based on the current numbers of
+	 * hosts.
+	 *
+	 * @param step The length of the leap in days.
+	 */
+	public void leap(double step) {
 		final int day = (int) Parameters.day;
 		if (Parameters.swapDemography) {
-			swap();
+			swap(step);
 		} else {
-			grow(day % 365);
-			decline();
+			grow(day % 365, step);
+			decline(step);
 		}
-		recordContacts();
-		recordRecoveries();
+		recordContacts(step);
+		recordRecoveries(step);
 		distributeContacts();
 		distributeRecoveries();				
 		if (Parameters.transcendental) { 
-			loseImmunity(); 
+			loseImmunity(step); 
 		}
-		mutate();
-		
-		// Rather than clearing out the enviornment every time step, we
-		// do it on per-day basis to improve simulation performance.
+		mutate(step);
+	}
+
+	/**
+	 * Advance the offset within the day by deltaT at the end of a step.
+	 * Rather than clearing out the enviornment every time step, we
+	 * do it on per-day basis to improve simulation performance.
+	 *
+	 * @return true if a day has passed and the environment was cleared.
+	 */
+	public boolean advanceDayOffset() {
 		dayOffset += Parameters.deltaT;
 		if (dayOffset >= 1.0) {
 			environment.clearViruses(deme, 1);
 			dayOffset = 0;
-			doEnviornmentalInfections(1.0);
+			return true;
 		}
-		
-		sample();
+		return false;
 	}
 
+	/**
+	 * Make one contact between a random infected host and a random
+	 * susceptible host (of any species) in this deme.
+	 *
+	 * @return true if the contact caused an infection.
+	 */
+	public boolean contact() {
+		final int susCount = getS();
+		final int infCount = getI();
+		if ((susCount == 0) || (infCount == 0)) {
+			return false;
+		}
+		final Virus virus = getInfection(draws.nextIndex(infCount));
+		if (infect(draws.nextIndex(susCount), virus, draws.nextDouble())) {
+			cases++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Expose a random susceptible host (of any species) to a random
+	 * virus in the environment of this deme, for an exposure already
+	 * known to take up a dose with the dose-response probability of the
+	 * total volume (see Environment.getMaxDoseProbability), as in
+	 * expose().  The exposure infects the host with the dose-response
+	 * probability of the virus relative to that bound, times the risk of
+	 * infection of the host.
+	 *
+	 * @return true if the exposure caused an infection.
+	 */
+	public boolean environmentalContact() {
+		final int susCount = getS();
+		final double maxDose = environment.getMaxDoseProbability();
+		final Virus virus  = ((susCount > 0) && (maxDose > 0)) ? environment.getInfectiveVirus(maxDose) : null;
+		if (virus == null) {
+			return false;
+		}
+		if (infect(draws.nextIndex(susCount), virus, draws.nextDouble())) {
+			cases++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Expose a Poisson number of random susceptible hosts to viruses in
+	 * the environment, at the uptake rate over a given time.
+	 *
+	 * @param step The length of time in days.
+	 */
+	public void environmentalContacts(double step) {
+		expose(rng.nextPoisson(getS() * step * environment.envUpTakeRate));
+	}
+
+	// expose susceptibles to the environment at the uptake rate, once a day
 	public void doEnviornmentalInfections(double step) {
+		expose((int) (getS() * step * environment.envUpTakeRate));
+	}
+
+	/**
+	 * Make a given number of exposures, each as in environmentalContact().
+	 * 
+	 * Whether an exposure takes up an infective dose does not depend on
+	 * the hosts.  No dose is infective with more than the probability of
+	 * the total volume (see Environment.getMaxDoseProbability), so the
+	 * number of exposures that may be is drawn first as a binomial count.
+	 * Each of these draws a virus and is infective with the probability 
+	 * of the virus relative to the bound, so that only these candidates,
+	 * rather than all S * envUpTakeRate exposures a day, do any work.  
+	 * Only the exposures that are infective pick a susceptible host and
+	 * evaluate its risk of infection, unless they are thinned by risk
+	 * too (see exposeByClass).
+	 */
+	private void expose(final int exposures) {
 		int susCount = getS();   // initial values that are changed
-		int envContact = (int) (susCount * step * environment.envUpTakeRate);
-		for (int i = 0; ((i < envContact) && (susCount > 0)); i++) {
-			// Get random virus from the environment
-			Virus virus = environment.getVirus();
+		if ((environment.getVirusCount() == 0) || (exposures == 0)) {
+			return;
+		}
+		final double maxDose  = environment.getMaxDoseProbability();
+		final int candidates  = Sampling.binomial(rng, exposures, maxDose);
+		if (exposeByClass(candidates, maxDose)) {
+			return;
+		}
+		for (int i = 0; ((i < candidates) && (susCount > 0)); i++) {
+			final Virus virus = environment.getInfectiveVirus(maxDose);
 			if (virus == null) {
 				continue;
 			}
-			// Get random species which is susceptible to infection
-			int susIdx = Random.nextInt(0, susCount - 1);
-			for (Species s : speciesList) {
-				if (susIdx < s.getS()) {
-					// Obtain the newly infected host (if infection was successful)
-					if (s.infect(susIdx,  virus, deme, environment) != null) {
-						cases++;     // infection actually occurred
-						susCount--;  // update the counters to reflect
-					}
-					break;  // onto next contact
-				}
-				susIdx -= s.getS();  // onto the next species
+			// Get random susceptible host (of any species) to infect
+			final int susIdx = draws.nextIndex(susCount);
+			if (infect(susIdx, virus, draws.nextDouble())) {
+				cases++;     // infection actually occurred
+				susCount--;  // update the counters to reflect
 			}
 		}
 	}
 
 
+	/**
+	 * Make the candidate exposures of expose(), drawing only the ones
+	 * that infect a host.
+	 * 
+	 * An infective dose of strain s infects a random susceptible with
+	 * probability sum(S_c * risk) / S over the immunity classes c, and
+	 * then falls on class c with probability proportional to S_c * risk,
+	 * as when a host is picked first.  With the hosts grouped by class
+	 * (see GroupingHostStore) only the doses that infect pick a host.
+	 * Meeting a strain costs a risk for every class, and each infection a
+	 * pass over the classes and the strains met, so this is only done
+	 * when it is cheaper than evaluating the risk of a host per dose.
+	 * 
+	 * @return false if the exposures are to be made one host at a time.
+	 */
+	private boolean exposeByClass(final int candidates, final double maxDose) {
+		int susCount = getS();
+		long classEntries = 0, susEntries = 0;
+		int classes = 0;
+		for (Species sp : speciesList) {
+			final GroupingHostStore groups = sp.getGroups();
+			if (groups == null) {
+				return false;
+			}
+			classEntries += groups.getClassEntries();
+			susEntries   += groups.getSusceptibleEntries();
+			classes      += groups.getClassCount();
+		}
+		if (susCount == 0 || (double) Math.min(candidates, environment.getVirusCount()) * classEntries >
+				(double) candidates * susEntries / susCount) {
+			return false;
+		}
+		listClasses(classes);
+		// The risk of each strain met for each class, followed by the sum
+		// over classes of S_c * risk.
+		strainRisks.clear();
+		for (int i = 0; ((i < candidates) && (susCount > 0)); i++) {
+			final Virus virus = environment.getInfectiveVirus(maxDose);
+			if (virus == null) {
+				continue;
+			}
+			double[] risks = strainRisks.get(virus.getPhenotype());
+			if (risks == null) {
+				risks = new double[classes + 1];
+				for (int c = 0; (c < classes); c++) {
+					final GroupingHostStore groups = speciesList.get(classSpecies[c]).getGroups();
+					risks[c] = histories.riskOfInfection(virus.getPhenotype(), groups.getClassHistory(classGroups[c]));
+					risks[classes] += classSize(c) * risks[c];
+				}
+				strainRisks.put(virus.getPhenotype(), risks);
+			}
+			if (draws.nextDouble() * susCount >= risks[classes]) {
+				continue;
+			}
+			// Pick the class of the infected host, drawing again if
+			// rounding picked a class that cannot be infected
+			int c;
+			do {
+				double x = draws.nextDouble() * risks[classes];
+				c = 0;
+				while (c < classes - 1 && (x -= classSize(c) * risks[c]) >= 0) {
+					c++;
+				}
+			} while ((classSize(c) == 0) || (risks[c] <= 0));
+			final Species susSpecies = speciesList.get(classSpecies[c]);
+			susSpecies.infectHost(susSpecies.getGroups().getClassMember(classGroups[c], draws.nextIndex(classSize(c))),
+					virus, deme, environment);
+			cases++;
+			susCount--;
+			for (double[] row : strainRisks.values()) {
+				row[classes] = Math.max(0, row[classes] - row[c]);
+			}
+		}
+		return true;
+	}
+
 	// draw a Poisson distributed number of births and add these hosts to the end of the population list
-	public void grow(final int dayOfYear) {
+	public void grow(final int dayOfYear, double step) {
 		for (Species s : speciesList) {
-			s.grow(dayOfYear);
+			s.grow(dayOfYear, step);
 		}
 	}
 
-	public void decline() {
+	public void decline(double step) {
 		for (Species s : speciesList) {
-			s.decline();
+			s.decline(step);
 		}
 	}
 
-	public void swap() {
+	public void swap(double step) {
 		for (Species s : speciesList) {
-			s.makeSusceptible();
+			s.makeSusceptible(step);
 		}
 	}
 
 	// draw a Poisson distributed number of contacts
-	public void recordContacts() {
+	public void recordContacts(double step) {
 		// each infected makes I->S contacts on a per-day rate of beta * S/N
-		double totalContactRate = getI() * getPrS() * Parameters.beta * Parameters.getSeasonality(deme) * Parameters.deltaT;
-		newContacts = Random.nextPoisson(totalContactRate);			
+		double totalContactRate = getI() * getPrS() * Parameters.beta * Parameters.getSeasonality(deme) * step;
+		newContacts = rng.nextPoisson(totalContactRate);			
 	}
 
 	// move from S->I following number of new contacts, from various species
 	public void distributeContacts() {
+		if (Parameters.contactThinning) {
+			distributeThinnedContacts();
+		} else {
+			distributeContactsSequentially();
+		}
+	}
+
+	// try each contact in turn, picking a random infected and susceptible
+	private void distributeContactsSequentially() {
 		int susCount = getS();   // initial values that are changed
 		int infCount = getI();   // in the loop below.
 		
 		for (int i = 0; (i < newContacts); i++) {
 			if ((susCount > 0) && (infCount > 0)) {
 				// Get random source of infection
-				final Host infHost = getRandomHostI();
-				// Get random species with susceptible to infect
-				int susIdx = Random.nextInt(0, susCount - 1);
-				for (Species s : speciesList) {
-					if (susIdx < s.getS()) {
-						// Obtain the newly infected host (if infection was successful)
-						if (s.infect(susIdx,  infHost, deme, environment) != null) {
-							cases++;     // infection actually occurred
-							susCount--;  // update the counters to reflect
-							infCount++;  // this.
-						}
-						break;  // onto next contact
-					}
-					susIdx -= s.getS();  // onto the next species
+				final Virus virus = getInfection(draws.nextIndex(infCount));
+				// Get random susceptible host (of any species) to infect
+				final int susIdx = draws.nextIndex(susCount);
+				if (infect(susIdx, virus, draws.nextDouble())) {
+					cases++;     // infection actually occurred
+					susCount--;  // update the counters to reflect
+					infCount++;  // this.
+				}
+			}
+		}
+	}
+
+	/**
+	 * Distribute the new contacts by drawing only the successful ones.
+	 * 
+	 * Each contact picks a random infected (and so a strain, i.e.
+	 * phenotype) and a random susceptible (and so an immunity class, i.e.
+	 * immune history) and succeeds with the risk of infection for the
+	 * pair, exactly as in distributeContactsSequentially().  With I_s
+	 * infecteds of strain s and S_c susceptibles of class c a contact
+	 * succeeds with probability sum(I_s * S_c * risk) / (I * S), so the
+	 * number of failed contacts before the next success is geometric and
+	 * the success falls on (s, c) with probability proportional to
+	 * I_s * S_c * risk. Only the hosts that are infected are touched. The
+	 * counts are updated after each success, so the dynamics are the same
+	 * as trying each contact in turn.
+	 * 
+	 * The hosts of each species are kept grouped by strain and class (see
+	 * GroupingHostStore), so this costs O(strains * classes) for the risks
+	 * and O(strains + classes) per success, independent of S and I.
+	 * Contacts are tried one at a time whenever that is cheaper, which is
+	 * decided before computing the risks and again from the expected
+	 * number of successes. Unless
+	 * histories are interned most experienced hosts are a class of their
+	 * own.
+	 */
+	private void distributeThinnedContacts() {
+		int susCount = getS();
+		int infCount = getI();
+		// Compare the work of each method from the groups, counting a risk
+		// computation as one unit per history entry.
+		final int species = speciesList.size();
+		long classEntries = 0, susEntries = 0;
+		int classes = 0, strainBound = 0;
+		for (Species sp : speciesList) {
+			final GroupingHostStore groups = sp.getGroups();
+			if (groups == null) {
+				// Counted susceptibles are not grouped (see HostStoreFactory)
+				distributeContactsSequentially();
+				return;
+			}
+			classEntries += groups.getClassEntries();
+			susEntries   += groups.getSusceptibleEntries();
+			classes      += groups.getClassCount();
+			strainBound  += groups.getStrainCount();
+		}
+		final double sequentialWork = (double) newContacts * susEntries / Math.max(1, susCount);
+		if (susCount == 0 || infCount == 0 || (double) strainBound * classEntries > sequentialWork) {
+			distributeContactsSequentially();
+			return;
+		}
+		final int strains = groupStrains(strainBound);
+		listClasses(classes);
+		// classRisks[s * classes + c] is the risk of strain s for class c,
+		// and strainWeights[s] = sum over c of S_c * risk.
+		if (classRisks.length < strains * classes) {
+			classRisks = new double[strains * classes];
+		}
+		if (strainWeights.length < strains) {
+			strainWeights = new double[strains];
+		}
+		double total = 0;
+		for (int s = 0; (s < strains); s++) {
+			final Phenotype p = strainPhenotypes.get(s);
+			double weight = 0;
+			for (int c = 0; (c < classes); c++) {
+				final GroupingHostStore groups = speciesList.get(classSpecies[c]).getGroups();
+				final double risk = (p == null) ? 0 : histories.riskOfInfection(p, groups.getClassHistory(classGroups[c]));
+				classRisks[s * classes + c] = risk;
+				weight += groups.getClassSize(classGroups[c]) * risk;
+			}
+			strainWeights[s] = weight;
+			total += strainCounts[s] * weight;
+		}
+		// Each success costs a pass over the strains and the classes
+		final double successes = Math.min(susCount, newContacts * total / ((double) infCount * susCount));
+		if (successes * (strains + classes) > sequentialWork) {
+			distributeContactsSequentially();
+			return;
+		}
+		int contacts = newContacts;
+		while (susCount > 0) {
+			// Skip the failed contacts before the next success
+			final double prSuccess = Math.min(1.0, total / ((double) infCount * susCount));
+			if (prSuccess <= 0) {
+				break;     // No remaining contact can succeed
+			}
+			final double failures  = (prSuccess < 1.0) ? 
+					Math.floor(Math.log(1.0 - draws.nextDouble()) / Math.log(1.0 - prSuccess)) : 0;
+			if (failures >= contacts) {
+				break;
+			}
+			contacts -= (int) failures + 1;
+			// Pick the strain and the class of the successful contact,
+			// drawing again if rounding picked a pair that cannot succeed
+			int s, c;
+			do {
+				double x = draws.nextDouble() * total;
+				s = 0;
+				while (s < strains - 1 && (x -= strainCounts[s] * strainWeights[s]) >= 0) {
+					s++;
+				}
+				x = draws.nextDouble() * strainWeights[s];
+				c = 0;
+				while (c < classes - 1 && (x -= classSize(c) * classRisks[s * classes + c]) >= 0) {
+					c++;
+				}
+			} while ((classSize(c) == 0) || (classRisks[s * classes + c] <= 0));
+			// Infect a random member of the class with a random virus of
+			// the strain, picking the species of each in proportion to its
+			// members.
+			int k = draws.nextIndex(strainCounts[s]);
+			int sp = 0;
+			while (k >= strainSize(s, sp)) {
+				k -= strainSize(s, sp++);
+			}
+			final Species strainSpecies = speciesList.get(sp);
+			final Virus virus = strainSpecies.getInfection(
+					strainSpecies.getGroups().getStrainMember(strainGroups[s * species + sp], k));
+			final Species susSpecies = speciesList.get(classSpecies[c]);
+			final int susIdx = susSpecies.getGroups().getClassMember(classGroups[c], draws.nextIndex(classSize(c)));
+			susSpecies.infectHost(susIdx, virus, deme, environment);
+			cases++;
+			susCount--;
+			infCount++;
+			// The groups follow the hosts: update the weights
+			total = 0;
+			for (int t = 0; (t < strains); t++) {
+				strainWeights[t] = Math.max(0, strainWeights[t] - classRisks[t * classes + c]);
+				total += strainCounts[t] * strainWeights[t];
+			}
+			strainCounts[s]++;
+			total += strainWeights[s];
+		}
+	}
+
+	// the number of susceptibles in class c as listed by listClasses()
+	private int classSize(int c) {
+		return speciesList.get(classSpecies[c]).getGroups().getClassSize(classGroups[c]);
+	}
+
+	// the number of infecteds of species sp in strain s of distributeThinnedContacts()
+	private int strainSize(int s, int sp) {
+		final int g = strainGroups[s * speciesList.size() + sp];
+		return (g < 0) ? 0 : speciesList.get(sp).getGroups().getStrainSize(g);
+	}
+
+	/**
+	 * Merge the strains of the species in this deme by phenotype.
+	 * 
+	 * @param bound The total number of strains of the species.
+	 * 
+	 * @return The number of strains. Strain s has phenotype
+	 * strainPhenotypes.get(s) and strainCounts[s] infecteds, and is group
+	 * strainGroups[s * species + sp] (-1 if none) of species sp.
+	 */
+	private int groupStrains(final int bound) {
+		final int species = speciesList.size();
+		if (strainCounts.length < bound) {
+			strainCounts = new int[bound];
+			strainGroups = new int[bound * species];
+		}
+		strainIds.clear();
+		strainPhenotypes.clear();
+		for (int sp = 0; (sp < species); sp++) {
+			final GroupingHostStore groups = speciesList.get(sp).getGroups();
+			for (int g = 0; (g < groups.getStrainIds()); g++) {
+				if (groups.getStrainSize(g) == 0) {
+					continue;
+				}
+				final Phenotype p = groups.getStrainPhenotype(g);
+				Integer id = strainIds.get(p);
+				if (id == null) {
+					id = strainPhenotypes.size();
+					strainIds.put(p, id);
+					strainPhenotypes.add(p);
+					strainCounts[id] = 0;
+					Arrays.fill(strainGroups, id * species, (id + 1) * species, -1);
+				}
+				strainGroups[id * species + sp] = g;
+				strainCounts[id] += groups.getStrainSize(g);
+			}
+		}
+		return strainPhenotypes.size();
+	}
+
+	/**
+	 * List the classes of the species in this deme: class c is group
+	 * classGroups[c] of species classSpecies[c].
+	 */
+	private void listClasses(final int classes) {
+		if (classSpecies.length < classes) {
+			classSpecies = new int[classes];
+			classGroups  = new int[classes];
+		}
+		int c = 0;
+		for (int sp = 0; (sp < speciesList.size()); sp++) {
+			final GroupingHostStore groups = speciesList.get(sp).getGroups();
+			for (int g = 0; (g < groups.getClassIds()); g++) {
+				if (groups.getClassSize(g) > 0) {
+					classSpecies[c]  = sp;
+					classGroups[c++] = g;
 				}
 			}
 		}
@@ -312,86 +848,116 @@ public class HostSpeciesPopulation {
 	// draw a Poisson distributed number of contacts and move from S->I based upon this
 	// this deme is susceptibles and other deme is infecteds
 	public void betweenDemeContact(HostSpeciesPopulation hp) {
+		Random.setStream(rng);
 
 		// each infected makes I->S contacts on a per-day rate of beta * S/N
 		double totalContactRate = hp.getI() * getPrS() * Parameters.beta * Parameters.betweenDemePro * Parameters.getSeasonality(deme) * Parameters.deltaT;
-		int contacts = Random.nextPoisson(totalContactRate);
+		int contacts = rng.nextPoisson(totalContactRate);
 		int susCount = getS();   // initial values that are changed
 		int infCount = getI();   // in the loop below.
 		
 		for (int i = 0; (i < contacts); i++) {
 			if ((susCount > 0) && (infCount > 0)) {
-				// Get random source of infection
-				final Host infHost = hp.getRandomHostI();
-				// Get random species with susceptible to infect
-				int susIdx = Random.nextInt(0, susCount - 1);
-				for (Species s : speciesList) {
-					if (susIdx < s.getS()) {
-						if (s.infect(susIdx,  infHost, deme, environment) != null) {
-							cases++;     // infection actually occurred
-							susCount--;  // update the counters to reflect
-							infCount++;  // this.
-						}
-						break;  // onto next contact
-					}
-					susIdx -= s.getS();  // onto the next species
+				// Get random source of infection, drawing from the stream
+				// of this deme rather than that of the other deme
+				final Virus virus = (hp.getI() > 0) ? hp.getInfection(draws.nextIndex(hp.getI())) : null;
+				// Get random susceptible host (of any species) to infect
+				final int susIdx = draws.nextIndex(susCount);
+				if (infect(susIdx, virus, draws.nextDouble())) {
+					cases++;     // infection actually occurred
+					susCount--;  // update the counters to reflect
+					infCount++;  // this.
 				}
 			}
 		}
 	}
 	
 	// draw a Poisson distributed number of recoveries
-	public void recordRecoveries() {	
+	public void recordRecoveries(double step) {	
+		if (HostStoreFactory.schedulesRecoveries()) {
+			return;  // drawn on infection instead
+		}
 		// each infected recovers at a per-day rate of nu
-		double totalRecoveryRate = getI() * Parameters.nu * Parameters.deltaT;
-		newRecoveries = Random.nextPoisson(totalRecoveryRate);	
+		double totalRecoveryRate = getI() * Parameters.nu * step;
+		newRecoveries = rng.nextPoisson(totalRecoveryRate);	
 	}
 
 	// move from I->S following number of recoveries
 	public void distributeRecoveries() {
-		int infCount = getI();
-		for (int i = 0; ((i < newRecoveries) && (infCount > 0)); i++) {
-			int infIdx = Random.nextInt(0, infCount - 1);
-			for (Species s : speciesList) {
-				if (infIdx < s.getI()) {
-					s.recoverHost(infIdx, environment);
-					infCount--;
-					break;  // onto next recovery
-				}
-				infIdx -= s.getI();  // onto the next species
+		if (HostStoreFactory.schedulesRecoveries()) {
+			// recover the hosts due in this step instead
+			for (int i = 0; (i < speciesList.size()); i++) {
+				speciesList.get(i).recoverDue(environment);
 			}
-		}			
+			return;
+		}
+		final int recoveries = Math.min(newRecoveries, getI());
+		splitAcrossSpecies(Species.INFECTED, recoveries, false);
+		for (int i = 0; (i < speciesList.size()); i++) {
+			speciesList.get(i).recoverHosts(speciesEvents[i], environment);
+		}
 	}
 
 	// draw a Poisson distributed number of R->S 
-	public void loseImmunity() {
+	public void loseImmunity(double step) {
 		// each recovered looses immunity at a per-day rate
-		double totalReturnRate = getR() * Parameters.immunityLoss * Parameters.deltaT;
-		int returns  = Random.nextPoisson(totalReturnRate);
-		int recCount = getR();
-		for (int i = 0; ((i < returns) && (recCount > 0)); i++) {
-			int recIdx = Random.nextInt(0,  recCount - 1);
-			for (Species s : speciesList) {
-				if (recIdx < s.getR()) {
-					s.looseImmunity(recIdx);
-					recCount--;
-					break;  // onto next immunity loss
-				}
-				recIdx -= s.getR();  // onto the next species
-			}
-		}			
+		double totalReturnRate = getR() * Parameters.immunityLoss * step;
+		final int returns = Math.min(rng.nextPoisson(totalReturnRate), getR());
+		splitAcrossSpecies(Species.RECOVERED, returns, false);
+		for (int i = 0; (i < speciesList.size()); i++) {
+			speciesList.get(i).looseImmunities(speciesEvents[i]);
+		}
 	}	
 
 	// draw a Poisson distributed number of mutations and mutate based upon this
 	// mutate should not impact other Virus's Phenotypes through reference
-	public void mutate() {
+	public void mutate(double step) {
 		// each infected mutates at a per-day rate of mu
-		double totalMutationRate = getI() * Parameters.muPhenotype * Parameters.deltaT;
-		int mutations = Random.nextPoisson(totalMutationRate);
-		for (int i = 0; i < mutations; i++) {
-			Host h = getRandomHostI();
-			h.mutate(environment);
-		}			
+		double totalMutationRate = getI() * Parameters.muPhenotype * step;
+		int mutations = rng.nextPoisson(totalMutationRate);
+		// An infected host may mutate more than once.
+		splitAcrossSpecies(Species.INFECTED, mutations, true);
+		for (int i = 0; (i < speciesList.size()); i++) {
+			final Species s = speciesList.get(i);
+			final int count = speciesEvents[i];
+			if (count > indexBlock.length) {
+				indexBlock = new int[count];
+			}
+			// The number of infected hosts does not change due to mutations
+			// so all the indexes are drawn in one block.
+			rng.nextInts(indexBlock, count, 0, s.getI() - 1);
+			for (int j = 0; (j < count); j++) {
+				s.mutate(indexBlock[j], environment);
+			}
+		}
+	}
+
+	/**
+	 * Split a number of events in a given compartment across the species
+	 * in this deme, in proportion to the size of the compartment in each
+	 * species.  The number of events for each species is stored in
+	 * speciesEvents.
+	 *
+	 * @param compartment The compartment, one of Species.SUSCEPTIBLE, 
+	 * Species.INFECTED, or Species.RECOVERED.
+	 *
+	 * @param count The number of events to be split.
+	 *
+	 * @param withReplacement If true a host may be subject to more than 
+	 * one event (multinomial split).  Otherwise events are on distinct 
+	 * hosts (multivariate hypergeometric split) and count must not exceed
+	 * the size of the compartment.
+	 */
+	private void splitAcrossSpecies(int compartment, int count, boolean withReplacement) {
+		final int numSpecies = speciesList.size();
+		for (int i = 0; (i < numSpecies); i++) {
+			speciesSizes[i] = speciesList.get(i).getCount(compartment);
+		}
+		if (withReplacement) {
+			Sampling.multinomial(rng, speciesSizes, numSpecies, count, speciesEvents);
+		} else {
+			Sampling.multivariateHypergeometric(rng, speciesSizes, numSpecies, count, speciesEvents);
+		}
 	}
 
 	public void vaccinate() {
@@ -400,15 +966,11 @@ public class HostSpeciesPopulation {
 		int susCount = getS();
 		
 		for (int i = 0; ((i < vaccine) && (susCount > 0)); i++) {
-			int susIdx = Random.nextInt(0, susCount - 1);
-			for (Species s : speciesList) {
-				if (susIdx < s.getS()) {
-					s.vaccinate(susIdx);
-					susCount--;
-					break;  // onto next vaccination
-				}
-				susIdx -= s.getS();  // onto the next species
-			}
+			int susIdx = rng.nextInt(0, susCount - 1);
+			final int slot = speciesIndex.find(Species.SUSCEPTIBLE, susIdx);
+			susIdx -= speciesIndex.prefix(Species.SUSCEPTIBLE, slot);
+			speciesList.get(slot).vaccinate(susIdx);
+			susCount--;
 		}
 	}
 
@@ -419,15 +981,11 @@ public class HostSpeciesPopulation {
 		int infCount = getI();
 		// Cull the computed number of individuals
 		for (int i = 0; ((i < numCull) && (infCount > 0)); i++) {
-			int infIdx = Random.nextInt(0, infCount - 1);
-			for (Species s : speciesList) {
-				if (infIdx < s.getI()) {
-					s.cull(infIdx);
-					infCount--;
-					break;  // onto next culling.
-				}
-				infIdx -= s.getI();  // onto the next species
-			}
+			int infIdx = rng.nextInt(0, infCount - 1);
+			final int slot = speciesIndex.find(Species.INFECTED, infIdx);
+			infIdx -= speciesIndex.prefix(Species.INFECTED, slot);
+			speciesList.get(slot).cull(infIdx);
+			infCount--;
 		}
 	}
 
@@ -441,10 +999,9 @@ public class HostSpeciesPopulation {
 				totalSamplingRate *= getI();
 			} 
 
-			int samples = Random.nextPoisson(totalSamplingRate);
+			int samples = rng.nextPoisson(totalSamplingRate);
 			for (int i = 0; (i < samples); i++) {
-				Host h = getRandomHostI();
-				Virus v = h.getInfection();
+				Virus v = getRandomInfection();
 				VirusTree.add(v);
 			}
 		}
@@ -457,7 +1014,21 @@ public class HostSpeciesPopulation {
 		}
 	}	
 
+	/**
+	 * Add the viruses infecting the infected hosts of this deme to a list.
+	 * 
+	 * @param list The list to which the viruses are added.
+	 */
+	public void addInfections(List<Virus> list) {
+		for (Species s : speciesList) {
+			for (int i = 0; (i < s.getI()); i++) {
+				list.add(s.getInfection(i));
+			}
+		}
+	}
+
 	public void updateDiversity() {
+		Random.setStream(statsRng);
 
 		diversity = 0.0;
 		tmrca = 0.0;
@@ -473,8 +1044,8 @@ public class HostSpeciesPopulation {
 			int sampleCount = Parameters.diversitySamplingCount;
 
 			for (int i = 0; i < sampleCount; i++) {
-				Virus vA = getRandomInfection();
-				Virus vB = getRandomInfection();
+				Virus vA = getRandomInfection(statsRng);
+				Virus vB = getRandomInfection(statsRng);
 				if (vA != null && vB != null) {
 					double dist = vA.distance(vB);
 					diversity += dist;
@@ -509,6 +1080,7 @@ public class HostSpeciesPopulation {
 
 	// reset population to factory condition
 	public void reset() {
+		Random.setStream(rng);
 		int initialR = 0;
 		if (Parameters.transcendental) {
 			initialR = (int) ((double) Parameters.initialNs[deme] * Parameters.initialPrT);
@@ -0,0 +1,294 @@
+import java.io.PrintStream;
+
+/**
+ * <p>Storage for the susceptible, infected, and recovered hosts of a
+ * species.</p>
+ *
+ * <p>Hosts are addressed by compartment (one of Species.SUSCEPTIBLE,
+ * Species.INFECTED, or Species.RECOVERED) and by their index within the
+ * compartment, in the range 0 <= index < size(compartment).  Removing
+ * a host (or moving it to another compartment) uses swap-remove semantics
+ * identical to those used by the Species class: the last host in the
+ * compartment takes the place of the removed host.  Hosts added to a
+ * compartment are placed at its end.</p>
+ *
+ * <p>Two implementations are available, selected via the hostStore
+ * parameter (see HostStoreFactory):
+ *
+ * <ul>
+ *   <li>ObjectHostStore: each host is a Host object held in a per-compartment
+ *   list. This is the original representation.</li>
+ *   <li>PackedHostStore: host state is packed into primitive arrays, with
+ *   immune histories held in a shared pool. This representation avoids
+ *   per-host object headers and references.</li>
+ *   <li>CohortHostStore: susceptible and recovered hosts are counted in
+ *   cohorts of hosts with the same immune history; only infected hosts
+ *   are held individually.</li>
+ * </ul>
+ * With the countNaiveHosts parameter, the store is wrapped in a
+ * NaiveCountingHostStore.  With the contactThinning parameter, it is
+ * wrapped in a GroupingHostStore if its hosts keep their positions.
+ * Unless the infectiousPeriod parameter is exponential, it is then
+ * wrapped in a ScheduledRecoveryHostStore.
+ * </p>
+ */
+public interface HostStore {
+
+	/**
+	 * Obtain the number of hosts in a compartment.
+	 *
+	 * @param compartment The compartment, one of Species.SUSCEPTIBLE,
+	 * Species.INFECTED, or Species.RECOVERED.
+	 *
+	 * @return The number of hosts in the compartment.
+	 */
+	int size(int compartment);
+
+	/**
+	 * Add a new host to the end of a compartment.
+	 *
+	 * @param compartment The compartment to which the host is to be added.
+	 *
+	 * @param infection The virus with which the host is infected. This
+	 * value must be null unless the compartment is Species.INFECTED.
+	 *
+	 * @param immune If true the host starts with immunity (urImmunity)
+	 * in its history, otherwise its history is empty.
+	 */
+	void add(int compartment, Virus infection, boolean immune);
+
+	/**
+	 * Obtain a host. Implementations that do not hold Host objects return
+	 * a detached copy of the host, so changes to the returned host are not
+	 * reflected in this store.
+	 *
+	 * @param compartment The compartment of the host.
+	 *
+	 * @param index The index of the host in the compartment.
+	 *
+	 * @return The host at the given index.
+	 */
+	Host getHost(int compartment, int index);
+
+	/**
+	 * Obtain the virus with which a host is infected.
+	 *
+	 * @param compartment The compartment of the host.
+	 *
+	 * @param index The index of the host in the compartment.
+	 *
+	 * @return The infecting virus. This value is null if the host is not
+	 * infected.
+	 */
+	Virus getInfection(int compartment, int index);
+
+	/**
+	 * Obtain the number of phenotypes in the immune history of a host.
+	 *
+	 * @param compartment The compartment of the host.
+	 *
+	 * @param index The index of the host in the compartment.
+	 *
+	 * @return The number of entries in the immune history of the host.
+	 */
+	int getHistoryLength(int compartment, int index);
+
+	/**
+	 * Obtain the immune history of a host.
+	 *
+	 * @param compartment The compartment of the host.
+	 *
+	 * @param index The index of the host in the compartment.
+	 *
+	 * @return The handle of the history in the HistoryArena. The handle
+	 * is only valid until the history of the host changes.
+	 */
+	int getHistory(int compartment, int index);
+
+	/**
+	 * Obtain the risk of infection of a host by a virus with a given
+	 * phenotype, based on the immune history of the host.
+	 *
+	 * @param p The phenotype of the virus.
+	 *
+	 * @param compartment The compartment of the host.
+	 *
+	 * @param index The index of the host in the compartment.
+	 *
+	 * @return The risk of infection, in the range 0 to 1.
+	 */
+	double riskOfInfection(Phenotype p, int compartment, int index);
+
+	/**
+	 * Infect a susceptible host with a new virus descended from a given
+	 * virus and move the host to the end of the infected compartment.
+	 *
+	 * @param susIdx The index of the susceptible host.
+	 *
+	 * @param parent The virus from which the infecting virus descends.
+	 *
+	 * @param deme The number of the deme.
+	 *
+	 * @param env The environment to be updated with the new virus.
+	 */
+	void infect(int susIdx, Virus parent, int deme, Environment env);
+
+	/**
+	 * Clear the infection in an infected host, adding its phenotype to the
+	 * immune history of the host, and move the host to the end of another
+	 * compartment.
+	 *
+	 * @param infIdx The index of the infected host.
+	 *
+	 * @param compartment The compartment to which the host is to be moved.
+	 *
+	 * @param env The environment to use to report clearing an infection.
+	 */
+	void recover(int infIdx, int compartment, Environment env);
+
+	/**
+	 * Move a host to the end of another compartment without changing its
+	 * infection or immune history.
+	 *
+	 * @param from The compartment of the host.
+	 *
+	 * @param index The index of the host in the compartment.
+	 *
+	 * @param to The compartment to which the host is to be moved.
+	 */
+	void move(int from, int index, int to);
+
+	/**
+	 * Clear the infection and immune history of a host. The host remains
+	 * in its compartment.
+	 *
+	 * @param compartment The compartment of the host.
+	 *
+	 * @param index The index of the host in the compartment.
+	 */
+	void reset(int compartment, int index);
+
+	/**
+	 * Replace the virus in an infected host with a mutant of the virus.
+	 *
+	 * @param infIdx The index of the infected host.
+	 *
+	 * @param env The environment in which the virus is shed.
+	 */
+	void mutate(int infIdx, Environment env);
+
+	/**
+	 * Exchange the positions of two hosts in a compartment.
+	 *
+	 * @param compartment The compartment of the hosts.
+	 *
+	 * @param i The index of the first host.
+	 *
+	 * @param j The index of the second host.
+	 */
+	void swap(int compartment, int i, int j);
+
+	/**
+	 * Remove a given number of randomly chosen hosts from a compartment,
+	 * as on their death.
+	 *
+	 * @param compartment The compartment of the hosts.
+	 *
+	 * @param count The number of hosts to remove. This value must be in
+	 * the range 0 <= count <= size(compartment).
+	 */
+	default void removeRandom(int compartment, int count) {
+		final int size = size(compartment);
+		// Partial Fisher-Yates shuffle of the last count entries.
+		for (int i = 0; (i < count); i++) {
+			final int lastIdx = size - 1 - i;
+			swap(compartment, Random.nextInt(0, lastIdx), lastIdx);
+		}
+		truncate(compartment, size - count);
+	}
+
+	/**
+	 * Move a given number of randomly chosen hosts to another compartment,
+	 * as on the loss of immunity.
+	 *
+	 * @param from The compartment of the hosts.
+	 *
+	 * @param count The number of hosts to move. This value must be in
+	 * the range 0 <= count <= size(from).
+	 *
+	 * @param to The compartment to which the hosts are to be moved.
+	 */
+	default void moveRandom(int from, int count, int to) {
+		final int size = size(from);
+		// Partial Fisher-Yates shuffle of the last count entries.
+		for (int i = 0; (i < count); i++) {
+			final int lastIdx = size - 1 - i;
+			swap(from, Random.nextInt(0, lastIdx), lastIdx);
+		}
+		// Move from the end so that no other hosts are moved
+		for (int i = size - 1; (i >= size - count); i--) {
+			move(from, i, to);
+		}
+	}
+
+	/**
+	 * Clear the infection and immune history of a host and move it to
+	 * the end of the susceptible compartment, as on the death of a host
+	 * and the birth of a naive one in its place.
+	 *
+	 * @param compartment The compartment of the host.
+	 *
+	 * @param index The index of the host in the compartment.
+	 */
+	default void makeNaive(int compartment, int index) {
+		reset(compartment, index);
+		if (compartment != Species.SUSCEPTIBLE) {
+			move(compartment, index, Species.SUSCEPTIBLE);
+		}
+	}
+
+	/**
+	 * Remove a host. The last host in the compartment takes its place.
+	 *
+	 * @param compartment The compartment of the host.
+	 *
+	 * @param index The index of the host to be removed.
+	 */
+	void remove(int compartment, int index);
+
+	/**
+	 * Remove all hosts at the end of a compartment.
+	 *
+	 * @param compartment The compartment whose hosts are to be removed.
+	 *
+	 * @param size The number of hosts to remain in the compartment.
+	 */
+	void truncate(int compartment, int size);
+
+	/**
+	 * Remove all hosts in all compartments.
+	 */
+	void clear();
+
+	/**
+	 * Obtain the groups of the hosts by immunity class and strain.
+	 *
+	 * @return The GroupingHostStore of this store, or null if its hosts
+	 * are not grouped.
+	 */
+	default GroupingHostStore getGroups() {
+		return null;
+	}
+
+	/**
+	 * Print the infection and immune history of a host in the format
+	 * used by Host.printInfection and Host.printHistory, separated by ':'.
+	 *
+	 * @param stream The output stream to which the host is to be printed.
+	 *
+	 * @param compartment The compartment of the host.
+	 *
+	 * @param index The index of the host in the compartment.
+	 */
+	void printHost(PrintStream stream, int compartment, int index);
+}
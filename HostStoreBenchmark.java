@@ -0,0 +1,116 @@
+import java.lang.management.ManagementFactory;
+
+import com.javamex.classmexer.MemoryUtil;
+
+/**
+ * Benchmark to compare the memory used per host by the HostStore
+ * implementations.  Each store is filled with the same number of hosts
+ * with immune histories of a given length and its deep memory usage,
+ * including the HistoryArena, is reported together with the number of
+ * bytes allocated per infection and recovery of a host with such a
+ * history.  All hosts are infected with the same strain, so with
+ * internHistories all hosts with histories of the same length share
+ * them; this is the best case for interning.  With countNaiveHosts,
+ * hosts without histories of their own are only counted.  Like memoryProfiling,
+ * this program must be run with the classmexer agent, for example:
+ *
+ * <pre>
+ * java -javaagent:classmexer.jar -cp classmexer.jar:colt-1.2.0.jar:snakeyaml-1.8.jar:. \
+ *      HostStoreBenchmark [paramFile] [numHosts]
+ * </pre>
+ */
+public class HostStoreBenchmark {
+	public static void main(String[] args) {
+		final String paramFile = (args.length > 0) ? args[0] : "parameters.yml";
+		final int numHosts     = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+		Parameters.load(paramFile);
+		Parameters.initialize();
+		Random.initialize(1);
+		final Environment env = Parameters.getEnvironment(0);
+
+		System.out.println("store\tintern\tcounted\thistoryLength\tbytesPerHost\tbytesPerRecovery");
+		for (boolean counted : new boolean[] {false, true}) {
+			Parameters.countNaiveHosts = counted;
+			for (boolean intern : new boolean[] {false, true}) {
+				Parameters.internHistories = intern;
+				for (int historyLength : new int[] {0, 1, 2, 4}) {
+					for (String type : new String[] {HostStoreFactory.OBJECT, HostStoreFactory.PACKED,
+							HostStoreFactory.COHORT}) {
+						if (HostStoreFactory.COHORT.equals(type) && !intern) {
+							continue;  // cohorts need interned histories
+						}
+						Parameters.hostStore = type;
+						final HostStore store = HostStoreFactory.makeHostStore(new HistoryArena());
+						fill(store, numHosts, historyLength, env);
+						// The store refers to its arena, so this includes the histories
+						final long bytes = MemoryUtil.deepMemoryUsageOf(store);
+						System.out.printf("%s\t%b\t%b\t%d\t%.1f\t%.1f\n", type, intern, counted,
+								historyLength, (double) bytes / numHosts,
+								allocationPerRecovery(store, env));
+						store.clear();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Measure the bytes allocated by the current thread for each
+	 * infection and recovery of the hosts in a store. Each host gains one
+	 * entry in its history and is then reset, as on the death of a host,
+	 * so that this is the allocation in a population of constant size.
+	 * This includes the allocation of new viruses.
+	 */
+	private static double allocationPerRecovery(HostStore store, Environment env) {
+		final com.sun.management.ThreadMXBean bean =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		final int numHosts = store.size(Species.SUSCEPTIBLE);
+		final long before  = bean.getCurrentThreadAllocatedBytes();
+		for (int i = 0; (i < numHosts); i++) {
+			store.infect(0, Parameters.urVirus, 0, env);
+			store.recover(store.size(Species.INFECTED) - 1, Species.RECOVERED, env);
+			store.reset(Species.RECOVERED, store.size(Species.RECOVERED) - 1);
+		}
+		return (double) (bean.getCurrentThreadAllocatedBytes() - before) / numHosts;
+	}
+
+	/**
+	 * Add susceptible hosts to a store, each with an immune history of
+	 * the given length (in addition to the initial immunity of hosts).
+	 * Histories are built via a sequence of infections and recoveries.
+	 */
+	private static void fill(HostStore store, int numHosts, int historyLength,
+			Environment env) {
+		if (!HostStoreFactory.keepsPositions()) {
+			fillInRounds(store, numHosts, historyLength, env);
+			return;
+		}
+		for (int i = 0; (i < numHosts); i++) {
+			store.add(Species.SUSCEPTIBLE, null, Random.nextBoolean(Parameters.initialPrR));
+			final int susIdx = store.size(Species.SUSCEPTIBLE) - 1;
+			for (int h = 0; (h < historyLength); h++) {
+				store.infect(susIdx, Parameters.urVirus, 0, env);
+				store.recover(store.size(Species.INFECTED) - 1, Species.SUSCEPTIBLE, env);
+			}
+		}
+	}
+
+	/**
+	 * Fill a store that does not keep the positions of hosts. In each
+	 * round every host is infected and recovers to the recovered
+	 * compartment, and all hosts are then moved back.
+	 */
+	private static void fillInRounds(HostStore store, int numHosts, int historyLength,
+			Environment env) {
+		for (int i = 0; (i < numHosts); i++) {
+			store.add(Species.SUSCEPTIBLE, null, Random.nextBoolean(Parameters.initialPrR));
+		}
+		for (int h = 0; (h < historyLength); h++) {
+			while (store.size(Species.SUSCEPTIBLE) > 0) {
+				store.infect(store.size(Species.SUSCEPTIBLE) - 1, Parameters.urVirus, 0, env);
+				store.recover(store.size(Species.INFECTED) - 1, Species.RECOVERED, env);
+			}
+			store.moveRandom(Species.RECOVERED, store.size(Species.RECOVERED), Species.SUSCEPTIBLE);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/* Acts as constructor for HostStore objects */
+/* A completely static class */
+
+public class HostStoreFactory {
+
+	public static String OBJECT = "object";
+	public static String PACKED = "packed";
+	public static String COHORT = "cohort";
+
+	public static String EXPONENTIAL = "exponential";
+	public static String GAMMA       = "gamma";
+	public static String ERLANG      = "erlang";
+
+	// returns newly instantiated HostStore objects of type according to Parameters.hostStore
+	// holding the immune histories of their hosts in the given arena
+	// wrapped to count naive susceptible hosts if Parameters.countNaiveHosts is set,
+	// to group hosts by immunity class and strain if Parameters.contactThinning is set and they keep their positions,
+	// and to schedule recoveries unless Parameters.infectiousPeriod is exponential
+	public static HostStore makeHostStore(HistoryArena arena) {
+
+		HostStore store = makeBaseHostStore(arena);
+		if (Parameters.countNaiveHosts) { store = new NaiveCountingHostStore(store, arena); }
+		if (Parameters.contactThinning && keepsPositions()) { store = new GroupingHostStore(store, arena); }
+		if (schedulesRecoveries()) { store = new ScheduledRecoveryHostStore(store); }
+		return store;
+
+	}
+
+	// whether the stores made are ScheduledRecoveryHostStores, according to Parameters.infectiousPeriod
+	public static boolean schedulesRecoveries() {
+
+		if (EXPONENTIAL.equals(Parameters.infectiousPeriod)) { return false; }
+		if (GAMMA.equals(Parameters.infectiousPeriod)) { return true; }
+		if (ERLANG.equals(Parameters.infectiousPeriod)) {
+			if (Parameters.infectiousPeriodShape != Math.rint(Parameters.infectiousPeriodShape)) {
+				throw new RuntimeException("Erlang infectious periods need a whole infectiousPeriodShape");
+			}
+			return true;
+		}
+		throw new RuntimeException("Unknown infectiousPeriod: " + Parameters.infectiousPeriod);
+
+	}
+
+	// whether the stores made keep the positions of hosts when other hosts are removed
+	public static boolean keepsPositions() {
+
+		return !Parameters.countNaiveHosts && !COHORT.equals(Parameters.hostStore);
+
+	}
+
+	private static HostStore makeBaseHostStore(HistoryArena arena) {
+
+		if (OBJECT.equals(Parameters.hostStore)) { return new ObjectHostStore(arena); }
+		if (PACKED.equals(Parameters.hostStore)) { return new PackedHostStore(arena); }
+		if (COHORT.equals(Parameters.hostStore)) { return new CohortHostStore(arena); }
+		throw new RuntimeException("Unknown hostStore: " + Parameters.hostStore);
+
+	}
+
+}
@@ -0,0 +1,71 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * <p>The report of the leaps made by the TauLeapStepper objects of a
+ * simulation.  For each step of each deme the number of leaps, their
+ * mean and smallest length, and the number of exact events are written
+ * to out.steps, and totals over all demes and steps are kept for the
+ * summary printed at the end of the run.</p>
+ *
+ * <p>One report is created by each SimulationSpecies and passed to the
+ * steppers of its demes.  Its methods are synchronized, so that demes may
+ * be stepped concurrently.</p>
+ */
+public class LeapReport {
+	/** The steps file, opened on first use. */
+	private PrintStream stepsStream = null;
+
+	/** Totals over all demes and steps. */
+	private long   totalLeaps       = 0;
+	private double totalLeapTime    = 0;
+	private long   totalExactEvents = 0;
+
+	/**
+	 * Record the leaps of one step of a deme.
+	 *
+	 * @param deme The index of the deme.
+	 *
+	 * @param leaps The number of leaps in the step.
+	 *
+	 * @param leapTime The total length of the leaps in days.
+	 *
+	 * @param shortest The length of the shortest leap in days.
+	 *
+	 * @param events The number of events simulated exactly in the step.
+	 */
+	public synchronized void record(int deme, int leaps, double leapTime, double shortest, int events) {
+		totalLeaps       += leaps;
+		totalLeapTime    += leapTime;
+		totalExactEvents += events;
+		try {
+			if (stepsStream == null) {
+				File stepsFile = new File(Parameters.outputDir + "/out.steps");
+				stepsFile.delete();
+				stepsFile.createNewFile();
+				stepsStream = new PrintStream(stepsFile);
+				stepsStream.println("day\tdeme\tleaps\tmeanLeap\tminLeap\texactEvents");
+			}
+		} catch(IOException ex) {
+			System.out.println("Could not write to file");
+			System.exit(0);
+		}
+		stepsStream.printf("%.4f\t%d\t%d\t%.6f\t%.6f\t%d\n", Parameters.day, deme, leaps,
+				(leaps == 0) ? 0.0 : leapTime / leaps, (leaps == 0) ? 0.0 : shortest, events);
+	}
+
+	/**
+	 * Close out.steps and print the totals of the run, if any steps were
+	 * recorded.
+	 */
+	public synchronized void printSummary() {
+		if (stepsStream == null) {
+			return;
+		}
+		stepsStream.close();
+		stepsStream = null;
+		System.out.printf("Tau leaping: %d leaps, mean leap %.4f days, %d exact events\n",
+				totalLeaps, (totalLeaps == 0) ? 0.0 : totalLeapTime / totalLeaps, totalExactEvents);
+	}
+}
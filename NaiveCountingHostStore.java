@@ -0,0 +1,266 @@
+import java.io.PrintStream;
+
+/**
+ * <p>A host store that keeps susceptible hosts without individual state
+ * as plain counts, delegating all other hosts to another store.</p>
+ *
+ * <p>A susceptible host that has never been infected either has an empty
+ * immune history (naive) or only urImmunity (primed). Such hosts are
+ * counted rather than stored.  They follow the hosts of the underlying
+ * store in the susceptible compartment: indexes from the size of the
+ * underlying compartment onwards address the naive hosts and then the
+ * primed hosts.  A counted host is only created in the underlying store
+ * when it is infected.  Births, deaths, and resets of susceptible hosts
+ * are therefore mostly arithmetic.</p>
+ *
+ * <p>Since all counted hosts of a kind are alike, the positions of
+ * susceptible hosts are not preserved: removing or resetting a
+ * susceptible host may change which host is at other indexes, unlike
+ * the swap-remove semantics of other stores.  Swapping two susceptible
+ * hosts is only supported within the underlying store or within a
+ * block of counted hosts.</p>
+ */
+public class NaiveCountingHostStore implements HostStore {
+	/** The store holding all other hosts. */
+	private final HostStore hosts;
+
+	/** The number of counted naive and primed susceptible hosts. */
+	private int naive  = 0;
+	private int primed = 0;
+
+	/** The history (urImmunity) shared by primed hosts. */
+	private int primedHistory = HistoryArena.EMPTY;
+
+	/** The arena holding the immune histories of the hosts. */
+	private final HistoryArena arena;
+
+	/**
+	 * Create a store that counts naive susceptible hosts.
+	 *
+	 * @param hosts The store to hold the other hosts.
+	 *
+	 * @param arena The arena holding the immune histories of the hosts.
+	 */
+	public NaiveCountingHostStore(HostStore hosts, HistoryArena arena) {
+		this.hosts = hosts;
+		this.arena = arena;
+	}
+
+	@Override
+	public int size(int compartment) {
+		return hosts.size(compartment) + ((compartment == Species.SUSCEPTIBLE) ? naive + primed : 0);
+	}
+
+	@Override
+	public void add(int compartment, Virus infection, boolean immune) {
+		if (compartment != Species.SUSCEPTIBLE) {
+			hosts.add(compartment, infection, immune);
+		} else if (immune) {
+			primed++;
+		} else {
+			naive++;
+		}
+	}
+
+	@Override
+	public Host getHost(int compartment, int index) {
+		if (!isCounted(compartment, index)) {
+			return hosts.getHost(compartment, index);
+		}
+		return new Host(arena, null, getHistory(compartment, index));
+	}
+
+	@Override
+	public Virus getInfection(int compartment, int index) {
+		return isCounted(compartment, index) ? null : hosts.getInfection(compartment, index);
+	}
+
+	@Override
+	public int getHistoryLength(int compartment, int index) {
+		return arena.length(getHistory(compartment, index));
+	}
+
+	@Override
+	public int getHistory(int compartment, int index) {
+		if (!isCounted(compartment, index)) {
+			return hosts.getHistory(compartment, index);
+		}
+		return isPrimed(index) ? getPrimedHistory() : HistoryArena.EMPTY;
+	}
+
+	@Override
+	public double riskOfInfection(Phenotype p, int compartment, int index) {
+		return arena.riskOfInfection(p, getHistory(compartment, index));
+	}
+
+	@Override
+	public void infect(int susIdx, Virus parent, int deme, Environment env) {
+		if (isCounted(Species.SUSCEPTIBLE, susIdx)) {
+			// Create the host, as the last host of the underlying store
+			final boolean immune = uncount(susIdx);
+			hosts.add(Species.SUSCEPTIBLE, null, immune);
+			susIdx = hosts.size(Species.SUSCEPTIBLE) - 1;
+		}
+		hosts.infect(susIdx, parent, deme, env);
+	}
+
+	@Override
+	public void recover(int infIdx, int compartment, Environment env) {
+		hosts.recover(infIdx, compartment, env);
+	}
+
+	@Override
+	public void move(int from, int index, int to) {
+		if (isCounted(from, index)) {
+			final boolean immune = uncount(index);
+			if (to == Species.SUSCEPTIBLE) {
+				add(to, null, immune);
+			} else {
+				hosts.add(to, null, immune);
+			}
+		} else if (to == Species.SUSCEPTIBLE && isNaive(from, index)) {
+			// A host reset before it is moved is counted again
+			hosts.remove(from, index);
+			naive++;
+		} else {
+			hosts.move(from, index, to);
+		}
+	}
+
+	@Override
+	public void reset(int compartment, int index) {
+		if (isCounted(compartment, index)) {
+			// A reset primed host loses urImmunity too
+			uncount(index);
+			naive++;
+		} else if (compartment == Species.SUSCEPTIBLE) {
+			hosts.remove(compartment, index);
+			naive++;
+		} else {
+			hosts.reset(compartment, index);
+		}
+	}
+
+	@Override
+	public void makeNaive(int compartment, int index) {
+		remove(compartment, index);
+		naive++;
+	}
+
+	@Override
+	public void mutate(int infIdx, Environment env) {
+		hosts.mutate(infIdx, env);
+	}
+
+	@Override
+	public void swap(int compartment, int i, int j) {
+		if (!isCounted(compartment, i) && !isCounted(compartment, j)) {
+			hosts.swap(compartment, i, j);
+		} else if (!isCounted(compartment, i) || !isCounted(compartment, j) ||
+				isPrimed(i) != isPrimed(j)) {
+			throw new RuntimeException("Cannot swap a counted susceptible host with another host");
+		}
+	}
+
+	@Override
+	public void removeRandom(int compartment, int count) {
+		if (compartment != Species.SUSCEPTIBLE) {
+			hosts.removeRandom(compartment, count);
+			return;
+		}
+		// Split the deaths between stored, naive, and primed hosts
+		final int stored = hosts.size(compartment);
+		final RandomStream rng = Random.getStream();
+		final int deadStored = Sampling.hypergeometric(rng, stored, naive + primed, count);
+		final int deadNaive  = Sampling.hypergeometric(rng, naive, primed, count - deadStored);
+		naive  -= deadNaive;
+		primed -= count - deadStored - deadNaive;
+		hosts.removeRandom(compartment, deadStored);
+	}
+
+	@Override
+	public void moveRandom(int from, int count, int to) {
+		if (from == Species.SUSCEPTIBLE) {
+			// Counted hosts cannot be swapped with stored ones (see swap)
+			throw new RuntimeException("Cannot move random susceptible hosts out of a store that counts them");
+		}
+		hosts.moveRandom(from, count, to);
+	}
+
+	@Override
+	public void remove(int compartment, int index) {
+		if (isCounted(compartment, index)) {
+			uncount(index);
+		} else {
+			hosts.remove(compartment, index);
+		}
+	}
+
+	@Override
+	public void truncate(int compartment, int size) {
+		if (compartment == Species.SUSCEPTIBLE) {
+			// Counted hosts are at the end: primed, then naive hosts go first
+			final int stored = hosts.size(compartment);
+			primed = Math.min(primed, Math.max(0, size - stored - naive));
+			naive  = Math.min(naive, Math.max(0, size - stored));
+			size   = Math.min(size, stored);
+		}
+		hosts.truncate(compartment, size);
+	}
+
+	@Override
+	public void clear() {
+		hosts.clear();
+		naive = primed = 0;
+		arena.release(primedHistory);
+		primedHistory = HistoryArena.EMPTY;
+	}
+
+	@Override
+	public void printHost(PrintStream stream, int compartment, int index) {
+		if (!isCounted(compartment, index)) {
+			hosts.printHost(stream, compartment, index);
+			return;
+		}
+		stream.print("n:");
+		stream.print(isPrimed(index) ? Parameters.urImmunity.toString() : "n");
+	}
+
+	//-------------------- Counted hosts ------------------------------//
+
+	private boolean isCounted(int compartment, int index) {
+		return (compartment == Species.SUSCEPTIBLE) && (index >= hosts.size(compartment));
+	}
+
+	// whether the counted host at index is primed rather than naive
+	private boolean isPrimed(int index) {
+		return (index - hosts.size(Species.SUSCEPTIBLE)) >= naive;
+	}
+
+	// whether a stored host is uninfected with an empty history
+	private boolean isNaive(int compartment, int index) {
+		return (hosts.getInfection(compartment, index) == null) &&
+				(hosts.getHistoryLength(compartment, index) == 0);
+	}
+
+	/**
+	 * Remove a counted host.
+	 *
+	 * @return true if the host was primed.
+	 */
+	private boolean uncount(int index) {
+		if (isPrimed(index)) {
+			primed--;
+			return true;
+		}
+		naive--;
+		return false;
+	}
+
+	private int getPrimedHistory() {
+		if (primedHistory == HistoryArena.EMPTY) {
+			primedHistory = arena.append(HistoryArena.EMPTY, Parameters.urImmunity);
+		}
+		return primedHistory;
+	}
+}
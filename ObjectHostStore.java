@@ -0,0 +1,155 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * A host store in which each host is a Host object. The hosts in each
+ * compartment are held in an ArrayList. This is the original
+ * representation of hosts used by the Species class.
+ */
+public class ObjectHostStore implements HostStore {
+	/** The list of hosts in each compartment. */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final ArrayList<Host>[] compartments = new ArrayList[] {
+		new ArrayList<Host>(), new ArrayList<Host>(), new ArrayList<Host>()
+	};
+
+	/** The arena holding the immune histories of the hosts. */
+	private final HistoryArena arena;
+
+	/**
+	 * Create an empty store.
+	 *
+	 * @param arena The arena to hold the immune histories of the hosts.
+	 */
+	public ObjectHostStore(HistoryArena arena) {
+		this.arena = arena;
+	}
+
+	@Override
+	public int size(int compartment) {
+		return compartments[compartment].size();
+	}
+
+	@Override
+	public void add(int compartment, Virus infection, boolean immune) {
+		compartments[compartment].add(new Host(arena, infection, immune));
+	}
+
+	@Override
+	public Host getHost(int compartment, int index) {
+		return compartments[compartment].get(index);
+	}
+
+	@Override
+	public Virus getInfection(int compartment, int index) {
+		return compartments[compartment].get(index).getInfection();
+	}
+
+	@Override
+	public int getHistoryLength(int compartment, int index) {
+		return compartments[compartment].get(index).getHistoryLength();
+	}
+
+	@Override
+	public int getHistory(int compartment, int index) {
+		return compartments[compartment].get(index).getHistoryHandle();
+	}
+
+	@Override
+	public double riskOfInfection(Phenotype p, int compartment, int index) {
+		return compartments[compartment].get(index).riskOfInfection(p);
+	}
+
+	@Override
+	public void infect(int susIdx, Virus parent, int deme, Environment env) {
+		final ArrayList<Host> susceptibles = compartments[Species.SUSCEPTIBLE];
+		final Host susHost = susceptibles.get(susIdx);
+		remove(susceptibles, susIdx);
+		susHost.infect(parent, deme, env);
+		compartments[Species.INFECTED].add(susHost);
+	}
+
+	@Override
+	public void recover(int infIdx, int compartment, Environment env) {
+		final ArrayList<Host> infecteds = compartments[Species.INFECTED];
+		final Host h = infecteds.get(infIdx);
+		h.clearInfection(env);
+		remove(infecteds, infIdx);
+		compartments[compartment].add(h);
+	}
+
+	@Override
+	public void move(int from, int index, int to) {
+		final Host h = compartments[from].get(index);
+		remove(compartments[from], index);
+		compartments[to].add(h);
+	}
+
+	@Override
+	public void reset(int compartment, int index) {
+		compartments[compartment].get(index).reset();
+	}
+
+	@Override
+	public void mutate(int infIdx, Environment env) {
+		compartments[Species.INFECTED].get(infIdx).mutate(env);
+	}
+
+	@Override
+	public void swap(int compartment, int i, int j) {
+		final ArrayList<Host> list = compartments[compartment];
+		final Host h = list.get(i);
+		list.set(i, list.get(j));
+		list.set(j, h);
+	}
+
+	@Override
+	public void remove(int compartment, int index) {
+		compartments[compartment].get(index).release();
+		remove(compartments[compartment], index);
+	}
+
+	@Override
+	public void truncate(int compartment, int size) {
+		final ArrayList<Host> list = compartments[compartment];
+		for (int i = size; (i < list.size()); i++) {
+			list.get(i).release();
+		}
+		list.subList(size, list.size()).clear();
+	}
+
+	@Override
+	public void clear() {
+		for (ArrayList<Host> list : compartments) {
+			for (Host h : list) {
+				h.release();
+			}
+			list.clear();
+		}
+	}
+
+	@Override
+	public void printHost(PrintStream stream, int compartment, int index) {
+		final Host h = compartments[compartment].get(index);
+		h.printInfection(stream);
+		stream.print(":");
+		h.printHistory(stream);
+	}
+
+	/** Convenience method to remove an entry from a given host list.
+	 *
+	 * This method performs a quick removal operation by swapping the
+	 * entry to be removed with the last element and then removing
+	 * the last entry.
+	 *
+	 * @param list The list from which the entry is to be removed.
+	 *
+	 * @param delIdx The index of the entry to be removed.
+	 */
+	private static void remove(ArrayList<Host> list, final int delIdx) {
+		final int lastIdx   = list.size() - 1;
+		final Host lastHost = list.get(lastIdx);
+		list.set(delIdx, lastHost);
+		list.remove(lastIdx);
+	}
+}
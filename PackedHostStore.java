@@ -0,0 +1,292 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * <p>A host store that packs the state of hosts into primitive arrays
+ * (a structure of arrays) rather than using one Host object per host.</p>
+ *
+ * <p>Each host occupies a slot. For each slot the store records the id
+ * of the virus with which it is infected and the handle of its immune
+ * history in the HistoryArena of its deme. Each compartment is an array
+ * of slot numbers. Slots, virus ids, and histories of removed hosts are
+ * reused.</p>
+ */
+public class PackedHostStore implements HostStore {
+	/** Initial number of slots and virus ids. */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** Marker for hosts that are not infected. */
+	private static final int NO_INFECTION = -1;
+
+	// The per-slot columns.
+	private int[] infection = new int[INITIAL_CAPACITY];
+	private int[] history   = new int[INITIAL_CAPACITY];
+
+	/** The number of slots that have been used so far. */
+	private int slotsUsed = 0;
+
+	/** Slots of removed hosts available for reuse. */
+	private int[] freeSlots = new int[INITIAL_CAPACITY];
+	private int   freeSlotCount = 0;
+
+	/** The slots of the hosts in each compartment. */
+	private final int[][] members = new int[][] {
+		new int[INITIAL_CAPACITY], new int[INITIAL_CAPACITY], new int[INITIAL_CAPACITY]
+	};
+
+	/** The number of hosts in each compartment. */
+	private final int[] counts = new int[3];
+
+	/** The viruses referred to by infection ids. */
+	private Virus[] viruses = new Virus[INITIAL_CAPACITY];
+	private int     virusesUsed = 0;
+
+	/** Virus ids no longer in use. */
+	private int[] freeViruses = new int[INITIAL_CAPACITY];
+	private int   freeVirusCount = 0;
+
+	/** The arena holding the immune histories of the hosts. */
+	private final HistoryArena arena;
+
+	/**
+	 * Create an empty store.
+	 *
+	 * @param arena The arena to hold the immune histories of the hosts.
+	 */
+	public PackedHostStore(HistoryArena arena) {
+		this.arena = arena;
+	}
+
+	@Override
+	public int size(int compartment) {
+		return counts[compartment];
+	}
+
+	@Override
+	public void add(int compartment, Virus v, boolean immune) {
+		final int slot = newSlot();
+		if (immune) {
+			history[slot] = arena.append(history[slot], Parameters.urImmunity);
+		}
+		if (v != null) {
+			infection[slot] = newVirusId(v);
+		}
+		addMember(compartment, slot);
+	}
+
+	@Override
+	public Host getHost(int compartment, int index) {
+		final int slot = members[compartment][index];
+		return new Host(arena, getVirus(slot), history[slot]);
+	}
+
+	@Override
+	public Virus getInfection(int compartment, int index) {
+		return getVirus(members[compartment][index]);
+	}
+
+	@Override
+	public int getHistoryLength(int compartment, int index) {
+		return arena.length(history[members[compartment][index]]);
+	}
+
+	@Override
+	public int getHistory(int compartment, int index) {
+		return history[members[compartment][index]];
+	}
+
+	@Override
+	public double riskOfInfection(Phenotype p, int compartment, int index) {
+		return arena.riskOfInfection(p, history[members[compartment][index]]);
+	}
+
+	@Override
+	public void infect(int susIdx, Virus parent, int deme, Environment env) {
+		final int slot = members[Species.SUSCEPTIBLE][susIdx];
+		removeMember(Species.SUSCEPTIBLE, susIdx);
+		final Virus v = new Virus(parent, deme);
+		infection[slot] = newVirusId(v);
+		// Update environmental parameters
+		v.hostInfected();
+		if (v.getNumShedding() == 1) {
+			env.add(v);
+		}
+		addMember(Species.INFECTED, slot);
+	}
+
+	@Override
+	public void recover(int infIdx, int compartment, Environment env) {
+		final int slot = members[Species.INFECTED][infIdx];
+		final Virus v  = getVirus(slot);
+		history[slot] = arena.append(history[slot], v.getPhenotype());
+		// Update environmental parameters
+		v.hostRecovered();
+		clearInfection(slot);
+		removeMember(Species.INFECTED, infIdx);
+		addMember(compartment, slot);
+	}
+
+	@Override
+	public void move(int from, int index, int to) {
+		final int slot = members[from][index];
+		removeMember(from, index);
+		addMember(to, slot);
+	}
+
+	@Override
+	public void reset(int compartment, int index) {
+		final int slot = members[compartment][index];
+		clearInfection(slot);
+		clearHistory(slot);
+	}
+
+	@Override
+	public void mutate(int infIdx, Environment env) {
+		final int slot  = members[Species.INFECTED][infIdx];
+		final Virus v   = viruses[infection[slot]];
+		final Virus mut = v.mutate();
+		// Update number of hosts shedding virus
+		v.hostRecovered();
+		viruses[infection[slot]] = mut;
+		mut.hostInfected();
+	}
+
+	@Override
+	public void swap(int compartment, int i, int j) {
+		final int[] list = members[compartment];
+		final int slot   = list[i];
+		list[i] = list[j];
+		list[j] = slot;
+	}
+
+	@Override
+	public void remove(int compartment, int index) {
+		final int slot = members[compartment][index];
+		removeMember(compartment, index);
+		freeSlot(slot);
+	}
+
+	@Override
+	public void truncate(int compartment, int size) {
+		final int[] list = members[compartment];
+		for (int i = size; (i < counts[compartment]); i++) {
+			freeSlot(list[i]);
+		}
+		counts[compartment] = size;
+	}
+
+	@Override
+	public void clear() {
+		for (int c = 0; (c < counts.length); c++) {
+			for (int i = 0; (i < counts[c]); i++) {
+				clearHistory(members[c][i]);
+			}
+		}
+		Arrays.fill(counts, 0);
+		slotsUsed = freeSlotCount = 0;
+		Arrays.fill(viruses, 0, virusesUsed, null);
+		virusesUsed = freeVirusCount = 0;
+	}
+
+	@Override
+	public void printHost(PrintStream stream, int compartment, int index) {
+		final int slot = members[compartment][index];
+		final Virus v  = getVirus(slot);
+		stream.print((v != null) ? v.getPhenotype() : "n");
+		stream.print(":");
+		final int handle = history[slot];
+		final int len    = arena.length(handle);
+		if (len > 0) {
+			stream.print(arena.get(handle, 0));
+			for (int i = 1; (i < len); i++) {
+				stream.print(";" + arena.get(handle, i));
+			}
+		} else {
+			stream.print("n");
+		}
+	}
+
+	//-------------------- Slot management ----------------------------//
+
+	private int newSlot() {
+		int slot;
+		if (freeSlotCount > 0) {
+			slot = freeSlots[--freeSlotCount];
+		} else {
+			if (slotsUsed == infection.length) {
+				final int cap = infection.length * 2;
+				infection     = Arrays.copyOf(infection, cap);
+				history       = Arrays.copyOf(history, cap);
+			}
+			slot = slotsUsed++;
+		}
+		infection[slot] = NO_INFECTION;
+		history[slot]   = HistoryArena.EMPTY;
+		return slot;
+	}
+
+	private void freeSlot(int slot) {
+		clearInfection(slot);
+		clearHistory(slot);
+		if (freeSlotCount == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+		}
+		freeSlots[freeSlotCount++] = slot;
+	}
+
+	private void addMember(int compartment, int slot) {
+		int[] list = members[compartment];
+		final int index = counts[compartment]++;
+		if (index == list.length) {
+			list = members[compartment] = Arrays.copyOf(list, list.length * 2);
+		}
+		list[index] = slot;
+	}
+
+	// Swap-remove, matching Species.remove
+	private void removeMember(int compartment, int index) {
+		final int[] list = members[compartment];
+		final int last   = --counts[compartment];
+		list[index] = list[last];
+	}
+
+	//-------------------- Infection management -----------------------//
+
+	private Virus getVirus(int slot) {
+		final int id = infection[slot];
+		return (id == NO_INFECTION) ? null : viruses[id];
+	}
+
+	private int newVirusId(Virus v) {
+		int id;
+		if (freeVirusCount > 0) {
+			id = freeViruses[--freeVirusCount];
+		} else {
+			if (virusesUsed == viruses.length) {
+				viruses = Arrays.copyOf(viruses, viruses.length * 2);
+			}
+			id = virusesUsed++;
+		}
+		viruses[id] = v;
+		return id;
+	}
+
+	private void clearInfection(int slot) {
+		final int id = infection[slot];
+		if (id != NO_INFECTION) {
+			viruses[id] = null;
+			if (freeVirusCount == freeViruses.length) {
+				freeViruses = Arrays.copyOf(freeViruses, freeViruses.length * 2);
+			}
+			freeViruses[freeVirusCount++] = id;
+			infection[slot] = NO_INFECTION;
+		}
+	}
+
+	//-------------------- History management -------------------------//
+
+	private void clearHistory(int slot) {
+		arena.release(history[slot]);
+		history[slot] = HistoryArena.EMPTY;
+	}
+}
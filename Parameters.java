@@ -38,6 +38,18 @@ public class Parameters {
 	public static boolean reducedOutput = false;						// whether to output only out.summary and out.timeseries
 	public static boolean detailedOutput = false;						// whether to output out.hosts and out.viruses files enabling checkpointing
 	public static boolean restartFromCheckpoint = false;				// whether to load population from out.hosts
+	public static long seed = 0;										// master seed for all random streams, 0 picks one from the clock
+	public static String hostStore = "object";							// options include: "object", "packed", "cohort" (see HostStoreFactory)
+	public static boolean internHistories = false;						// whether hosts with identical immune histories share them (see HistoryArena)
+	public static boolean countNaiveHosts = false;						// whether naive susceptible hosts are only counted (see NaiveCountingHostStore)
+	public static boolean contactThinning = false;						// whether to draw only successful contacts (see HostSpeciesPopulation)
+	public static int riskCacheSize = 0;								// entries in the risk of infection cache, 0 disables it (see RiskCache)
+	public static String stepper = "fixed";								// options include: "fixed", "gillespie", "tauleap" (see StepperFactory)
+	public static double tauEpsilon = 0.03;								// bound on the relative change in rates within a leap (see TauLeapStepper)
+	public static int genealogyCompaction = 0;							// days between compactions of the virus ancestry, 0 disables it (see Genealogy)
+	public static String genealogyStore = "object";						// options include: "object", "arena" (see GenealogyArena)
+	public static boolean genealogyLazyNodes = false;					// whether arena nodes are only added for viruses that pass on their lineage (see GenealogyArena)
+	public static double genealogySpillYears = 0.0;						// age of arena nodes moved to disk, 0 disables it (see GenealogySpill)
 	
 	// metapopulation parameters
 	public static int demeCount = 3;
@@ -58,6 +70,9 @@ public class Parameters {
 	public static double initialPrR = 0.5; 					// as proportion of population
 	public static double beta = 0.36; // 0.3					// in contacts per individual per day
 	public static double nu = 0.2; //0.2						// in recoveries per individual per day
+	public static String infectiousPeriod = "exponential";		// options include: "exponential", "gamma", "erlang" (see HostStoreFactory)
+	public static double infectiousPeriodShape = 1.0;			// shape of gamma or Erlang infectious periods, whose mean is 1/nu
+	public static boolean shedToEnvironment = false;			// whether infected hosts shed viruses into the environment (see Environment)
 	public static double betweenDemePro = 0.0005;				// relative to within-deme beta
     public static double culling = 0.1;
     public static double vaccinate = 0.1;
@@ -212,6 +227,42 @@ public class Parameters {
 			if (map.get("restartFromCheckpoint") != null) {					
 				restartFromCheckpoint = (boolean) map.get("restartFromCheckpoint");
 			}
+			if (map.get("seed") != null) {
+				seed = ((Number) map.get("seed")).longValue();
+			}
+			if (map.get("hostStore") != null) {
+				hostStore = (String) map.get("hostStore");
+			}
+			if (map.get("internHistories") != null) {
+				internHistories = (boolean) map.get("internHistories");
+			}
+			if (map.get("countNaiveHosts") != null) {
+				countNaiveHosts = (boolean) map.get("countNaiveHosts");
+			}
+			if (map.get("contactThinning") != null) {
+				contactThinning = (boolean) map.get("contactThinning");
+			}
+			if (map.get("riskCacheSize") != null) {
+				riskCacheSize = (int) map.get("riskCacheSize");
+			}
+			if (map.get("stepper") != null) {
+				stepper = (String) map.get("stepper");
+			}
+			if (map.get("tauEpsilon") != null) {
+				tauEpsilon = (double) map.get("tauEpsilon");
+			}
+			if (map.get("genealogyCompaction") != null) {
+				genealogyCompaction = (int) map.get("genealogyCompaction");
+			}
+			if (map.get("genealogyStore") != null) {
+				genealogyStore = (String) map.get("genealogyStore");
+			}
+			if (map.get("genealogyLazyNodes") != null) {
+				genealogyLazyNodes = (boolean) map.get("genealogyLazyNodes");
+			}
+			if (map.get("genealogySpillYears") != null) {
+				genealogySpillYears = (double) map.get("genealogySpillYears");
+			}
 			if (map.get("demeCount") != null) {				
 				demeCount = (int) map.get("demeCount");
 			}
@@ -254,6 +305,15 @@ public class Parameters {
 			if (map.get("nu") != null) {				
 				nu = (double) map.get("nu");
 			}
+			if (map.get("infectiousPeriod") != null) {
+				infectiousPeriod = (String) map.get("infectiousPeriod");
+			}
+			if (map.get("infectiousPeriodShape") != null) {
+				infectiousPeriodShape = (double) map.get("infectiousPeriodShape");
+			}
+			if (map.get("shedToEnvironment") != null) {
+				shedToEnvironment = (boolean) map.get("shedToEnvironment");
+			}
 			if (map.get("betweenDemePro") != null) {				
 				betweenDemePro = (double) map.get("betweenDemePro");
 			}
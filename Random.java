@@ -1,79 +1,152 @@
 /* Holds random number genator necessities */
-/* Trying to encapsulate this, so the RNG particulars can be changed if necessary */ 
+/* Trying to encapsulate this, so the RNG particulars can be changed if necessary */
 /* Completely static class, allows no instances to be instantiated */
 
-//import cern.jet.random.*;
-
+/**
+ * The static methods in this class draw from the stream bound to the
+ * calling thread (see setStream).  Each component of the simulation that
+ * needs its own reproducible sequence (each deme, each environment, the
+ * virus tree post-processing) obtains an independent stream via
+ * getStream().  All streams are derived from one master seed that is set
+ * via initialize(), so runs are bit-reproducible for a given seed.
+ */
 public class Random {
-	
-	private static final boolean Debug = false;
-	// The following static random number generators are initialized with specific engine
-	// depending on whether the Debug flag is true or false.
-	private static final cern.jet.random.Uniform uniform;
-	private static final cern.jet.random.Normal  normal;
-	private static final cern.jet.random.Exponential exponential;
-	private static final cern.jet.random.Gamma gamma;
-	private static final cern.jet.random.Poisson poisson;
-	
-	static {
-		cern.jet.random.engine.RandomEngine engine = null;
-		if (Debug) {
-			engine = new cern.jet.random.engine.MersenneTwister();
-		} else {
-			engine = cern.jet.random.AbstractDistribution.makeDefaultGenerator();
+
+	/** Stream kinds used to derive independent streams from the master seed. */
+	public static final int SIMULATION  = 0;
+	public static final int DEME        = 1;
+	public static final int ENVIRONMENT = 2;
+	public static final int TREE        = 3;
+	public static final int STATISTICS  = 4;
+
+	/** The master seed from which all streams are derived. */
+	private static long seed;
+
+	/** The stream used by threads that have not bound a stream of their own. */
+	private static RandomStream global;
+
+	/** The stream bound to each thread. */
+	private static final ThreadLocal<RandomStream> current = new ThreadLocal<RandomStream>() {
+		@Override
+		protected RandomStream initialValue() {
+			return global;
 		}
-		// Create the random number generators with given engine
-		cern.jet.random.Uniform.staticSetRandomEngine(engine);
-		uniform     = new cern.jet.random.Uniform(engine);
-		normal      = new cern.jet.random.Normal(0, 1.0, engine);
-		exponential = new cern.jet.random.Exponential(1.0, engine);
-		gamma       = new cern.jet.random.Gamma(1.0, 1.0, engine);
-		poisson     = new cern.jet.random.Poisson(0, engine);
-	}
-	
+	};
+
+	static {
+		initialize(0);
+	}
+
+	/**
+	 * Set the master seed from which all streams are derived. This method
+	 * must be called before any streams are obtained via getStream().
+	 *
+	 * @param masterSeed The master seed. Zero indicates a seed is to be
+	 * chosen based on the current time.
+	 */
+	public static void initialize(long masterSeed) {
+		seed = (masterSeed != 0) ? masterSeed :
+			(System.currentTimeMillis() ^ System.nanoTime());
+		global = getStream(SIMULATION, -1);
+		current.set(global);
+	}
+
+	/**
+	 * The master seed in use.  Reusing this value as the seed parameter
+	 * reproduces a run.
+	 *
+	 * @return The master seed.
+	 */
+	public static long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Obtain the stream for a given component of the simulation. The
+	 * stream depends only on the master seed, kind, and index and not
+	 * on the order in which streams are obtained.
+	 *
+	 * @param kind The kind of component, e.g., DEME.
+	 *
+	 * @param index The index of the component, e.g., deme number.
+	 *
+	 * @return A new stream independent of all other kinds and indexes.
+	 */
+	public static RandomStream getStream(int kind, int index) {
+		final long key = ((long) kind << 32) | (index & 0xffffffffL);
+		// Split once so that the child gets its own gamma (increment) too
+		return new RandomStream(seed ^ mix64(key)).split();
+	}
+
+	/**
+	 * Bind the given stream to the calling thread.  Subsequent calls to
+	 * the static methods in this class from this thread draw from it.
+	 *
+	 * @param stream The stream to be used by the calling thread.
+	 */
+	public static void setStream(RandomStream stream) {
+		current.set(stream);
+	}
+
+	/**
+	 * Obtain the stream bound to the calling thread.
+	 *
+	 * @return The stream bound to the calling thread.
+	 */
+	public static RandomStream getStream() {
+		return current.get();
+	}
+
 	// methods
 
 	public static int nextInt(int from, int to) {
-		return uniform.nextIntFromTo(from, to);
-	}	
-	
+		return current.get().nextInt(from, to);
+	}
+
 	public static double nextDouble() {
-		return uniform.nextDouble();		
+		return current.get().nextDouble();
 	}
-	
+
 	public static double nextDouble(double from, double to) {
-		return uniform.nextDoubleFromTo(from, to);		
-	}	
+		return current.get().nextDouble(from, to);
+	}
 
 	public static double nextNormal() {
-		return normal.nextDouble(0.0, 1.0);
+		return current.get().nextNormal();
 	}
-	
+
 	public static double nextNormal(double mean, double sd) {
-		return normal.nextDouble(mean, sd);
-	}	
+		return current.get().nextNormal(mean, sd);
+	}
 
 	// tuned with mean
 	public static double nextExponential(double lambda) {
-		return exponential.nextDouble(1.0 / lambda);
+		return current.get().nextExponential(lambda);
 	}
-	
+
 	// tuned with alpha and beta, matching Mathematica's notation
 	public static double nextGamma(double alpha, double beta) {
-		return gamma.nextDouble(alpha, 1 / beta);
-	}	
-	
+		return current.get().nextGamma(alpha, beta);
+	}
+
 	public static int nextPoisson(double lambda) {
-		return poisson.nextInt(lambda);
+		return current.get().nextPoisson(lambda);
+	}
+
+	public static int nextBinomial(int n, double p) {
+		return current.get().nextBinomial(n, p);
 	}
-	
+
 	public static boolean nextBoolean(double p) {
-		boolean x = false;
-		if (nextDouble() < p) {
-			x = true;
-		}
-		return x;
-	}	
-	
+		return current.get().nextBoolean(p);
+	}
+
+	// Stafford's variant 13 of the 64-bit finalizer from MurmurHash3
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
 	private Random() {}
 }
@@ -0,0 +1,218 @@
+import java.util.SplittableRandom;
+
+/**
+ * An independent stream of random numbers.
+ *
+ * <p>Each stream owns its own generator and its own set of Colt
+ * distributions, so that draws made from one stream never perturb the
+ * sequence of another stream.  Streams are created from a master seed
+ * via the Random class (see Random.getStream) and can be further split
+ * into statistically independent child streams via split().  This
+ * enables each deme, the environment, and the post-processing of the
+ * virus tree to draw from their own stream, keeping runs bit-reproducible
+ * for a given seed irrespective of the order in which these components
+ * make their draws.</p>
+ *
+ * <p>The method names and parameterizations are identical to the static
+ * methods in the Random class.</p>
+ */
+public class RandomStream {
+	/** The splittable source of random bits for this stream. */
+	private final SplittableRandom source;
+
+	// The following distributions all share the engine wrapping source.
+	private final cern.jet.random.Uniform uniform;
+	private final cern.jet.random.Normal  normal;
+	private final cern.jet.random.Exponential exponential;
+	private final cern.jet.random.Gamma gamma;
+
+	/** Number of gamma draws generated at a time by nextGamma(). */
+	private static final int GAMMA_BLOCK = 64;
+
+	/**
+	 * Gamma draws pre-generated for the most recently used shape and
+	 * rate. Mutation step sizes are drawn repeatedly with the same
+	 * parameters, so these are generated in blocks.
+	 */
+	private final double[] gammaBlock = new double[GAMMA_BLOCK];
+	private int gammaPos = GAMMA_BLOCK;
+	private double gammaAlpha = Double.NaN;
+	private double gammaBeta  = Double.NaN;
+
+	/**
+	 * Create a stream from a given seed.
+	 *
+	 * @param seed The seed for this stream.  Two streams created with
+	 * the same seed produce identical sequences.
+	 */
+	public RandomStream(long seed) {
+		this(new SplittableRandom(seed));
+	}
+
+	/**
+	 * Create a stream that draws random bits from the given source.
+	 *
+	 * @param src The source of random bits. This object is owned by
+	 * this stream and must not be shared.
+	 */
+	private RandomStream(SplittableRandom src) {
+		source = src;
+		final cern.jet.random.engine.RandomEngine engine = new Engine(source);
+		uniform     = new cern.jet.random.Uniform(engine);
+		normal      = new cern.jet.random.Normal(0, 1.0, engine);
+		exponential = new cern.jet.random.Exponential(1.0, engine);
+		gamma       = new cern.jet.random.Gamma(1.0, 1.0, engine);
+	}
+
+	/**
+	 * Create a new stream that is statistically independent of this
+	 * stream.  This stream advances as a result of this call, so that
+	 * repeated calls return different streams.
+	 *
+	 * @return A new, independent stream.
+	 */
+	public RandomStream split() {
+		return new RandomStream(source.split());
+	}
+
+	public int nextInt(int from, int to) {
+		return uniform.nextIntFromTo(from, to);
+	}
+
+	public double nextDouble() {
+		return uniform.nextDouble();
+	}
+
+	public double nextDouble(double from, double to) {
+		return uniform.nextDoubleFromTo(from, to);
+	}
+
+	public double nextNormal() {
+		return normal.nextDouble(0.0, 1.0);
+	}
+
+	public double nextNormal(double mean, double sd) {
+		return normal.nextDouble(mean, sd);
+	}
+
+	// tuned with mean
+	public double nextExponential(double lambda) {
+		return exponential.nextDouble(1.0 / lambda);
+	}
+
+	// tuned with alpha and beta, matching Mathematica's notation
+	public double nextGamma(double alpha, double beta) {
+		if ((alpha != gammaAlpha) || (beta != gammaBeta)) {
+			// Parameters changed. Discard draws for the old parameters.
+			gammaAlpha = alpha;
+			gammaBeta  = beta;
+			gammaPos   = GAMMA_BLOCK;
+		}
+		if (gammaPos == GAMMA_BLOCK) {
+			nextGammas(gammaBlock, GAMMA_BLOCK, alpha, beta);
+			gammaPos = 0;
+		}
+		return gammaBlock[gammaPos++];
+	}
+
+	// constant time for any lambda, see Sampling.poisson
+	public int nextPoisson(double lambda) {
+		return Sampling.poisson(this, lambda);
+	}
+
+	public int nextBinomial(int n, double p) {
+		return Sampling.binomial(this, n, p);
+	}
+
+	public boolean nextBoolean(double p) {
+		return (nextDouble() < p);
+	}
+
+	//-------- Bulk generation of draws into primitive blocks ------------//
+
+	/**
+	 * Fill a block with uniform draws in the range [0, 1).  The draws
+	 * are obtained directly from the underlying generator bypassing the
+	 * Colt distribution objects.
+	 *
+	 * @param block The block to be filled.
+	 *
+	 * @param count The number of entries (from index 0) to be filled.
+	 */
+	public void nextDoubles(double[] block, int count) {
+		for (int i = 0; (i < count); i++) {
+			block[i] = source.nextDouble();
+		}
+	}
+
+	/**
+	 * Fill a block with uniformly distributed integers in the range
+	 * from...to (both inclusive).
+	 *
+	 * @param block The block to be filled.
+	 *
+	 * @param count The number of entries (from index 0) to be filled.
+	 *
+	 * @param from The smallest value to be generated.
+	 *
+	 * @param to The largest value to be generated.
+	 */
+	public void nextInts(int[] block, int count, int from, int to) {
+		final int bound = to - from + 1;
+		for (int i = 0; (i < count); i++) {
+			block[i] = from + source.nextInt(bound);
+		}
+	}
+
+	/**
+	 * Fill a block with gamma distributed draws.
+	 *
+	 * @param block The block to be filled.
+	 *
+	 * @param count The number of entries (from index 0) to be filled.
+	 *
+	 * @param alpha The shape parameter.
+	 *
+	 * @param beta The scale parameter (Mathematica's notation).
+	 */
+	public void nextGammas(double[] block, int count, double alpha, double beta) {
+		final double rate = 1 / beta;
+		for (int i = 0; (i < count); i++) {
+			block[i] = gamma.nextDouble(alpha, rate);
+		}
+	}
+
+	/**
+	 * Adapter to permit the Colt distributions to draw random bits from
+	 * a SplittableRandom.
+	 */
+	private static class Engine extends cern.jet.random.engine.RandomEngine {
+		private static final long serialVersionUID = 1L;
+
+		private final SplittableRandom source;
+
+		Engine(SplittableRandom src) {
+			source = src;
+		}
+
+		@Override
+		public int nextInt() {
+			return source.nextInt();
+		}
+
+		@Override
+		public long nextLong() {
+			return source.nextLong();
+		}
+
+		/** Colt requires values in the open interval (0, 1). */
+		@Override
+		public double nextDouble() {
+			double x;
+			do {
+				x = source.nextDouble();
+			} while (x == 0.0);
+			return x;
+		}
+	}
+}
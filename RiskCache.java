@@ -0,0 +1,123 @@
+/* Memoized risk of infection for pairs of phenotypes and immune histories */
+
+import java.util.Arrays;
+
+/**
+ * <p>A bounded cache of the risk of infection by a virus phenotype for a
+ * host immune history, placed in front of HistoryArena.riskOfInfection.
+ * Each HistoryArena owns its own cache, as handles are local to an arena.
+ * Entries are keyed by the identity of the phenotype and by the handle
+ * and stamp of the history (see HistoryArena.getStamp), which together
+ * identify the contents of the history.  The cache is direct mapped: an
+ * entry evicts whatever entry previously occupied its slot.</p>
+ *
+ * <p>The cache holds Parameters.riskCacheSize entries (rounded up to a
+ * power of two); a size of 0 disables it.  The cache is cleared when a
+ * GeometricPhenotype is changed in place, as done when the virus tree is
+ * rotated.  Hit and miss counts are kept so that the benefit of the
+ * cache can be judged for a given parameter file.</p>
+ */
+public class RiskCache {
+	/** The key of each entry. Empty entries have a null phenotype. */
+	private Phenotype[] phenotypes = null;
+	private int[]       histories  = null;
+	private int[]       stamps     = null;
+
+	/** The cached risk of each entry. */
+	private double[] risks = null;
+
+	/** The GeometricPhenotype version for which the entries are valid. */
+	private int version = 0;
+
+	private long hits   = 0;
+	private long misses = 0;
+
+	/**
+	 * Determine if the cache is in use.
+	 *
+	 * @return true if Parameters.riskCacheSize is positive.
+	 */
+	public static boolean isEnabled() {
+		return Parameters.riskCacheSize > 0;
+	}
+
+	/**
+	 * Look up the risk of infection for a phenotype and a history.
+	 *
+	 * @param p The phenotype of the virus.
+	 *
+	 * @param history The handle of the history.
+	 *
+	 * @param stamp The stamp of the history.
+	 *
+	 * @return The cached risk, or NaN if it is not in the cache.
+	 */
+	public double get(Phenotype p, int history, int stamp) {
+		if (phenotypes == null || version != GeometricPhenotype.getVersion()) {
+			clear();
+		}
+		final int slot = slot(p, history, stamp);
+		if (phenotypes[slot] == p && histories[slot] == history && stamps[slot] == stamp) {
+			hits++;
+			return risks[slot];
+		}
+		misses++;
+		return Double.NaN;
+	}
+
+	/**
+	 * Add the risk of infection for a phenotype and a history to the
+	 * cache, replacing the entry in its slot. This method must follow a
+	 * call to get for the same key.
+	 *
+	 * @param p The phenotype of the virus.
+	 *
+	 * @param history The handle of the history.
+	 *
+	 * @param stamp The stamp of the history.
+	 *
+	 * @param risk The risk of infection.
+	 */
+	public void put(Phenotype p, int history, int stamp, double risk) {
+		final int slot = slot(p, history, stamp);
+		phenotypes[slot] = p;
+		histories[slot]  = history;
+		stamps[slot]     = stamp;
+		risks[slot]      = risk;
+	}
+
+	/**
+	 * Remove all entries, sizing the cache from Parameters.riskCacheSize.
+	 * Hit and miss counts are not reset.
+	 */
+	public void clear() {
+		final int size = Integer.highestOneBit(Math.max(1, Parameters.riskCacheSize) * 2 - 1);
+		if (phenotypes == null || phenotypes.length != size) {
+			phenotypes = new Phenotype[size];
+			histories  = new int[size];
+			stamps     = new int[size];
+			risks      = new double[size];
+		} else {
+			Arrays.fill(phenotypes, null);
+		}
+		version = GeometricPhenotype.getVersion();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public double getHitRate() {
+		return (hits + misses == 0) ? 0 : (double) hits / (hits + misses);
+	}
+
+	private int slot(Phenotype p, int history, int stamp) {
+		int h = System.identityHashCode(p) ^ (history * 0x9E3779B9) ^ (stamp * 0x85EBCA6B);
+		h ^= (h >>> 15);
+		return h & (phenotypes.length - 1);
+	}
+}
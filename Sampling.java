@@ -0,0 +1,352 @@
+/**
+ * Samplers for the event counts drawn every time step.
+ *
+ * <p>The number of contacts, recoveries, births, deaths, and mutations in
+ * a step are Poisson (or binomial) counts whose means reach the tens of
+ * thousands in large demes.  The samplers in this class run in constant
+ * expected time irrespective of the mean and, unlike the Colt
+ * distributions, need no per-call setup when the mean changes from one
+ * call to the next (which is the case for every count in the simulation).
+ * The large-mean samplers are the transformed rejection methods of
+ * W. Hormann: PTRS for the Poisson ("The transformed rejection method for
+ * generating Poisson random variables", 1993) and BTRS for the binomial
+ * ("The generation of binomial random variates", 1993).  Hypergeometric
+ * draws use the ratio-of-uniforms method H2PE/HRUA of E. Stadlober.</p>
+ *
+ * <p>In addition, counts can be split across species in one shot via
+ * multivariate hypergeometric (without replacement) or multinomial (with
+ * replacement) draws.</p>
+ *
+ * <p>All methods draw from the given stream. This is a completely static
+ * class.</p>
+ */
+public class Sampling {
+	/** Means below this value are sampled by inversion. */
+	private static final double INVERSION_LIMIT = 10;
+
+	/** Sample sizes below this value are sampled by direct urn draws. */
+	private static final int URN_LIMIT = 10;
+
+	/** Number of entries in the table of log factorials. */
+	private static final int LOG_FACTORIAL_TABLE = 126;
+
+	/** log(k!) for k &lt; LOG_FACTORIAL_TABLE. */
+	private static final double[] logFactorials = new double[LOG_FACTORIAL_TABLE];
+
+	static {
+		for (int k = 1; (k < LOG_FACTORIAL_TABLE); k++) {
+			logFactorials[k] = logFactorials[k - 1] + Math.log(k);
+		}
+	}
+
+	/**
+	 * Draw a Poisson distributed count.
+	 *
+	 * @param rng The stream from which draws are made.
+	 *
+	 * @param lambda The mean of the distribution.
+	 *
+	 * @return A Poisson distributed count. Zero is returned if lambda is
+	 * not positive.
+	 */
+	public static int poisson(RandomStream rng, double lambda) {
+		if (!(lambda > 0)) {
+			return 0;
+		}
+		if (lambda < INVERSION_LIMIT) {
+			// Multiply uniforms until the product drops below exp(-lambda)
+			final double limit = Math.exp(-lambda);
+			double prod = rng.nextDouble();
+			int count = 0;
+			while (prod > limit) {
+				count++;
+				prod *= rng.nextDouble();
+			}
+			return count;
+		}
+		return poissonPTRS(rng, lambda);
+	}
+
+	// Hormann's PTRS for lambda >= 10
+	private static int poissonPTRS(RandomStream rng, double lambda) {
+		final double slam     = Math.sqrt(lambda);
+		final double loglam   = Math.log(lambda);
+		final double b        = 0.931 + 2.53 * slam;
+		final double a        = -0.059 + 0.02483 * b;
+		final double invalpha = 1.1239 + 1.1328 / (b - 3.4);
+		final double vr       = 0.9277 - 3.6224 / (b - 2);
+		while (true) {
+			final double u  = rng.nextDouble() - 0.5;
+			final double v  = rng.nextDouble();
+			final double us = 0.5 - Math.abs(u);
+			final long k    = (long) Math.floor((2 * a / us + b) * u + lambda + 0.43);
+			if ((us >= 0.07) && (v <= vr)) {
+				return (int) k;
+			}
+			if ((k < 0) || ((us < 0.013) && (v > us))) {
+				continue;
+			}
+			if ((Math.log(v) + Math.log(invalpha) - Math.log(a / (us * us) + b)) <=
+					(-lambda + k * loglam - logFactorial(k))) {
+				return (int) k;
+			}
+		}
+	}
+
+	/**
+	 * Draw a binomially distributed count.
+	 *
+	 * @param rng The stream from which draws are made.
+	 *
+	 * @param n The number of trials.
+	 *
+	 * @param p The probability of success of each trial.
+	 *
+	 * @return The number of successes, in the range 0...n.
+	 */
+	public static int binomial(RandomStream rng, int n, double p) {
+		if ((n <= 0) || !(p > 0)) {
+			return 0;
+		}
+		if (p >= 1) {
+			return n;
+		}
+		if (p > 0.5) {
+			return n - binomial(rng, n, 1 - p);
+		}
+		if (n * p < INVERSION_LIMIT) {
+			return binomialInversion(rng, n, p);
+		}
+		return binomialBTRS(rng, n, p);
+	}
+
+	// Sequential search of the CDF for n * p < 10 and p <= 0.5
+	private static int binomialInversion(RandomStream rng, int n, double p) {
+		final double q     = 1 - p;
+		final double s     = p / q;
+		final double a     = (n + 1) * s;
+		final double qn    = Math.exp(n * Math.log1p(-p));
+		final double np    = n * p;
+		final int    bound = (int) Math.min(n, np + 10 * Math.sqrt(np * q + 1));
+		while (true) {
+			double r = qn;
+			double u = rng.nextDouble();
+			int    x = 0;
+			while (u > r) {
+				u -= r;
+				x++;
+				if (x > bound) {
+					break;  // lost in round-off. Try again
+				}
+				r *= (a / x - s);
+			}
+			if (x <= bound) {
+				return x;
+			}
+		}
+	}
+
+	// Hormann's BTRS for n * p >= 10 and p <= 0.5
+	private static int binomialBTRS(RandomStream rng, int n, double p) {
+		final double spq   = Math.sqrt(n * p * (1 - p));
+		final double b     = 1.15 + 2.53 * spq;
+		final double a     = -0.0873 + 0.0248 * b + 0.01 * p;
+		final double c     = n * p + 0.5;
+		final double vr    = 0.92 - 4.2 / b;
+		final double alpha = (2.83 + 5.1 / b) * spq;
+		final double lpq   = Math.log(p / (1 - p));
+		final long   m     = (long) Math.floor((n + 1) * p);
+		final double h     = logFactorial(m) + logFactorial(n - m);
+		while (true) {
+			final double u  = rng.nextDouble() - 0.5;
+			double v        = rng.nextDouble();
+			final double us = 0.5 - Math.abs(u);
+			final long k    = (long) Math.floor((2 * a / us + b) * u + c);
+			if ((k < 0) || (k > n)) {
+				continue;
+			}
+			if ((us >= 0.07) && (v <= vr)) {
+				return (int) k;
+			}
+			v = Math.log(v * alpha / (a / (us * us) + b));
+			if (v <= (h - logFactorial(k) - logFactorial(n - k) + (k - m) * lpq)) {
+				return (int) k;
+			}
+		}
+	}
+
+	/**
+	 * Draw the number of marked items in a sample drawn without
+	 * replacement from a population of marked and unmarked items.
+	 *
+	 * @param rng The stream from which draws are made.
+	 *
+	 * @param good The number of marked items in the population.
+	 *
+	 * @param bad The number of unmarked items in the population.
+	 *
+	 * @param sample The number of items drawn. This value must be in the
+	 * range 0...good+bad.
+	 *
+	 * @return The number of marked items in the sample.
+	 */
+	public static int hypergeometric(RandomStream rng, int good, int bad, int sample) {
+		if ((sample <= 0) || (good <= 0)) {
+			return 0;
+		}
+		if (bad <= 0) {
+			return sample;
+		}
+		if (sample < URN_LIMIT) {
+			return hypergeometricUrn(rng, good, bad, sample);
+		}
+		return hypergeometricHRUA(rng, good, bad, sample);
+	}
+
+	// Draw items from the urn one at a time
+	private static int hypergeometricUrn(RandomStream rng, int good, int bad, int sample) {
+		int total = good + bad;
+		int left  = good;
+		for (int i = 0; (i < sample) && (left > 0); i++) {
+			if (rng.nextDouble() * total < left) {
+				left--;
+			}
+			total--;
+		}
+		return good - left;
+	}
+
+	// Stadlober's ratio-of-uniforms method
+	private static int hypergeometricHRUA(RandomStream rng, int good, int bad, int sample) {
+		final double D1 = 1.7155277699214135;
+		final double D2 = 0.8989161620588988;
+		final long popSize    = (long) good + bad;
+		final long minSample  = Math.min(sample, popSize - sample);
+		final long minGoodBad = Math.min(good, bad);
+		final long maxGoodBad = Math.max(good, bad);
+
+		final double p   = ((double) minGoodBad) / popSize;
+		final double q   = ((double) maxGoodBad) / popSize;
+		final double a   = minSample * p + 0.5;
+		final double var = ((double) (popSize - minSample)) * minSample * p * q / (popSize - 1);
+		final double c   = Math.sqrt(var + 0.5);
+		final double h   = D1 * c + D2;
+		final long   m   = (long) Math.floor((double) (minSample + 1) * (minGoodBad + 1) / (popSize + 2));
+		final double g   = logFactorial(m) + logFactorial(minGoodBad - m) +
+				logFactorial(minSample - m) + logFactorial(maxGoodBad - minSample + m);
+		final double b   = Math.min(Math.min(minSample, minGoodBad) + 1, Math.floor(a + 16 * c));
+
+		long k;
+		while (true) {
+			final double u = rng.nextDouble();
+			final double v = rng.nextDouble();
+			final double x = a + h * (v - 0.5) / u;
+			if ((x < 0) || (x >= b)) {
+				continue;
+			}
+			k = (long) Math.floor(x);
+			final double t = g - (logFactorial(k) + logFactorial(minGoodBad - k) +
+					logFactorial(minSample - k) + logFactorial(maxGoodBad - minSample + k));
+			if ((u * (4.0 - u) - 3.0) <= t) {
+				break;  // fast acceptance
+			}
+			if (u * (u - t) >= 1) {
+				continue;  // fast rejection
+			}
+			if (2.0 * Math.log(u) <= t) {
+				break;
+			}
+		}
+		// Undo the symmetries used to reduce the problem
+		if (good > bad) {
+			k = minSample - k;
+		}
+		if (minSample < sample) {
+			k = good - k;
+		}
+		return (int) k;
+	}
+
+	/**
+	 * Split a sample drawn without replacement across several classes.
+	 * For example, this method is used to split the recoveries in a deme
+	 * across the infected hosts of each species.
+	 *
+	 * @param rng The stream from which draws are made.
+	 *
+	 * @param sizes The number of items in each class.
+	 *
+	 * @param classes The number of entries in sizes to be used.
+	 *
+	 * @param sample The number of items drawn. This value must not exceed
+	 * the sum of the sizes.
+	 *
+	 * @param result The number of items drawn from each class is stored
+	 * in this array.
+	 */
+	public static void multivariateHypergeometric(RandomStream rng, int[] sizes,
+			int classes, int sample, int[] result) {
+		int total = 0;
+		for (int i = 0; (i < classes); i++) {
+			total += sizes[i];
+		}
+		for (int i = 0; (i < classes); i++) {
+			total -= sizes[i];
+			result[i] = hypergeometric(rng, sizes[i], total, sample);
+			sample   -= result[i];
+		}
+	}
+
+	/**
+	 * Split a number of events across several classes in proportion to
+	 * the given weights, i.e., each event independently picks a class.
+	 *
+	 * @param rng The stream from which draws are made.
+	 *
+	 * @param weights The non-negative weight of each class.
+	 *
+	 * @param classes The number of entries in weights to be used.
+	 *
+	 * @param count The number of events to be split.
+	 *
+	 * @param result The number of events in each class is stored in this
+	 * array.
+	 */
+	public static void multinomial(RandomStream rng, int[] weights, int classes,
+			int count, int[] result) {
+		long total = 0;
+		for (int i = 0; (i < classes); i++) {
+			total += weights[i];
+		}
+		for (int i = 0; (i < classes); i++) {
+			if (total > 0) {
+				result[i] = binomial(rng, count, (double) weights[i] / total);
+				total    -= weights[i];
+			} else {
+				result[i] = 0;
+			}
+			count -= result[i];
+		}
+	}
+
+	/**
+	 * Compute log(k!).  Values for small k are obtained from a table
+	 * while the Stirling series is used for larger values.
+	 *
+	 * @param k The value whose log factorial is to be returned. This
+	 * value must not be negative.
+	 *
+	 * @return The value of log(k!).
+	 */
+	public static double logFactorial(long k) {
+		if (k < LOG_FACTORIAL_TABLE) {
+			return logFactorials[(int) k];
+		}
+		final double HALF_LOG_2PI = 0.9189385332046728;
+		final double x = k;
+		return (x + 0.5) * Math.log(x) - x +
+				(HALF_LOG_2PI + (1 / x) * (1 / 12.0 - 1 / (360.0 * x * x)));
+	}
+
+	private Sampling() {}
+}
@@ -0,0 +1,288 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * <p>A host store that gives each infected host a recovery time, drawn
+ * when the host becomes infected, and delegates the hosts themselves to
+ * another store.</p>
+ *
+ * <p>Infectious periods follow a gamma distribution with mean 1/nu and
+ * shape Parameters.infectiousPeriodShape (an Erlang distribution for
+ * whole shapes; a shape of 1 gives the exponential periods of the
+ * original model).  Recovery times are rounded down to steps of deltaT
+ * and kept in a CalendarQueue, so that recovering the hosts due in a
+ * step (see recoverDue) takes time proportional to their number.</p>
+ *
+ * <p>As infected hosts move within their compartment when other hosts
+ * are removed, each one is identified by a ticket that follows it: this
+ * store mirrors the swap-remove semantics of the infected compartment
+ * (see HostStore) on the tickets.  Tickets of hosts that leave the
+ * compartment in other ways (such as death) are released, and their
+ * entries in the queue are ignored.</p>
+ */
+public class ScheduledRecoveryHostStore implements HostStore {
+	/** The store holding the hosts. */
+	private final HostStore hosts;
+
+	/** The ticket of the infected host at each index. */
+	private int[] tickets = new int[64];
+
+	/** The index of the host holding each ticket, or -1 if not in use. */
+	private int[] position = new int[64];
+
+	/** The step at which the host holding each ticket is to recover. */
+	private long[] dueStep = new long[64];
+
+	/** Tickets not in use, below nextTicket. */
+	private int[] freeTickets = new int[64];
+	private int   freeCount   = 0;
+	private int   nextTicket  = 0;
+
+	/** The tickets by the step at which their hosts are to recover. */
+	private final CalendarQueue calendar;
+
+	/** The last step whose recoveries were made. */
+	private long drained = Long.MIN_VALUE;
+
+	/**
+	 * Create a store that schedules recoveries.
+	 *
+	 * @param hosts The store to hold the hosts.
+	 */
+	public ScheduledRecoveryHostStore(HostStore hosts) {
+		this.hosts = hosts;
+		// Cover four mean infectious periods, beyond which few hosts recover
+		calendar   = new CalendarQueue((int) Math.ceil(4 / (Parameters.nu * Parameters.deltaT)));
+	}
+
+	/**
+	 * Obtain the number of the current step of the simulation.
+	 *
+	 * @return The step starting at Parameters.day.
+	 */
+	public static long getStep() {
+		return Math.round(Parameters.day / Parameters.deltaT);
+	}
+
+	/**
+	 * Recover the infected hosts whose infectious periods end in a step.
+	 *
+	 * @param step The step, which must not be earlier than the steps of
+	 * previous calls.
+	 *
+	 * @param compartment The compartment to which the hosts recover.
+	 *
+	 * @param env The environment to use to report clearing infections.
+	 *
+	 * @return The number of hosts recovered.
+	 */
+	public int recoverDue(long step, int compartment, Environment env) {
+		drained = step;
+		final int count = calendar.drain(step);
+		int recovered   = 0;
+		for (int i = 0; (i < count); i++) {
+			final int ticket = calendar.getDue(i);
+			// Skip the tickets of hosts that left the compartment, or that
+			// were issued again with a later recovery.
+			if ((position[ticket] >= 0) && (dueStep[ticket] <= step)) {
+				recover(position[ticket], compartment, env);
+				recovered++;
+			}
+		}
+		return recovered;
+	}
+
+	// give the infected host at index, just added, a ticket and a recovery time
+	private void enter(int index) {
+		final int ticket;
+		if (freeCount > 0) {
+			ticket = freeTickets[--freeCount];
+		} else {
+			ticket = nextTicket++;
+			if (ticket == position.length) {
+				position = Arrays.copyOf(position, ticket * 2);
+				dueStep  = Arrays.copyOf(dueStep, ticket * 2);
+			}
+		}
+		if (index == tickets.length) {
+			tickets = Arrays.copyOf(tickets, index * 2);
+		}
+		tickets[index]   = ticket;
+		position[ticket] = index;
+		final double shape  = Parameters.infectiousPeriodShape;
+		final double period = Random.nextGamma(shape, 1.0 / (shape * Parameters.nu));
+		dueStep[ticket] = Math.max(getStep() + (long) (period / Parameters.deltaT), drained + 1);
+		calendar.add(ticket, dueStep[ticket]);
+	}
+
+	// release the ticket of the infected host that was at index, after the last host took its place
+	private void leave(int index) {
+		final int ticket = tickets[index];
+		position[ticket] = -1;
+		if (freeCount == freeTickets.length) {
+			freeTickets = Arrays.copyOf(freeTickets, freeCount * 2);
+		}
+		freeTickets[freeCount++] = ticket;
+		final int last = hosts.size(Species.INFECTED);
+		if (index != last) {
+			tickets[index] = tickets[last];
+			position[tickets[index]] = index;
+		}
+	}
+
+	@Override
+	public GroupingHostStore getGroups() {
+		return hosts.getGroups();
+	}
+
+	@Override
+	public int size(int compartment) {
+		return hosts.size(compartment);
+	}
+
+	@Override
+	public void add(int compartment, Virus infection, boolean immune) {
+		hosts.add(compartment, infection, immune);
+		if (compartment == Species.INFECTED) {
+			enter(hosts.size(Species.INFECTED) - 1);
+		}
+	}
+
+	@Override
+	public Host getHost(int compartment, int index) {
+		return hosts.getHost(compartment, index);
+	}
+
+	@Override
+	public Virus getInfection(int compartment, int index) {
+		return hosts.getInfection(compartment, index);
+	}
+
+	@Override
+	public int getHistoryLength(int compartment, int index) {
+		return hosts.getHistoryLength(compartment, index);
+	}
+
+	@Override
+	public int getHistory(int compartment, int index) {
+		return hosts.getHistory(compartment, index);
+	}
+
+	@Override
+	public double riskOfInfection(Phenotype p, int compartment, int index) {
+		return hosts.riskOfInfection(p, compartment, index);
+	}
+
+	@Override
+	public void infect(int susIdx, Virus parent, int deme, Environment env) {
+		hosts.infect(susIdx, parent, deme, env);
+		enter(hosts.size(Species.INFECTED) - 1);
+	}
+
+	@Override
+	public void recover(int infIdx, int compartment, Environment env) {
+		hosts.recover(infIdx, compartment, env);
+		leave(infIdx);
+	}
+
+	@Override
+	public void move(int from, int index, int to) {
+		hosts.move(from, index, to);
+		if (from == Species.INFECTED) {
+			leave(index);
+		}
+		if (to == Species.INFECTED) {
+			enter(hosts.size(Species.INFECTED) - 1);
+		}
+	}
+
+	@Override
+	public void reset(int compartment, int index) {
+		hosts.reset(compartment, index);
+	}
+
+	@Override
+	public void mutate(int infIdx, Environment env) {
+		hosts.mutate(infIdx, env);
+	}
+
+	@Override
+	public void swap(int compartment, int i, int j) {
+		hosts.swap(compartment, i, j);
+		if (compartment == Species.INFECTED) {
+			final int ticket = tickets[i];
+			tickets[i] = tickets[j];
+			tickets[j] = ticket;
+			position[tickets[i]] = i;
+			position[tickets[j]] = j;
+		}
+	}
+
+	@Override
+	public void removeRandom(int compartment, int count) {
+		if (compartment == Species.INFECTED) {
+			// Via swap and truncate, which follow the tickets
+			HostStore.super.removeRandom(compartment, count);
+		} else {
+			hosts.removeRandom(compartment, count);
+		}
+	}
+
+	@Override
+	public void moveRandom(int from, int count, int to) {
+		if (from == Species.INFECTED) {
+			// Via swap and move, which follow the tickets
+			HostStore.super.moveRandom(from, count, to);
+			return;
+		}
+		hosts.moveRandom(from, count, to);
+		if (to == Species.INFECTED) {
+			final int size = hosts.size(to);
+			for (int i = size - count; (i < size); i++) {
+				enter(i);
+			}
+		}
+	}
+
+	@Override
+	public void makeNaive(int compartment, int index) {
+		hosts.makeNaive(compartment, index);
+		if (compartment == Species.INFECTED) {
+			leave(index);
+		}
+	}
+
+	@Override
+	public void remove(int compartment, int index) {
+		hosts.remove(compartment, index);
+		if (compartment == Species.INFECTED) {
+			leave(index);
+		}
+	}
+
+	@Override
+	public void truncate(int compartment, int size) {
+		if (compartment == Species.INFECTED) {
+			for (int i = hosts.size(compartment) - 1; (i >= size); i--) {
+				hosts.truncate(compartment, i);
+				leave(i);
+			}
+		} else {
+			hosts.truncate(compartment, size);
+		}
+	}
+
+	@Override
+	public void clear() {
+		hosts.clear();
+		Arrays.fill(position, 0, nextTicket, -1);
+		freeCount  = 0;
+		nextTicket = 0;
+		calendar.clear();
+	}
+
+	@Override
+	public void printHost(PrintStream stream, int compartment, int index) {
+		hosts.printHost(stream, compartment, index);
+	}
+}
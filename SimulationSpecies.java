@@ -18,6 +18,27 @@ import com.javamex.classmexer.MemoryUtil;
 public class SimulationSpecies {
 	// fields
 	private List<HostSpeciesPopulation> demes = new ArrayList<HostSpeciesPopulation>();
+	private RandomStream rng = Random.getStream(Random.SIMULATION, 0);
+	// used to sample diversity, tmrca, and netau without drawing from the deme streams
+	private RandomStream statsRng = Random.getStream(Random.STATISTICS, -1);
+
+	/**
+	 * Prefix sums of the number of S, I, and R hosts in each deme. Each
+	 * deme forwards changes in its hosts to this index so that totals are
+	 * O(1) reads. 
+	 */
+	private SpeciesIndex demeIndex = new SpeciesIndex(Parameters.demeCount);
+
+	/**
+	 * The arena holding the genealogy of the viruses, with a partition for
+	 * each deme, or null if Parameters.genealogyStore is not "arena".
+	 */
+	private final GenealogyArena genealogy = 
+			GenealogyArena.isEnabled() ? new GenealogyArena(Parameters.demeCount) : null;
+
+	/** The report of the leaps of the tau-leaping steppers of all demes. */
+	private final LeapReport leaps = new LeapReport();
+
 	private double diversity;
 	private double tmrca;
 	private double netau;
@@ -43,13 +64,18 @@ public class SimulationSpecies {
 			throw new RuntimeException("Unable to create output directory: " + 
 					Parameters.outputDir);
 		}
+		// All viruses descend from the urVirus and share its arena
+		if (genealogy != null) {
+			Parameters.urVirus.setGenealogy(genealogy);
+		}
 		for (int i = 0; i < Parameters.demeCount; i++) {
 			if (Parameters.restartFromCheckpoint) {
-				HostSpeciesPopulation hp = new HostSpeciesPopulation(i, true);
+				HostSpeciesPopulation hp = new HostSpeciesPopulation(i, true, leaps);
 				demes.add(hp);
 			}
 			else {
-				HostSpeciesPopulation hp = new HostSpeciesPopulation(i);
+				HostSpeciesPopulation hp = new HostSpeciesPopulation(i, leaps);
+				hp.setParentIndex(demeIndex);
 				demes.add(hp);
 			}
 		}
@@ -58,39 +84,19 @@ public class SimulationSpecies {
 	// methods
 
 	public int getN() {
-		int count = 0;
-		for (int i = 0; i < Parameters.demeCount; i++) {
-			HostSpeciesPopulation hp = demes.get(i);
-			count += hp.getN();
-		}
-		return count;
+		return (getS() + getI() + getR());
 	}
 
 	public int getS() {
-		int count = 0;
-		for (int i = 0; i < Parameters.demeCount; i++) {
-			HostSpeciesPopulation hp = demes.get(i);
-			count += hp.getS();
-		}
-		return count;
+		return demeIndex.getTotal(Species.SUSCEPTIBLE);
 	}	
 
 	public int getI() {
-		int count = 0;
-		for (int i = 0; i < Parameters.demeCount; i++) {
-			HostSpeciesPopulation hp = demes.get(i);
-			count += hp.getI();
-		}
-		return count;
+		return demeIndex.getTotal(Species.INFECTED);
 	}	
 
 	public int getR() {
-		int count = 0;
-		for (int i = 0; i < Parameters.demeCount; i++) {
-			HostSpeciesPopulation hp = demes.get(i);
-			count += hp.getR();
-		}
-		return count;
+		return demeIndex.getTotal(Species.RECOVERED);
 	}		
 
 	public int getCases() {
@@ -122,44 +128,39 @@ public class SimulationSpecies {
 		return antigenicDiversity;
 	}	
 
-	// proportional to infecteds in each deme
+	// proportional to hosts in each deme
 	public int getRandomDeme() {
-		int n = Random.nextInt(0,getN()-1);
-		int d = 0;
-		int target = (demes.get(0)).getN();
-		while (n < target) {
-			d += 1;
-			target += (demes.get(d)).getN();
+		// Hosts in a deme are contiguous in S, then I, then R order
+		int n = rng.nextInt(0,getN()-1);
+		if (n < getS()) {
+			return demeIndex.find(Species.SUSCEPTIBLE, n);
+		}
+		n -= getS();
+		if (n < getI()) {
+			return demeIndex.find(Species.INFECTED, n);
 		}
-		return d;
+		return demeIndex.find(Species.RECOVERED, n - getI());
 	}
 
 	// return random virus proportional to worldwide prevalence
 	public Virus getRandomInfection() {
+		return getRandomInfection(rng);
+	}
+
+	// return random virus proportional to worldwide prevalence, drawing from the given stream
+	private Virus getRandomInfection(RandomStream stream) {
 
 		Virus v = null;
 
 		if (getI() > 0) {
 
 			// get deme proportional to prevalence
-			int n = Random.nextInt(0,getI()-1);
-			int d = 0;
-			int target = (demes.get(0)).getI();
-			while (d < Parameters.demeCount) {
-				if (n < target) {
-					break;
-				} else {
-					d++;
-					target += (demes.get(d)).getI();
-				}	
-			}
+			int n = stream.nextInt(0,getI()-1);
+			int d = demeIndex.find(Species.INFECTED, n);
 			HostSpeciesPopulation hp = demes.get(d);
 
-			// return random infection from this deme
-			if (hp.getI()>0) {
-				Host h = hp.getRandomHostI();
-				v = h.getInfection();
-			}
+			// return the infection at the same position in this deme
+			v = hp.getInfection(n - demeIndex.prefix(Species.INFECTED, d));
 
 		}
 
@@ -169,7 +170,7 @@ public class SimulationSpecies {
 
 	// return random host from random deme
 	public Host getRandomHost() {
-		int d = Random.nextInt(0,Parameters.demeCount-1);
+		int d = rng.nextInt(0,Parameters.demeCount-1);
 		HostSpeciesPopulation hp = demes.get(d);
 		return hp.getRandomHost();
 	}
@@ -179,8 +180,7 @@ public class SimulationSpecies {
 		double averageRisk = 0;
 		for (int i = 0; i < 10000; i++) {
 			Host h = getRandomHost();
-			Phenotype[] history = h.getHistory();
-			averageRisk += p.riskOfInfection(history);
+			averageRisk += h.riskOfInfection(p);
 		}
 		averageRisk /= 10000.0;
 		return averageRisk;
@@ -188,6 +188,7 @@ public class SimulationSpecies {
 	}
 
 	public void printImmunity() {
+		Random.setStream(rng);
 
 		try {
 			File immunityFile = new File(Parameters.outputDir + "/out.immunity");
@@ -240,6 +241,45 @@ public class SimulationSpecies {
 		}
 	}	
 
+	// remove the ancestors on chains without branches from the genealogy (see Genealogy)
+	public void compactGenealogy() {
+		List<Virus> live = new ArrayList<Virus>();
+		for (int i = 0; i < Parameters.demeCount; i++) {
+			HostSpeciesPopulation hp = demes.get(i);
+			hp.addInfections(live);
+		}
+		// Ancestors that Virus.coalescence can visit keep their parents
+		double horizon = Parameters.getDate();
+		for (Virus v : live) {
+			horizon = Math.min(horizon, v.getBirth());
+		}
+		horizon -= Parameters.netauWindow / 365.0;
+		addSheddingAndSampled(live);
+		Genealogy.compact(live, horizon);
+	}
+
+	// reclaim the nodes of dead lineages in the genealogy arena (see GenealogyArena)
+	public void collectGenealogy() {
+		List<Virus> live = new ArrayList<Virus>();
+		for (int i = 0; i < Parameters.demeCount; i++) {
+			HostSpeciesPopulation hp = demes.get(i);
+			hp.addInfections(live);
+		}
+		final int infections = live.size();
+		addSheddingAndSampled(live);
+		genealogy.collect(live, infections);
+	}
+
+	// add the viruses in the environments, the tips and the root to the live viruses
+	private void addSheddingAndSampled(List<Virus> live) {
+		for (int i = 0; i < Parameters.demeCount; i++) {
+			HostSpeciesPopulation hp = demes.get(i);
+			hp.getEnvironment().addViruses(live);
+		}
+		live.addAll(VirusTree.getTips());
+		live.add(VirusTree.getRoot());
+	}
+
 	public void printState() {
 
 		System.out.printf("%d\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%d\t%d\t%d\t%d\t%d\n", (int) Parameters.day, getDiversity(), getTmrca(),  getNetau(), getSerialInterval(), getAntigenicDiversity(), getN(), getS(), getI(), getR(), getCases());
@@ -316,6 +356,23 @@ public class SimulationSpecies {
 
 	}
 
+	// close out.steps and print the totals of the leaps of all demes (see LeapReport)
+	public void printLeapSummary() {
+		leaps.printSummary();
+	}
+
+	// print the hits and misses of the risk caches of all demes (see RiskCache)
+	public void printRiskCache() {
+		long hits = 0, misses = 0;
+		for (HostSpeciesPopulation hp : demes) {
+			final RiskCache cache = hp.getHistories().getRiskCache();
+			hits   += cache.getHits();
+			misses += cache.getMisses();
+		}
+		final double hitRate = (hits + misses == 0) ? 0 : (double) hits / (hits + misses);
+		System.out.printf("Risk cache: %d hits, %d misses, hit rate %.3f\n", hits, misses, hitRate);
+	}
+
 	private double mean(List<Double> list) {
 		double mean = 0;
 		if(!list.isEmpty()) {
@@ -341,8 +398,8 @@ public class SimulationSpecies {
 		int sampleCount = Parameters.diversitySamplingCount;
 
 		for (int i = 0; i < sampleCount; i++) {
-			Virus vA = getRandomInfection();
-			Virus vB = getRandomInfection();
+			Virus vA = getRandomInfection(statsRng);
+			Virus vB = getRandomInfection(statsRng);
 			if (vA != null && vB != null) {
 				double dist = vA.distance(vB);
 				diversity += dist;
@@ -453,6 +510,15 @@ public class SimulationSpecies {
 					monthsStream.println(((Parameters.day % 365) / 30) + " " + getN());
 				}
 
+				if (genealogy != null) {
+					if (genealogy.needsCollection()) {
+						collectGenealogy();
+					}
+				} else if ((Parameters.genealogyCompaction > 0) && 
+						(Parameters.day % (double) Parameters.genealogyCompaction < Parameters.deltaT)) {
+					compactGenealogy();
+				}
+
 				stepForward();				
 
 			}
@@ -462,6 +528,17 @@ public class SimulationSpecies {
 			System.exit(0);
 		}	
 
+		// The tips and infections are the viruses of their genealogy nodes
+		if (genealogy != null) {
+			List<Virus> live = new ArrayList<Virus>(VirusTree.getTips());
+			for (int i = 0; i < Parameters.demeCount; i++) {
+				demes.get(i).addInfections(live);
+			}
+			for (Virus v : live) {
+				genealogy.register(v);
+			}
+		}
+
 		// tree reduction
 		VirusTree.pruneTips();
 		VirusTree.markTips();
@@ -469,10 +546,10 @@ public class SimulationSpecies {
 		if (haveVirusTree) {		
 			// tree prep
 			makeTrunk();
-			VirusTree.fillBackward();			
+			VirusTree.fillBackward();
+			VirusTree.streamline();
 			VirusTree.sortChildrenByDescendants();
 			VirusTree.setLayoutByDescendants();
-			VirusTree.streamline();			
 
 			// rotation
 			if (Parameters.pcaSamples) {
@@ -1,5 +1,5 @@
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -55,6 +55,11 @@ import java.util.Map;
  *
  */
 public class Species {
+	/** Identifiers for the susceptible, infected, and recovered compartments. */
+	public static final int SUSCEPTIBLE = 0;
+	public static final int INFECTED    = 1;
+	public static final int RECOVERED   = 2;
+
 	/** A user-specified species name. This is just for identification. */ 
 	public final String name;
 	
@@ -105,22 +110,37 @@ public class Species {
 	 */
 	public final double broodBirthRate;
 	
-	/** The list of susceptible individuals in this species. Note that 
-	 * susceptible population can already contain viruses that are endemic
-	 * in them.  But they are not spreading infection via shedding of viruses. 
-	 * This is part of the S -> I -> S model. */
-	private final ArrayList<Host> susceptibles = new ArrayList<Host>();
-	
-	/** The list of infected individuals in this species. These are individuals
-	 * who are actively spreading infection of a given virus. The virus 
-	 * information is part of the host.
+	/** The arena holding the immune histories of the hosts of this species.
+	 * This arena is shared by all species in a deme (see setHistories).
 	 */
-	private final ArrayList<Host> infecteds = new ArrayList<Host>();
-	
-	/** This is the transcendental class, immune to all forms of virus. Typically
-	 * in avian influenza, this compartment is empty. 
+	private HistoryArena histories = new HistoryArena();
+
+	/** The susceptible, infected, and recovered individuals in this species.
+	 * 
+	 * <p>Note that susceptible population can already contain viruses that 
+	 * are endemic in them.  But they are not spreading infection via shedding
+	 * of viruses. This is part of the S -> I -> S model. Infected individuals
+	 * are actively spreading infection of a given virus. The recovered 
+	 * compartment is the transcendental class, immune to all forms of virus.
+	 * Typically in avian influenza, this compartment is empty.</p>
+	 * 
+	 * <p>The representation of hosts depends on the hostStore parameter (see
+	 * HostStoreFactory).  A new store is created each time the species is 
+	 * cleared.</p>
+	 */
+	private HostStore store = HostStoreFactory.makeHostStore(histories);
+
+	/** The index of the species in the deme to which changes in the size 
+	 * of the compartments are reported. This value is null until the 
+	 * species is added to a deme via setIndex().
 	 */
-	private final ArrayList<Host> recovereds   = new ArrayList<Host>();  
+	private SpeciesIndex index = null;
+
+	/** The position of this species in the index. */
+	private int slot;
+
+	/** The sizes of the S, I, and R compartments last reported to index. */
+	private final int[] indexed = new int[3];
 	
 	/**
 	 * Constructor to create species object from YAML parameters.
@@ -160,6 +180,52 @@ public class Species {
 		broodBirthRate = src.broodBirthRate;
 	}
 	
+	/**
+	 * Set the arena holding the immune histories of the hosts of this
+	 * species.  The species in a deme share an arena, so that the handles
+	 * of their histories can be compared.  All hosts are cleared.
+	 * 
+	 * @param arena The arena of the deme containing this species.
+	 */
+	public void setHistories(HistoryArena arena) {
+		histories = arena;
+		clear();
+	}
+	
+	/**
+	 * Set the index to which changes in the number of hosts in each
+	 * compartment of this species are to be reported. The current number
+	 * of hosts is reported to the index.
+	 * 
+	 * @param speciesIndex The index for the deme containing this species.
+	 * 
+	 * @param position The position of this species in the index.
+	 */
+	public void setIndex(SpeciesIndex speciesIndex, int position) {
+		index = speciesIndex;
+		slot  = position;
+		Arrays.fill(indexed, 0);
+		updateIndex();
+	}
+
+	/**
+	 * Report changes in the size of the compartments since the last call
+	 * to the index.  This method must be called by every method that 
+	 * moves, adds, or removes hosts.
+	 */
+	private void updateIndex() {
+		if (index == null) {
+			return;
+		}
+		for (int c = SUSCEPTIBLE; (c <= RECOVERED); c++) {
+			final int size = getCount(c);
+			if (size != indexed[c]) {
+				index.add(slot, c, size - indexed[c]);
+				indexed[c] = size;
+			}
+		}
+	}
+
 	/**
 	 * Method to create a given number of hosts in the S, I, R compartments
 	 * for this host.
@@ -185,17 +251,23 @@ public class Species {
 		final int numRec = (int) (initialRec * fraction);
 		// Create the specified number of susceptible individuals
 		for (int i = 0; i < numSus; i++) {	
-			susceptibles.add(new Host());
+			store.add(SUSCEPTIBLE, null, startsImmune());
 		}
 		// Create the specified number of infected individuals
 		for (int i = 0; (i < numInf); i++) {
 			Virus v = new Virus(Parameters.urVirus, deme);
-			infecteds.add(new Host(v));
+			store.add(INFECTED, v, startsImmune());
 		}	
 		// Create the specified number of recovered individuals
 		for (int i = 0; (i < numRec); i++) {		
-			recovereds.add(new Host());
+			store.add(RECOVERED, null, startsImmune());
 		}
+		updateIndex();
+	}
+
+	// new hosts sometimes start with immunity, like Host.initializeHistory
+	private static boolean startsImmune() {
+		return Random.nextBoolean(Parameters.initialPrR);
 	}
 
 	/** Return the number of susceptible individuals of this species.
@@ -203,7 +275,7 @@ public class Species {
 	 * @return The number/count of susceptible individuals of this species.
 	 */
 	public int getS() {
-		return susceptibles.size();
+		return store.size(SUSCEPTIBLE);
 	}
 
 	/** Return the number of infective individuals of this species.
@@ -211,7 +283,7 @@ public class Species {
 	 * @return The number/count of infective individuals of this species.
 	 */
 	public int getI() {
-		return infecteds.size();
+		return store.size(INFECTED);
 	}
 
 	/** Return the number of recovered individuals of this species.
@@ -219,7 +291,18 @@ public class Species {
 	 * @return The number/count of recovered individuals of this species.
 	 */
 	public int getR() {
-		return recovereds.size();
+		return store.size(RECOVERED);
+	}
+
+	/** Return the number of individuals of this species in a compartment.
+	 * 
+	 * @param compartment The compartment, one of SUSCEPTIBLE, INFECTED,
+	 * or RECOVERED.
+	 * 
+	 * @return The number/count of individuals in the given compartment.
+	 */
+	public int getCount(final int compartment) {
+		return store.size(compartment);
 	}
 
 	/** Return the total number of individuals of this species.
@@ -231,6 +314,10 @@ public class Species {
 		return (getS() + getI() + getR());
 	}
 	
+ 	/* Hosts returned by the following methods may be detached copies of the
+	 * hosts in this species (see HostStore.getHost) and must only be used to
+	 * examine hosts.  Hosts are changed via methods in this class. */
+
 	/** Get a susceptible host at a given index.
 	 * 
 	 * @param index The index at which the susceptible host is to be returned.
@@ -239,7 +326,7 @@ public class Species {
 	 * @return The susceptible host at the given location.
 	 */
 	public Host getHostS(int index) {
-		return susceptibles.get(index);
+		return store.getHost(SUSCEPTIBLE, index);
 	}
 	
 	/** Get a infective host at a given index.
@@ -250,7 +337,7 @@ public class Species {
 	 * @return The infective host at the given location.
 	 */
 	public Host getHostI(int index) {
-		return infecteds.get(index);
+		return store.getHost(INFECTED, index);
 	}
 
 	/** Get a recovered host at a given index.
@@ -261,7 +348,39 @@ public class Species {
 	 * @return The recovered host at the given location.
 	 */
 	public Host getHostR(int index) {
-		return recovereds.get(index);
+		return store.getHost(RECOVERED, index);
+	}
+
+	/** Get the virus infecting an infective host at a given index.
+	 * 
+	 * @param index The index of the infective host. This value must be in
+	 * the range 0 <= index < getI()
+	 * 
+	 * @return The virus infecting the host at the given location.
+	 */
+	public Virus getInfection(int index) {
+		return store.getInfection(INFECTED, index);
+	}
+
+	/** Get the immune history of a host.
+	 * 
+	 * @param compartment The compartment (S, I, or R) of the host.
+	 * 
+	 * @param index The index of the host in the compartment.
+	 * 
+	 * @return The handle of the history of the host in the HistoryArena.
+	 */
+	public int getHistory(int compartment, int index) {
+		return store.getHistory(compartment, index);
+	}
+
+	/** Get the groups of the hosts by immunity class and strain.
+	 * 
+	 * @return The groups, or null if the hosts are not grouped (see
+	 * HostStoreFactory).
+	 */
+	public GroupingHostStore getGroups() {
+		return store.getGroups();
 	}
 
 	/** Get a host from susceptible, infected, or recovered population.
@@ -291,55 +410,91 @@ public class Species {
 	 * 
 	 * @param dayOfYear The current day of the year in the simulation. This
 	 * value must be in the range 0 <= dayOfYear < 365.
+	 * 
+	 * @param step The length of the time step in days.
 	 */
-	public void grow(int dayOfYear) {
+	public void grow(int dayOfYear, double step) {
 		if ((broodStart < dayOfYear) && (dayOfYear < broodEnd)) {
-			double totalBirthRate = getN() * broodBirthRate * Parameters.deltaT;
+			double totalBirthRate = getN() * broodBirthRate * step;
 			int births = Random.nextPoisson(totalBirthRate);
 			for (int i = 0; (i < births); i++) {
-				Host h = new Host();
-				susceptibles.add(h);
+				store.add(SUSCEPTIBLE, null, startsImmune());
 			}
+			updateIndex();
 		}
 	}
 
-	/** Convenience method to remove an entry from a given host list.
+	/** Obtain the births per individual per day on a given day.
+	 * 
+	 * @param dayOfYear The current day of the year in the simulation. This
+	 * value must be in the range 0 <= dayOfYear < 365.
+	 * 
+	 * @return broodBirthRate during the brooding period, zero otherwise.
+	 */
+	public double getBirthRate(int dayOfYear) {
+		return ((broodStart < dayOfYear) && (dayOfYear < broodEnd)) ? broodBirthRate : 0;
+	}
+
+	/** Add a single new susceptible host, as in grow().
+	 */
+	public void birth() {
+		store.add(SUSCEPTIBLE, null, startsImmune());
+		updateIndex();
+	}
+
+	/** Simulate the death of a given host, as in decline().
+	 * 
+	 * @param compartment The compartment of the host.
 	 * 
-	 * This method performs a quick removal operation by swapping the
-	 * entry to be removed with the last element and then removing 
-	 * the last entry.
+	 * @param index The index of the host in the compartment.
+	 */
+	public void die(final int compartment, final int index) {
+		store.remove(compartment, index);
+		updateIndex();
+	}
+
+	/**
+	 * Move a given number of randomly chosen hosts to the end of a 
+	 * compartment.
 	 * 
-	 * @param list The list from which the entry is to be removed.
+	 * This method is a helper method used to select hosts for removal in
+	 * one shot: the selected hosts form a uniformly random subset of the 
+	 * compartment and can be processed from the end of the compartment.
 	 * 
-	 * @param delIdx The index of the entry to be removed. 
+	 * @param compartment The compartment from which hosts are to be chosen.
+	 * 
+	 * @param count The number of hosts to be chosen. This value must be
+	 * in the range 0 <= count <= getCount(compartment).
+	 * 
+	 * @return The index of the first chosen host in the compartment.
 	 */
-	private void remove(ArrayList<Host> list, final int delIdx) {
-		final int lastIdx   = list.size() - 1;
-		final Host lastHost = list.get(lastIdx);
-		list.set(delIdx, lastHost);
-		list.remove(lastIdx);		
+	private int selectRandom(final int compartment, final int count) {
+		final int size = store.size(compartment);
+		// Partial Fisher-Yates shuffle of the last count entries.
+		for (int i = 0; (i < count); i++) {
+			final int lastIdx = size - 1 - i;
+			store.swap(compartment, Random.nextInt(0, lastIdx), lastIdx);
+		}
+		return size - count;
 	}
-	
+
 	/** Simulate general death in a specific compartment (S, I, or R)
 	 * 
 	 * This method is a helper method that is used to simulate death in 
-	 * the species population through removal of hosts in a given list.
-	 * 
-	 * @param compartment The list of hosts in a given compartment. Hosts
-	 * are removed from this list to simulate death in hosts. 
-	 * 
-	 */
-	private void decline(ArrayList<Host> compartment) {
-		double totalDeathRate = compartment.size() * deathRate * Parameters.deltaT;
-		int deaths = Random.nextPoisson(totalDeathRate);
-		while ((deaths > 0) && (!compartment.isEmpty())) {
-			// Randomly remove a host in the list.
-			final int lastIdx = compartment.size() - 1;
-			final int delIdx  = Random.nextInt(0, lastIdx);  // index to delete
-			remove(compartment, delIdx);
-			// Track number of deaths
-			deaths--;
-		}
+	 * the species population through removal of hosts in a given 
+	 * compartment.
+	 * 
+	 * @param compartment The compartment from which hosts are removed to
+	 * simulate death in hosts. 
+	 * 
+	 * @param step The length of the time step in days.
+	 */
+	private void decline(final int compartment, double step) {
+		final int size = store.size(compartment);
+		double totalDeathRate = size * deathRate * step;
+		final int deaths = Math.min(Random.nextPoisson(totalDeathRate), size);
+		// Randomly remove hosts from the compartment in one shot.
+		store.removeRandom(compartment, deaths);
 	}
 	
 	/** Simulate general death in the S, I, R population for this species.
@@ -348,11 +503,14 @@ public class Species {
 	 * through the removal of S, I, and R hosts.  Deaths in each one of the
 	 * compartments (namely: S, I, and R) are accomplished via a helper
 	 * method. 
+	 * 
+	 * @param step The length of the time step in days.
 	 */
-	public void decline() {
-		decline(susceptibles);
-		decline(infecteds);
-		decline(recovereds);
+	public void decline(double step) {
+		decline(SUSCEPTIBLE, step);
+		decline(INFECTED, step);
+		decline(RECOVERED, step);
+		updateIndex();
 	}
 	
 	/**
@@ -362,36 +520,48 @@ public class Species {
 	 * @param compartment The compartment in which a hosts are to be reset.
 	 * If this compartment is not the susceptible then the reset host is 
 	 * removed from this compartment and placed into the susceptible compartment.
+	 * 
+	 * @param step The length of the time step in days.
 	 */
-	private void makeSusceptible(ArrayList<Host> compartment) {
-		final double totalConvRate = getR() * birthRate * Parameters.deltaT;
+	private void makeSusceptible(final int compartment, double step) {
+		final double totalConvRate = getR() * birthRate * step;
 		int conversions = Random.nextPoisson(totalConvRate);
-		while ((conversions > 0) && (!compartment.isEmpty())) {
-			// Randomly remove a host in the infected list
-			final int lastIdx  = compartment.size() - 1;
+		while ((conversions > 0) && (store.size(compartment) > 0)) {
+			// Randomly pick a host in the compartment
+			final int lastIdx  = store.size(compartment) - 1;
 			final int delIdx   = Random.nextInt(0, lastIdx); // index to reset
-			final Host susHost = compartment.get(delIdx);
-			susHost.reset();   // Clear history
-			// Remove susceptible host from the current compartment if 
-			// it is not already the susceptible compartment.
-			if (compartment != susceptibles) {
-				// To make the removal faster, use a swap and remove approach
-				remove(compartment, delIdx);
-				// Add reset host to the susceptible compartment
-				susceptibles.add(susHost);
-			}
+			// Clear history and move the host to the susceptible
+			// compartment if it is not already there.
+			store.makeNaive(compartment, delIdx);
+			conversions--;
 		}
 	}
 	
+	/**
+	 * Reset a given host and move it to the susceptible compartment (if
+	 * necessary), as in makeSusceptible().
+	 * 
+	 * @param compartment The compartment of the host.
+	 * 
+	 * @param index The index of the host in the compartment.
+	 */
+	public void makeSusceptible(final int compartment, final int index) {
+		store.makeNaive(compartment, index);
+		updateIndex();
+	}
+
 	/**
 	 * Convenience method to reset and move (if necessary) hosts from the 
 	 * three compartments (namely S, I, and R) into the susceptible 
 	 * compartment.
+	 * 
+	 * @param step The length of the time step in days.
 	 */
-	public void makeSusceptible() {
-		makeSusceptible(susceptibles);
-		makeSusceptible(infecteds);
-		makeSusceptible(recovereds);
+	public void makeSusceptible(double step) {
+		makeSusceptible(SUSCEPTIBLE, step);
+		makeSusceptible(INFECTED, step);
+		makeSusceptible(RECOVERED, step);
+		updateIndex();
 	}
 
 	/**
@@ -411,11 +581,11 @@ public class Species {
 	 * 
 	 * @param deme The number of the deme.
 	 * 
-	 * @return This method returns the host that was infected, if the infection
-	 * was successful.  Otherwise this method returns null to indicate an infection
-	 * did not occur.
+	 * @return This method returns true if the infection was successful.
+	 * Otherwise this method returns false to indicate an infection did not
+	 * occur.
 	 */
-	public Host infect(int susIdx, Host infHost, int deme, Environment environment) {
+	public boolean infect(int susIdx, Host infHost, int deme, Environment environment) {
 		return infect(susIdx, infHost.getInfection(), deme, environment);
 	}
 	
@@ -435,29 +605,90 @@ public class Species {
 	 * 
 	 * @param deme The number of the deme.
 	 * 
-	 * @return This method returns the host that was infected, if the infection
-	 * was successful.  Otherwise this method returns null to indicate an infection
-	 * did not occur.
+	 * @return This method returns true if the infection was successful.
+	 * Otherwise this method returns false to indicate an infection did not
+	 * occur.
+	 */
+	public boolean infect(int susIdx, Virus virus, int deme, Environment environment) {
+		return infect(susIdx, virus, deme, environment, Random.nextDouble());
+	}
+
+	/**
+	 * Convenience method to try and infect a given susceptible host 
+	 * with virus from an infected host, using a pre-generated uniform draw.
+	 * 
+	 * @param susIdx Index of the susceptible host to be infected.  This value
+	 * must be in the range 0 <= susIdx < getS().
+	 * 
+	 * @param infHost The infecting host. This host must have a valid virus
+	 * that it is currently spreading.
+	 * 
+	 * @param deme The number of the deme.
+	 * 
+	 * @param draw A uniform draw in the range [0, 1) used to decide whether
+	 * the infection succeeds.  Callers in hot loops obtain these from a 
+	 * DrawBuffer.
+	 * 
+	 * @return This method returns true if the infection was successful.
+	 * Otherwise this method returns false to indicate an infection did not
+	 * occur.
+	 */
+	public boolean infect(int susIdx, Host infHost, int deme, Environment environment,
+			double draw) {
+		return infect(susIdx, infHost.getInfection(), deme, environment, draw);
+	}
+
+	/**
+	 * Convenience method to infect host with a given virus, using a 
+	 * pre-generated uniform draw.
+	 * 
+	 * @param susIdx Index of the susceptible host to be infected.  This value
+	 * must be in the range 0 <= susIdx < getS().
+	 * 
+	 * @param virus The virus with which the host is to be infected.
+	 * 
+	 * @param deme The number of the deme.
+	 * 
+	 * @param draw A uniform draw in the range [0, 1) used to decide whether
+	 * the infection succeeds.
+	 * 
+	 * @return This method returns true if the infection was successful.
+	 * Otherwise this method returns false to indicate an infection did not
+	 * occur.
 	 */
-	public Host infect(int susIdx, Virus virus, int deme, Environment environment) {
-		Host susHost = susceptibles.get(susIdx);						
+	public boolean infect(int susIdx, Virus virus, int deme, Environment environment,
+			double draw) {
 		// Check to see if the susceptible hosts acquired immunity
 		// prevents a new infection by virus v
 		Phenotype p            = virus.getPhenotype();		
-		Phenotype[] history    = susHost.getHistory();
-		double chanceOfSuccess = p.riskOfInfection(history);
-		if (Random.nextBoolean(chanceOfSuccess)) {
-			// Remove susceptible host from the list.
-			remove(susceptibles, susIdx);
-			// Infect the susceptible host with virus v
-			susHost.infect(virus, deme, environment);
-			// Now add the infected host to the appropriate compartment
-			infecteds.add(susHost);
+		double chanceOfSuccess = store.riskOfInfection(p, SUSCEPTIBLE, susIdx);
+		if (draw < chanceOfSuccess) {
+			// Infect the susceptible host with virus v and move it to 
+			// the infected compartment
+			store.infect(susIdx, virus, deme, environment);
+			updateIndex();
 			// Infection successful
-			return susHost;
+			return true;
 		}
 		// No infection occurred
-		return null;
+		return false;
+	}
+
+	/**
+	 * Infect a given susceptible host with a virus, regardless of the
+	 * immunity of the host. This is used by callers that have already
+	 * decided that the infection succeeds.
+	 * 
+	 * @param susIdx Index of the susceptible host to be infected.  This value
+	 * must be in the range 0 <= susIdx < getS().
+	 * 
+	 * @param virus The virus with which the host is to be infected.
+	 * 
+	 * @param deme The number of the deme.
+	 */
+	public void infectHost(int susIdx, Virus virus, int deme, Environment environment) {
+		store.infect(susIdx, virus, deme, environment);
+		updateIndex();
 	}
 
 	/**
@@ -474,15 +705,8 @@ public class Species {
 	 * @param env The environment to use to report clearing an infection.
 	 */
 	public void recoverHost(final int infIdx, Environment env) {
-		Host h = infecteds.get(infIdx);
-		h.clearInfection(env);
-		remove(infecteds, infIdx);
-
-		if (Parameters.transcendental) {
-			recovereds.add(h);
-		} else {
-			susceptibles.add(h);
-		}
+		store.recover(infIdx, (Parameters.transcendental ? RECOVERED : SUSCEPTIBLE), env);
+		updateIndex();
 	}
 	
 	/**
@@ -495,11 +719,60 @@ public class Species {
 	 * This value must be in the range 0 <= recIdx < getR().
 	 */
 	public void looseImmunity(final int recIdx) {
-		Host h = recovereds.get(recIdx);
-		remove(recovereds, recIdx);
-		susceptibles.add(h);
+		store.move(RECOVERED, recIdx, SUSCEPTIBLE);
+		updateIndex();
 	}
 	
+	/**
+	 * Recover the infected hosts whose infectious periods end in the
+	 * current step.  This method may only be used if recoveries are
+	 * scheduled (see HostStoreFactory.schedulesRecoveries).
+	 * 
+	 * @param env The environment to use to report clearing an infection.
+	 * 
+	 * @return The number of hosts recovered.
+	 */
+	public int recoverDue(Environment env) {
+		final int dest = (Parameters.transcendental ? RECOVERED : SUSCEPTIBLE);
+		final int recovered = ((ScheduledRecoveryHostStore) store).recoverDue(
+				ScheduledRecoveryHostStore.getStep(), dest, env);
+		updateIndex();
+		return recovered;
+	}
+
+	/**
+	 * Recover a given number of randomly chosen infected hosts.
+	 * 
+	 * This method has the same effect as calling recoverHost() on 
+	 * count randomly chosen infected hosts.
+	 * 
+	 * @param count The number of hosts to recover. This value must be in 
+	 * the range 0 <= count <= getI().
+	 * 
+	 * @param env The environment to use to report clearing an infection.
+	 */
+	public void recoverHosts(final int count, Environment env) {
+		final int start = selectRandom(INFECTED, count);
+		final int dest  = (Parameters.transcendental ? RECOVERED : SUSCEPTIBLE);
+		// Recover from the end so that no other hosts are moved
+		for (int i = store.size(INFECTED) - 1; (i >= start); i--) {
+			store.recover(i, dest, env);
+		}
+		updateIndex();
+	}
+
+	/**
+	 * Simulate loss of immunity in a given number of randomly chosen 
+	 * recovered hosts.
+	 * 
+	 * @param count The number of hosts to be made susceptible. This value
+	 * must be in the range 0 <= count <= getR().
+	 */
+	public void looseImmunities(final int count) {
+		store.moveRandom(RECOVERED, count, SUSCEPTIBLE);
+		updateIndex();
+	}
+
 	/**
 	 * Simulate vaccination of a susceptible host.
 	 * 
@@ -507,9 +780,8 @@ public class Species {
 	 * must be in the range 0 <= susIdx < getS().
 	 */
 	public void vaccinate(final int susIdx) {
-		Host h = susceptibles.get(susIdx);
-		remove(susceptibles, susIdx);
-		recovereds.add(h);
+		store.move(SUSCEPTIBLE, susIdx, RECOVERED);
+		updateIndex();
 	}
 	
 	/**
@@ -519,16 +791,29 @@ public class Species {
 	 * that it is currently spreading.
 	 */
 	public void cull(final int infIdx) {
-		remove(infecteds, infIdx);
+		store.remove(INFECTED, infIdx);
+		updateIndex();
 	}
 	
+	/**
+	 * Replace the virus in an infected host with a mutant of the virus.
+	 * 
+	 * @param infIdx Index of the infected host.  This value must be in the
+	 * range 0 <= infIdx < getI().
+	 * 
+	 * @param env The environment in which the virus is shed.
+	 */
+	public void mutate(final int infIdx, Environment env) {
+		store.mutate(infIdx, env);
+	}
+
 	/**
 	 * Mark the current set of viruses (in the infected hosts) as the trunk of
 	 * new generation of viruses to be created.
 	 */
 	public void makeTrunk() {
-		for (Host h : infecteds) {
-			Virus v = h.getInfection();
+		for (int i = 0; (i < getI()); i++) {
+			Virus v = store.getInfection(INFECTED, i);
 			v.makeTrunk();
 			while (v.getParent() != null) {
 				v = v.getParent();
@@ -545,28 +830,27 @@ public class Species {
 	 * Clear out all compartments in this species.
 	 */
 	public void clear() {
-		susceptibles.clear();
-		infecteds.clear();
-		recovereds.clear();
+		// Release the immune histories held by the old store
+		store.clear();
+		store = HostStoreFactory.makeHostStore(histories);
+		updateIndex();
 	}
 	
 	/**
-	 * Print information about all the hosts in the given host list.
+	 * Print information about all the hosts in the given compartment.
 	 * 
 	 * @param stream The output stream to which the host information is to 
 	 * be printed.
 	 * 
-	 * @param hostList The list of hosts whose information is to be printed.
+	 * @param compartment The compartment whose hosts are to be printed.
 	 * 
 	 * @param deme The number of the deme that contains this list.
 	 */
 	private void printHostPopulation(PrintStream stream, 
-			ArrayList<Host> hostList, int deme) {
-		for (Host h : hostList) {
+			final int compartment, int deme) {
+		for (int i = 0; (i < store.size(compartment)); i++) {
 			stream.print(deme + ":");
-			h.printInfection(stream);
-			stream.print(":");
-			h.printHistory(stream);
+			store.printHost(stream, compartment, i);
 			stream.println();
 		}
 	}
@@ -581,9 +865,9 @@ public class Species {
 	 * @param deme The number of the deme that contains this list.
 	 */
 	public void printHostPopulation(PrintStream stream, int deme) {
-		printHostPopulation(stream, susceptibles, deme);
-		printHostPopulation(stream, infecteds,    deme);
-		printHostPopulation(stream, recovereds,   deme);
+		printHostPopulation(stream, SUSCEPTIBLE, deme);
+		printHostPopulation(stream, INFECTED,    deme);
+		printHostPopulation(stream, RECOVERED,   deme);
 	}
 	
 }
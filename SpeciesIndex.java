@@ -0,0 +1,150 @@
+/**
+ * A prefix-sum index over the number of susceptible, infected, and
+ * recovered hosts of each species in a deme.
+ *
+ * <p>Hosts of the various species in a deme are numbered consecutively
+ * in the order of the species list. This class maintains a Fenwick (or
+ * binary indexed) tree for each compartment so that the species holding
+ * the host with a given number can be found in O(log k) time, where k is
+ * the number of species. The total number of hosts in each compartment
+ * is also maintained so that it can be obtained in O(1) time.</p>
+ *
+ * <p>The counts are kept up-to-date by the Species class, which reports
+ * every change in the size of its compartments via add().</p>
+ *
+ * <p>Indexes can be nested via setParent(). The index of each deme
+ * forwards every change to an index over all the demes in the
+ * simulation, so that simulation-wide totals are also O(1) reads and a
+ * deme can be chosen in proportion to its S, I, or R hosts in
+ * O(log demes) time.</p>
+ */
+public class SpeciesIndex {
+	/** The number of species indexed. */
+	private final int size;
+
+	/** The largest power of 2 that is not greater than size. */
+	private final int topBit;
+
+	/** The Fenwick tree for each compartment. Entries are 1-based. */
+	private final int[][] tree;
+
+	/** The total number of hosts in each compartment. */
+	private final int[] totals = new int[3];
+
+	/** The index to which changes are forwarded, if any. */
+	private SpeciesIndex parent = null;
+
+	/** The position of this index in the parent index. */
+	private int parentSlot;
+
+	/**
+	 * Create an index in which all counts are zero.
+	 *
+	 * @param numSpecies The number of species to be indexed.
+	 */
+	public SpeciesIndex(int numSpecies) {
+		size = numSpecies;
+		tree = new int[3][numSpecies + 1];
+		int bit = 1;
+		while ((bit << 1) <= numSpecies) {
+			bit <<= 1;
+		}
+		topBit = bit;
+	}
+
+	/**
+	 * Set the index to which all changes in this index are to be 
+	 * forwarded. The current totals in this index are added to parent.
+	 *
+	 * @param index The parent index, e.g., the index over all demes.
+	 *
+	 * @param slot The position of this index in the parent index, e.g.,
+	 * the deme number.
+	 */
+	public void setParent(SpeciesIndex index, int slot) {
+		parent     = index;
+		parentSlot = slot;
+		for (int c = 0; (c < totals.length); c++) {
+			parent.add(parentSlot, c, totals[c]);
+		}
+	}
+
+	/**
+	 * Change the number of hosts in a compartment of a species.
+	 *
+	 * @param slot The index of the species in the species list.
+	 *
+	 * @param compartment The compartment, one of Species.SUSCEPTIBLE,
+	 * Species.INFECTED, or Species.RECOVERED.
+	 *
+	 * @param delta The change in the number of hosts.
+	 */
+	public void add(int slot, int compartment, int delta) {
+		final int[] counts = tree[compartment];
+		for (int i = slot + 1; (i <= size); i += (i & -i)) {
+			counts[i] += delta;
+		}
+		totals[compartment] += delta;
+		if (parent != null) {
+			parent.add(parentSlot, compartment, delta);
+		}
+	}
+
+	/**
+	 * Obtain the total number of hosts in a compartment across all the
+	 * species.
+	 *
+	 * @param compartment The compartment, one of Species.SUSCEPTIBLE,
+	 * Species.INFECTED, or Species.RECOVERED.
+	 *
+	 * @return The total number of hosts in the compartment.
+	 */
+	public int getTotal(int compartment) {
+		return totals[compartment];
+	}
+
+	/**
+	 * Obtain the number of hosts in a compartment of the species that
+	 * precede a given species in the species list.
+	 *
+	 * @param compartment The compartment, one of Species.SUSCEPTIBLE,
+	 * Species.INFECTED, or Species.RECOVERED.
+	 *
+	 * @param slot The index of the species in the species list.
+	 *
+	 * @return The number of hosts in species 0...slot-1.
+	 */
+	public int prefix(int compartment, int slot) {
+		final int[] counts = tree[compartment];
+		int sum = 0;
+		for (int i = slot; (i > 0); i -= (i & -i)) {
+			sum += counts[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * Find the species holding the host with a given number.
+	 *
+	 * @param compartment The compartment, one of Species.SUSCEPTIBLE,
+	 * Species.INFECTED, or Species.RECOVERED.
+	 *
+	 * @param index The number of the host. This value must be in the
+	 * range 0 <= index < getTotal(compartment).
+	 *
+	 * @return The index of the species in the species list. The index of
+	 * the host within this species is index - prefix(compartment, slot).
+	 */
+	public int find(int compartment, int index) {
+		final int[] counts = tree[compartment];
+		int pos = 0;
+		for (int bit = topBit; (bit > 0); bit >>= 1) {
+			final int next = pos + bit;
+			if ((next <= size) && (counts[next] <= index)) {
+				pos    = next;
+				index -= counts[next];
+			}
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,27 @@
+/**
+ * <p>Advances the hosts and environment of one deme through time.</p>
+ *
+ * <p>Each call to stepForward advances the deme from Parameters.day to
+ * Parameters.day + Parameters.deltaT; the simulation advances the day
+ * once all the demes have stepped.  Three implementations are available,
+ * selected via the stepper parameter (see StepperFactory):
+ *
+ * <ul>
+ *   <li>FixedStepper: in each step every process (births, deaths,
+ *   contacts, recoveries, loss of immunity, and mutation) happens once,
+ *   with a Poisson number of events. This is the original method.</li>
+ *   <li>GillespieStepper: the events of all processes are simulated one
+ *   at a time in continuous time (the next-reaction method).</li>
+ *   <li>TauLeapStepper: each step is divided into leaps whose length is
+ *   chosen so that the rates change little within a leap, with exact
+ *   simulation when a leap would cover only a few events.</li>
+ * </ul>
+ * </p>
+ */
+public interface Stepper {
+
+	/**
+	 * Advance the deme by Parameters.deltaT days from Parameters.day.
+	 */
+	void stepForward();
+}
@@ -0,0 +1,24 @@
+/* Acts as constructor for Stepper objects */
+/* A completely static class */
+
+public class StepperFactory {
+
+	public static String FIXED     = "fixed";
+	public static String GILLESPIE = "gillespie";
+	public static String TAULEAP   = "tauleap";
+
+	// returns newly instantiated Stepper objects for a deme of type according to Parameters.stepper
+	// writing the leaps of tau-leaping steppers to the given report
+	public static Stepper makeStepper(HostSpeciesPopulation deme, LeapReport report) {
+
+		if (HostStoreFactory.schedulesRecoveries() && !FIXED.equals(Parameters.stepper)) {
+			throw new RuntimeException("Scheduled recoveries need the fixed stepper");
+		}
+		if (FIXED.equals(Parameters.stepper)) { return new FixedStepper(deme); }
+		if (GILLESPIE.equals(Parameters.stepper)) { return new GillespieStepper(deme); }
+		if (TAULEAP.equals(Parameters.stepper)) { return new TauLeapStepper(deme, report); }
+		throw new RuntimeException("Unknown stepper: " + Parameters.stepper);
+
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * <p>A stepper that divides each step of deltaT into leaps whose length
+ * is chosen from the current propensities, so that the numbers of hosts
+ * (and so the rates) change by at most a fraction Parameters.tauEpsilon
+ * of their value in a leap (see GillespieStepper.getLeapSize).  In each
+ * leap every process happens once with a Poisson number of events, as in
+ * the fixed stepper (see HostSpeciesPopulation.leap).  In quiet periods a
+ * single leap covers the step, so deltaT can be set larger than with the
+ * fixed stepper; during peaks the step is divided as needed.</p>
+ *
+ * <p>When a leap would cover only a few events, the deme is instead
+ * simulated exactly (as by GillespieStepper) for about EXACT_EVENTS
+ * events.  Environmental infections happen in every leap rather than in
+ * one batch a day, as with the GillespieStepper.</p>
+ *
+ * <p>The leaps of each step are recorded in the LeapReport of the
+ * simulation.</p>
+ */
+public class TauLeapStepper implements Stepper {
+	/** Leaps expected to cover fewer events than this are simulated exactly. */
+	private static final double MIN_LEAP_EVENTS = 10;
+
+	/** The number of events simulated exactly in place of a short leap. */
+	private static final double EXACT_EVENTS = 100;
+
+	/** The deme to be advanced. */
+	private final HostSpeciesPopulation deme;
+
+	/** Simulates the deme exactly, and provides its propensities. */
+	private final GillespieStepper exact;
+
+	/** The report to which the leaps of each step are written. */
+	private final LeapReport report;
+
+	/**
+	 * Create a stepper for a deme.
+	 *
+	 * @param deme The deme to be advanced.
+	 *
+	 * @param report The report to which the leaps are written.
+	 */
+	public TauLeapStepper(HostSpeciesPopulation deme, LeapReport report) {
+		this.deme   = deme;
+		this.report = report;
+		exact       = new GillespieStepper(deme);
+	}
+
+	@Override
+	public void stepForward() {
+		final double end = Parameters.day + Parameters.deltaT;
+		double time     = Parameters.day;
+		int    leaps    = 0;
+		double leapTime = 0;
+		double shortest = Double.POSITIVE_INFINITY;
+		int    events   = 0;
+		while (time < end) {
+			final double total = exact.getTotalPropensity();
+			if (total <= 0) {
+				break;
+			}
+			final double tau = exact.getLeapSize(Parameters.tauEpsilon);
+			if (tau * total < MIN_LEAP_EVENTS) {
+				// Too few events for a leap, so simulate them one at a time
+				final double until = Math.min(end, time + EXACT_EVENTS / total);
+				events += exact.simulate(time, until);
+				time = until;
+			} else {
+				final double leap = Math.min(tau, end - time);
+				deme.leap(leap);
+				deme.environmentalContacts(leap);
+				time     += leap;
+				leapTime += leap;
+				shortest  = Math.min(shortest, leap);
+				leaps++;
+			}
+		}
+		deme.advanceDayOffset();
+		deme.sample();
+		report.record(deme.getDeme(), leaps, leapTime, shortest, events);
+	}
+}
@@ -10,12 +10,21 @@ public class Virus {
 	private double birth;		// measured in years relative to burnin
 	private int deme;
 	
-	// additional reconstruction fields
-	private boolean marked;
-	private boolean trunk;	// fill this at the end of the simulation
-	private List<Virus> children = new ArrayList<Virus>(0);	// will be void until simulation ends	
-	private double layout;
-	private int coverage;		// how many times this Virus has been covered in tracing the tree backwards
+	/**
+	 * The fields used to reconstruct the tree after the simulation, 
+	 * created on first use, so that the viruses created on every 
+	 * infection do not carry them.  Only the viruses reachable from the
+	 * tips of the VirusTree (and the ancestors of the last infections,
+	 * which are marked as trunk) get them.
+	 */
+	private static class Reconstruction {
+		private boolean marked;
+		private boolean trunk;	// fill this at the end of the simulation
+		private List<Virus> children = new ArrayList<Virus>(1);
+		private double layout;
+		private int coverage;		// how many times this Virus has been covered in tracing the tree backwards
+	}
+	private Reconstruction tree;
 	
 	
 	/** 
@@ -26,13 +35,29 @@ public class Virus {
 	 * is no longer infected with this virus.
 	 */
 	private int numHostsShedding;
-	
+
 	/**
-	 * The number of viruses in the environment. This value has to be very
-	 * large at 1e12 (10^2).  This value is managed by the Environment class
-	 * for each virus.
+	 * The index of the strain of this virus in the environment of its 
+	 * deme, or -1 if this virus was not added to the environment.  The
+	 * environment is informed of changes to numHostsShedding via this 
+	 * index.
 	 */
-	private double volume;
+	private int environmentSlot = -1;
+
+	/**
+	 * The id of the node of this virus in the GenealogyArena, or 
+	 * GenealogyArena.NONE if the arena is not used.  With the arena, the
+	 * parent of this virus is only held by the node, unless the node is
+	 * deferred (see Parameters.genealogyLazyNodes): the parent is then
+	 * held until the node is added by GenealogyArena.nodeOf.
+	 */
+	private int node = GenealogyArena.NONE;
+
+	/**
+	 * The arena holding the node of this virus, that of its parent, or
+	 * null if the arena is not used.
+	 */
+	private GenealogyArena genealogy;
 	
 	// initialization
 	public Virus() {
@@ -42,25 +67,51 @@ public class Virus {
 		
 	// replication, copies the virus, but remembers the ancestry
 	public Virus(Virus v, int d) {
-		parent = v;
 		phenotype = v.getPhenotype();
 		birth = Parameters.getDate();
 		deme = d;
+		setAncestry(v);
 	}
 	
 	public Virus(Virus v, int d, Phenotype p) {
-		parent = v;
 		phenotype = p;
 		birth = Parameters.getDate();
 		deme = d;
+		setAncestry(v);
 	}	
 	
 	public Virus(int d, Phenotype p) {
-		parent = null;
 		phenotype = p;
 		birth = Parameters.getDate();
 		deme = d;
+		setAncestry(null);
 	}		
+
+	// the virus of a node of a GenealogyArena (see GenealogyArena.getVirus)
+	public Virus(GenealogyArena arena, int n) {
+		genealogy = arena;
+		node = n;
+		phenotype = arena.getPhenotype(n);
+		birth = arena.getBirth(n);
+		deme = arena.getDeme(n);
+	}
+
+	// record the parent, as a node in the GenealogyArena of the parent if it has one
+	private void setAncestry(Virus v) {
+		if (v != null) {
+			genealogy = v.genealogy;
+		}
+		if (genealogy != null) {
+			final int p = (v == null) ? GenealogyArena.NONE : genealogy.nodeOf(v, deme);
+			if ((v != null) && Parameters.genealogyLazyNodes) {
+				parent = v;    // The node is added when needed
+			} else {
+				node = genealogy.add(deme, p, birth, deme, phenotype);
+			}
+		} else {
+			parent = v;
+		}
+	}
 	
 	// methods
 	public Phenotype getPhenotype() {
@@ -73,50 +124,84 @@ public class Virus {
 		return birth;
 	}
 	public Virus getParent() {
+		if ((parent == null) && (node != GenealogyArena.NONE)) {
+			final int p = genealogy.getParent(node);
+			return (p == GenealogyArena.NONE) ? null : genealogy.getVirus(p);
+		}
 		return parent;
 	}
+	public GenealogyArena getGenealogy() {
+		return genealogy;
+	}
+	// use an arena for the genealogy of this virus, which must not have a parent
+	public void setGenealogy(GenealogyArena arena) {
+		genealogy = arena;
+	}
+	public int getNode() {
+		return node;
+	}
+	public void setNode(int n) {
+		node = n;
+	}
 	public void setParent(Virus v) {
 		parent = v;
 	}
 	public boolean isTrunk() {
-		return trunk; 
+		return (tree != null) && tree.trunk; 
 	}
 	public void makeTrunk() {
-		trunk = true;
+		reconstruction().trunk = true;
 	}
 	public void mark() {
-		marked = true;
+		reconstruction().marked = true;
 	}
 	public boolean isMarked() {
-		return marked;
+		return (tree != null) && tree.marked;
 	}
 	public int getDeme() {
 		return deme;
 	}	
 	public double getLayout() {
-		return layout;
+		return (tree == null) ? 0 : tree.layout;
 	}
 	public void setLayout(double y) {
-		layout = y;
+		reconstruction().layout = y;
 	}
 	public int getCoverage() {
-		return coverage;
+		return (tree == null) ? 0 : tree.coverage;
 	}
 	public void incrementCoverage() {
-		coverage++;
+		reconstruction().coverage++;
+	}
+	// used by Genealogy, which borrows coverage and marked as scratch space
+	public void setCoverage(int c) {
+		reconstruction().coverage = c;
+	}
+	// drop the reconstruction fields, as done by Genealogy after using them
+	public void clearReconstruction() {
+		tree = null;
+	}
+	
+	// the reconstruction fields, created on first use
+	private Reconstruction reconstruction() {
+		if (tree == null) {
+			tree = new Reconstruction();
+		}
+		return tree;
 	}
 	
 	// add virus node as child if does not already exist
 	public void addChild(Virus v) {
+		final List<Virus> children = reconstruction().children;
 		if (!children.contains(v)) {
 			children.add(v);
 		}
 	}		
 	public int getNumberOfChildren() {
-		return children.size();
+		return (tree == null) ? 0 : tree.children.size();
 	}
 	public List<Virus> getChildren() {
-		return children;
+		return (tree == null) ? Collections.<Virus>emptyList() : tree.children;
 	}	
 	public boolean isTip() {
 		return getNumberOfChildren() == 0 ? true : false;
@@ -130,36 +215,55 @@ public class Virus {
 	}
 	
 	public Virus commonAncestor(Virus virusB) {
+		if (genealogy != null) {
+			final int anc = genealogy.commonAncestor(genealogy.nodeOf(this), genealogy.nodeOf(virusB));
+			return (anc == GenealogyArena.NONE) ? null : genealogy.getVirus(anc);
+		}
 				
 		Virus lineageA = this;
 		Virus lineageB = virusB;
 		Virus commonAnc = null;
-		Set<Virus> ancestry = new HashSet<Virus>();		
+		Set<Virus> ancestry = new HashSet<Virus>();
+		ancestry.add(lineageA);
+		if (!ancestry.add(lineageB)) {
+			return lineageB;
+		}
+		// Step the lineage born later, which cannot hold an ancestor of the other
+		// below its current virus, so that the result does not depend on the
+		// number of viruses on either lineage
 		while (true) {
-			if (!ancestry.add(lineageA)) { 
-				commonAnc = lineageA;
-				break; 
-			}		
-			if (!ancestry.add(lineageB)) { 
-				commonAnc = lineageB;
-				break; 
-			}			
-			if (lineageA.getParent() != null) {		
+			if ((lineageB.getParent() == null) ||
+					((lineageA.getParent() != null) && (lineageA.getBirth() >= lineageB.getBirth()))) {
+				if (lineageA.getParent() == null) {
+					break;
+				}
 				lineageA = lineageA.getParent();
-			}
-			if (lineageB.getParent() != null) {
+				if (!ancestry.add(lineageA)) {
+					commonAnc = lineageA;
+					break;
+				}
+			} else {
 				lineageB = lineageB.getParent();
+				if (!ancestry.add(lineageB)) {
+					commonAnc = lineageB;
+					break;
+				}
 			}
-			if (lineageA.getParent() == null && lineageB.getParent() == null) {	
-				break;
-			}
-		}	
+		}
 		
 		return commonAnc;								// returns null when no common ancestor is present
 		
 	}
 	
 	public double distance(Virus virusB) {
+		if (genealogy != null) {
+			// Walk node ids, without materializing the ancestor
+			final int anc = genealogy.commonAncestor(genealogy.nodeOf(this), genealogy.nodeOf(virusB));
+			if (anc == GenealogyArena.NONE) {
+				return 0;
+			}
+			return (getBirth() - genealogy.getBirth(anc)) + (virusB.getBirth() - genealogy.getBirth(anc));
+		}
 		Virus ancestor = commonAncestor(virusB);
 		if (ancestor != null) {
 			double distA = getBirth() - ancestor.getBirth();
@@ -181,6 +285,9 @@ public class Virus {
 	
 	// is there a coalescence event within x amount of time? (measured in years)
 	public double coalescence(Virus virusB, double windowTime) {
+		if (genealogy != null) {
+			return genealogy.coalescence(genealogy.nodeOf(this), genealogy.nodeOf(virusB), windowTime);
+		}
 
 		Virus lineageA = this;
 		Virus lineageB = virusB;
@@ -222,6 +329,10 @@ public class Virus {
 	
 	// this is the interval from this virus's birth back to its parent's birth
 	public double serialInterval() {
+		// A virus whose node is deferred still holds its parent
+		if ((genealogy != null) && (parent == null)) {
+			return getBirth() - genealogy.getBirth(genealogy.getParent(node));
+		}
 		Virus p = getParent();
 		return getBirth() - p.getBirth();
 	}
@@ -239,6 +350,7 @@ public class Virus {
 	 */
 	public void hostInfected() {
 		this.numHostsShedding++;
+		sheddingChanged(1);
 	}
 	
 	/**
@@ -248,6 +360,14 @@ public class Virus {
 	 */
 	public void hostRecovered() {
 		this.numHostsShedding--;
+		sheddingChanged(-1);
+	}
+
+	// inform the environment holding the strain of this virus of a change in shedding
+	private void sheddingChanged(int change) {
+		if (environmentSlot >= 0) {
+			Parameters.getEnvironment(deme).sheddingChanged(environmentSlot, change);
+		}
 	}
 	
 	/**
@@ -258,24 +378,24 @@ public class Virus {
 	public int getNumShedding() {
 		return this.numHostsShedding;
 	}
-	
+
 	/**
-	 * The raw number of viruses in the environment. This value is typically
-	 * very large in the range of 1e12 (10^12).
+	 * Obtain the index of the strain of this virus in the environment of
+	 * its deme.
 	 * 
-	 * @return The volume of viruses in the environment.
+	 * @return The index, or -1 if this virus was not added to the environment.
 	 */
-	public double getVolume() {
-		return this.volume;
+	public int getEnvironmentSlot() {
+		return environmentSlot;
 	}
-	
+
 	/**
-	 * Set the raw volume of viruses in the environment. This value is 
-	 * typically pretty large, in the range of 1e12.
+	 * Set the index of the strain of this virus in the environment of its
+	 * deme. This method is used by the Environment class.
 	 * 
-	 * @param volume The volume of this virus in the environment.
+	 * @param slot The index, or -1 if this virus is not in the environment.
 	 */
-	public void setVolume(double volume) {
-		this.volume = volume;
+	public void setEnvironmentSlot(int slot) {
+		environmentSlot = slot;
 	}
 }
@@ -14,6 +14,7 @@ public class VirusTree {
 	// fields
 	private static Virus root = Parameters.urVirus;	
 	private static List<Virus> tips = new ArrayList<Virus>();
+	private static RandomStream rng = Random.getStream(Random.TREE, 0);	// used during tree reduction
 	
 	public static double xMin;
 	public static double xMax;
@@ -80,7 +81,7 @@ public class VirusTree {
 		// pull random virus from this list
 		Virus rV = null;
 		if (select.size() > 0) {	
-			int index = Random.nextInt(0,select.size()-1);
+			int index = rng.nextInt(0,select.size()-1);
 			rV = select.get(index);
 		}
 		return rV;
@@ -119,7 +120,7 @@ public class VirusTree {
 	
 		List<Virus> reducedTips = new ArrayList<Virus>();
 		for (Virus v : tips) {
-			if (Random.nextBoolean(Parameters.treeProportion)) {
+			if (rng.nextBoolean(Parameters.treeProportion)) {
 				reducedTips.add(v);
 			}
 		}
@@ -158,7 +159,7 @@ public class VirusTree {
 		for (int d = 0; d < Parameters.demeCount; d++) {
 			double keepProportion = (double) Parameters.tipSamplesPerDeme / (double) getDemeCount(d);
 			for (Virus v : tips) {
-				if (Random.nextBoolean(keepProportion) && v.getDeme() == d) {
+				if (rng.nextBoolean(keepProportion) && v.getDeme() == d) {
 					reducedTips.add(v);
 				}
 			}
@@ -296,12 +297,18 @@ public class VirusTree {
 	}
 	
 	// walks backward using the list of tips, collapsing where possible
+	// a virus stays put after collapsing its parent, so every unbranched ancestor is removed
+	// whatever the number of viruses along the lineage
 	public static void streamline() {
 		
 		for (Virus v : tips) {
 			Virus vp = v;
 			while (vp != null) {
-				vp = collapse(vp);
+				Virus parent = vp.getParent();
+				Virus next = collapse(vp);
+				if (next == parent) {
+					vp = next;
+				}
 			}
 		}
 		